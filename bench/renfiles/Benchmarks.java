@@ -0,0 +1,59 @@
+package renfiles;
+
+import java.io.IOException;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the JMH benchmarks of the hot paths of a run: the leading date parser, the routing decision
+ * of a pdf file and the file name filter ({@link ClassifyBenchmark}), and the directory scan over
+ * synthetic directories of 1k, 100k and 1M entries ({@link ScanBenchmark}).<p>
+ * The benchmarks report the throughput; the gc profiler is always added, so each result comes with
+ * its allocation rate (gc.alloc.rate, MB/s) and the bytes allocated per operation (gc.alloc.rate.norm).
+ * The results can be compared before and after a change of the engine.<p>
+ * Usage: <code>mvn -B package &amp;&amp; java -jar jmh/target/benchmarks.jar [JMH options]</code><br>
+ * e.g. <code>java -jar jmh/target/benchmarks.jar ScanBenchmark -p size=1000,100000</code>;
+ * the synthetic directories are created in the temp directory and removed afterwards.
+ *
+ * @author Bruno Kaiser
+ * @version $Id$
+ */
+public class Benchmarks {
+	/** file names as they arrive in the download directory */
+	static final String[] NAMES = {
+		"NZZ_20131214.pdf", "NZZS_20131215.pdf", "ZH_20131214.pdf", "20131214_zsr.pdf", "20131214_zsz.pdf",
+		"taz-ges-2013-12-14.pdf", "sonze-2013-12-15.pdf", "compw-2013-12-14.pdf", "communications201312.pdf",
+		"20131214zkb.pdf", "20131214ic_x.pdf", "20131214rg_a.pdf", "20131214foo_pres.pdf", "201312lohn.pdf",
+		"20131214nothing.pdf", "2013abstract_x.pdf", "random.pdf", "Scan 2013-12-14 at 10.15.pdf",
+		"invoice-4711.pdf", "app.dmg", "IMG_0815.JPG", "notes.txt"
+	};
+
+	/**
+	 * Runs the benchmarks selected by the JMH command line options (all by default) with the gc profiler.
+	 * @param args	JMH command line options, see <code>java -jar benchmarks.jar -h</code>
+	 */
+	public static void main(String[] args) {
+		try {
+			CommandLineOptions _cmd = new CommandLineOptions(args);
+			if (_cmd.shouldHelp()) {
+				_cmd.showHelp();
+				return;
+			}
+			OptionsBuilder _options = new OptionsBuilder();
+			_options.parent(_cmd);
+			if (_cmd.getIncludes().isEmpty()) {
+				_options.include("renfiles\\..*Benchmark");
+			}
+			_options.addProfiler(GCProfiler.class);
+			new Runner(_options.build()).run();
+		}
+		catch (CommandLineOptionException | RunnerException | IOException _ex) {
+			System.out.println("***** failed with " + _ex.toString() + "**********");
+		}
+	}
+}
@@ -0,0 +1,86 @@
+package renfiles;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks of the classification of a file name, without the file system: the leading date parser,
+ * the routing decision of a pdf file and the file name filter. One operation handles one name;
+ * each invocation handles all names of {@link Benchmarks#NAMES}.
+ *
+ * @author Bruno Kaiser
+ * @version $Id$
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClassifyBenchmark {
+	/** the number of {@link Benchmarks#NAMES}; must be a constant for the annotations */
+	private static final int OPERATIONS = 22;
+
+	private RuleTable table;
+	private RenameFileFilter filter;
+	private Path[] paths;
+
+	@Setup
+	public void setup() {
+		if (Benchmarks.NAMES.length != OPERATIONS) {
+			throw new IllegalStateException("OPERATIONS must be " + Benchmarks.NAMES.length);
+		}
+		table = RuleTable.getDefault();
+		filter = new RenameFileFilter(".pdf");
+		paths = new Path[OPERATIONS];
+		for (int i = 0; i < OPERATIONS; i++) {
+			paths[i] = new File("/tmp", Benchmarks.NAMES[i]).toPath();
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(OPERATIONS)
+	public void leadingDate(Blackhole bh) {
+		for (String _name : Benchmarks.NAMES) {
+			bh.consume(LeadingDate.parse(_name, 0));
+		}
+	}
+
+	/**
+	 * Same decision as <code>RenameFiles.classifyPdfFile()</code>, without the file system.
+	 */
+	@Benchmark
+	@OperationsPerInvocation(OPERATIONS)
+	public void routing(Blackhole bh) {
+		for (String _name : Benchmarks.NAMES) {
+			RenameRule _rule = table.matchFixed(_name);
+			int _date;
+			if (_rule == null && (_date = LeadingDate.parse(_name, 0)) != LeadingDate.NONE) {
+				_rule = table.matchDated(_name, LeadingDate.getPrecision(_date));
+			}
+			bh.consume(_rule == null ? null : _rule.buildDestFileName(_name));
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(OPERATIONS)
+	public void filter(Blackhole bh) {
+		for (Path _p : paths) {
+			bh.consume(filter.accept(_p));
+		}
+	}
+}
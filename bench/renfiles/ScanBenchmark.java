@@ -0,0 +1,73 @@
+package renfiles;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmark of the directory scan (the former <code>RenameFiles.selectFiles()</code>) over a synthetic
+ * directory; one operation is the scan of the whole directory. The directory is created in the temp
+ * directory before the first iteration (1M entries take a while) and removed after the last one.
+ *
+ * @author Bruno Kaiser
+ * @version $Id$
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ScanBenchmark {
+	@Param({"1000", "100000", "1000000"})
+	public int size;
+
+	private Path dir;
+	private RenameFileFilter filter;
+	private int count;
+	private final DirectoryScanner.Visitor visitor = new DirectoryScanner.Visitor() {
+		public void visit(Path p, BasicFileAttributes attrs) {
+			count++;
+		}
+	};
+
+	@Setup(Level.Trial)
+	public void createDirectory() throws IOException {
+		dir = Files.createTempDirectory("renfiles-bench");
+		for (int i = 0; i < size; i++) {
+			Files.createFile(dir.resolve(i + "_" + Benchmarks.NAMES[i % Benchmarks.NAMES.length]));
+		}
+		filter = new RenameFileFilter(".pdf");
+	}
+
+	@TearDown(Level.Trial)
+	public void removeDirectory() throws IOException {
+		MoveEngine.deleteTree(dir);
+	}
+
+	/**
+	 * @return	the number of selected files
+	 */
+	@Benchmark
+	public int scan() throws IOException, InterruptedException {
+		count = 0;
+		DirectoryScanner.scan(dir, filter, DirectoryScanner.Type.FILES, visitor);
+		return count;
+	}
+}
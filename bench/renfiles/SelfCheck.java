@@ -0,0 +1,501 @@
+package renfiles;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Repeatable checks of the parts of a run that are hard to see in the workload: the subsystems are called
+ * directly with small, known inputs in a scratch directory, and the results are compared with the expected ones.
+ * Covered:
+ * <ul>
+ * <li>the tag command backend: the files are split into invocations by the argument length, and the
+ *     exit codes of the invocations are counted (with a stub tag command that logs its arguments)
+ * <li>the recovery of an interrupted run from the move log: completed, uncompleted and not started moves,
+ *     a copy that was renamed into place before its source was deleted, and the undo of the recovered run
+ * <li>the move plan file: every field of the moves survives the round trip over several groups, the JSON form,
+ *     and truncated or foreign files are rejected
+ * <li>the finder tags plist: round trip of ASCII, UTF-16, long and many tags, decoding of property lists written
+ *     by another encoder, rejection of damaged ones
+ * <li>the tag audit: untagged, partly tagged, tagged and undecodable archived files, the repair with the xattr
+ *     backend (user tags are kept) and the audit after the repair; skipped if the filesystem has no user attributes
+ * <li>the copy of the move engine: files and trees, a source that shrinks or grows during the copy, and real
+ *     moves onto another volume (the second directory, by default /dev/shm/renfiles-check; skipped if it is on
+ *     the same filesystem as the work directory)
+ * </ul>
+ * Runs on plain Linux (and Mac OS/X); <code>mvn test</code> runs it. Usage:
+ * <code>java -cp jmh/target/benchmarks.jar renfiles.SelfCheck [workDir [otherVolumeDir]]</code>.
+ * Both directories are deleted first.
+ * Every failed check is printed; the exit code is 1 if a check failed.
+ *
+ * @author Bruno Kaiser
+ * @version $Id$
+ */
+public class SelfCheck {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final File root;
+	private int checks = 0;
+	private int failed = 0;
+
+	/**
+	 * Constructor.
+	 * @param root	the work directory
+	 */
+	public SelfCheck(File root) {
+		this.root = root;
+	}
+
+	/**
+	 * Runs all checks.
+	 * @param args	see class comment
+	 */
+	public static void main(String[] args) {
+		File _root = new File(args.length > 0 ? args[0] : System.getProperty("java.io.tmpdir") + "/renfiles-check");
+		File _other = new File(args.length > 1 ? args[1] : "/dev/shm/renfiles-check");
+		SelfCheck _c = new SelfCheck(_root.getAbsoluteFile());
+		try {
+			MoveEngine.deleteTree(_c.root.toPath());
+			Files.createDirectories(_c.root.toPath());
+			_c.checkTagCommand();
+			_c.checkMoveLogRecovery();
+			_c.checkMovePlan();
+			_c.checkFinderTags();
+			_c.checkTagAudit();
+			_c.checkCopy(_other.getAbsoluteFile());
+		}
+		catch (Exception _ex) {
+			System.out.println("***** failed with " + _ex.toString() + "**********");
+			_ex.printStackTrace(System.out);
+			System.exit(1);
+		}
+		System.out.println(_c.checks + " checks, " + _c.failed + " failed");
+		if (_c.failed > 0) {
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Tag command backend: the splitting by maxArgLength and the counting of the exit codes.
+	 */
+	private void checkTagCommand() throws IOException {
+		File _dir = mkdir("tag");
+		File _log = new File(_dir, "invocations");
+		File _tag = new File(_dir, "stub-tag");
+		try (Writer _out = new OutputStreamWriter(new FileOutputStream(_tag), UTF8)) {  // exits with 3 for a file named *fail*
+			_out.write("#!/bin/sh\necho \"$*\" >> " + _log + "\ncase \"$*\" in *fail*) exit 3;; esac\nexit 0\n");
+		}
+		_tag.setExecutable(true);
+		List<File> _files = new ArrayList<File>();
+		for (int i = 0; i < 5; i++) {
+			_files.add(new File(_dir, "file" + i + ".pdf"));
+		}
+
+		// all files fit into one invocation; the tags are passed sorted
+		TagCommandBackend _backend = new TagCommandBackend(_tag.getPath(), 100000);
+		check("tag: one invocation, no failures", _backend.write(Arrays.asList("Red", "News"), _files) == 0);
+		List<String> _lines = readLines(_log);
+		checkEquals("tag: invocations", 1, _lines.size());
+		checkEquals("tag: arguments", "-a News,Red " + join(_files, 0, 5), _lines.get(0));
+		checkEquals("tag: summary", "invocations=1, exitCodes={0=1}", _backend.getSummary());
+
+		// room for two paths per invocation; every file is passed exactly once and in order
+		_log.delete();
+		int _fixed = _tag.getPath().length() + "Red,News".length() + 6;
+		int _path = _files.get(0).getAbsolutePath().length() + 1;
+		_backend = new TagCommandBackend(_tag.getPath(), _fixed + 2 * _path);
+		check("tag: split, no failures", _backend.write(Arrays.asList("Red", "News"), _files) == 0);
+		_lines = readLines(_log);
+		checkEquals("tag: split invocations", 3, _lines.size());
+		checkEquals("tag: split arguments", Arrays.asList("-a News,Red " + join(_files, 0, 2), "-a News,Red " + join(_files, 2, 4),
+				"-a News,Red " + join(_files, 4, 5)), _lines);
+
+		// a path longer than maxArgLength is still passed, on its own
+		_log.delete();
+		_backend = new TagCommandBackend(_tag.getPath(), 10);
+		check("tag: long paths", _backend.write(Arrays.asList("Red"), _files.subList(0, 2)) == 0);
+		checkEquals("tag: long path invocations", 2, readLines(_log).size());
+
+		// the files of a failed invocation are counted, the others are not
+		_log.delete();
+		List<File> _mixed = new ArrayList<File>(_files.subList(0, 2));
+		_mixed.add(new File(_dir, "fail.pdf"));
+		_mixed.addAll(_files.subList(2, 5));
+		_backend = new TagCommandBackend(_tag.getPath(), _fixed + 3 * _path);
+		checkEquals("tag: failures", 3, _backend.write(Arrays.asList("Red"), _mixed));
+		checkEquals("tag: failed summary", "invocations=2, exitCodes={0=1, 3=1}", _backend.getSummary());
+	}
+
+	/**
+	 * Move log: recovery of a run that was interrupted without end record, and its undo.
+	 */
+	private void checkMoveLogRecovery() throws IOException {
+		File _dir = mkdir("movelog");
+		File _src = mkdir("movelog/import");
+		File _dest = mkdir("movelog/archive");
+		File _logFile = new File(_dir, "renfiles.movelog");
+		FileMove[] _moves = new FileMove[4];
+		for (int i = 0; i < _moves.length; i++) {  // the names of move 1 contain the field separators of the log
+			File _f = new File(_src, i == 1 ? "file\t1\nwith\\t.pdf" : "file" + i + ".pdf");
+			write(_f, "content " + i);
+			_moves[i] = new FileMove(_f, _dest.getPath(), i == 1 ? "moved\t1\r\\.pdf" : "moved" + i + ".pdf", i == 3 ? null : "Tag" + i, "check");
+		}
+		MoveLog _log = new MoveLog(_logFile);
+		String _runId = _log.begin();
+		long[] _seqs = new long[_moves.length];
+		for (int i = 0; i < _moves.length; i++) {
+			_seqs[i] = _log.plan(_moves[i]);
+		}
+		_log.sync(_seqs[_seqs.length - 1]);
+		MoveEngine _engine = new MoveEngine();
+		_engine.move(_moves[0].getSource().toPath(), _moves[0].getDestination().toPath());
+		_log.complete(_seqs[0]);
+		// moved, but the completion record is lost by the crash
+		_engine.move(_moves[1].getSource().toPath(), _moves[1].getDestination().toPath());
+		// copied onto another volume like MoveEngine.copyFile() and renamed into place, but the source is not deleted yet
+		Files.copy(_moves[2].getSource().toPath(), _moves[2].getDestination().toPath());
+		Files.setLastModifiedTime(_moves[2].getDestination().toPath(), Files.getLastModifiedTime(_moves[2].getSource().toPath()));
+		// not started; a temporary copy is left over
+		write(MoveEngine.getTempPath(_moves[3].getDestination().toPath()).toFile(), "partial");
+		_log.sync(_seqs[_seqs.length - 1]);  // no end record: the run was interrupted
+
+		final List<String> _tagged = new ArrayList<String>();
+		TagWriter _tagWriter = new TagWriter(new TagWriter.Backend() {
+			public int write(List<String> tags, List<File> files) {
+				for (File _f : files) {
+					_tagged.add(FinderTags.join(tags) + " " + _f.getName());
+				}
+				return 0;
+			}
+
+			public String getSummary() {
+				return "";
+			}
+		}, 100);
+		checkEquals("movelog: interrupted runs", 1, new MoveLog(_logFile).recover(_tagWriter));
+		_tagWriter.flush();
+		Collections.sort(_tagged);
+		checkEquals("movelog: tags written again", Arrays.asList("Tag0 moved0.pdf", "Tag1 moved\t1\r\\.pdf", "Tag2 moved2.pdf"), _tagged);
+		check("movelog: source of the copy deleted", _moves[2].getSource().exists() == false && _moves[2].getDestination().exists());
+		check("movelog: not started move left alone", _moves[3].getSource().exists() && _moves[3].getDestination().exists() == false);
+		check("movelog: temporary copy removed", Files.exists(MoveEngine.getTempPath(_moves[3].getDestination().toPath())) == false);
+		checkEquals("movelog: recovered run ended", 0, new MoveLog(_logFile).recover(_tagWriter));
+
+		checkEquals("movelog: undo failures", 0, new MoveLog(_logFile).undo(_runId, _engine));
+		for (int i = 0; i < _moves.length; i++) {
+			check("movelog: undo of move " + i, _moves[i].getSource().exists() && _moves[i].getDestination().exists() == false);
+		}
+		checkEquals("movelog: undone content", "content 1", read(_moves[1].getSource()));
+	}
+
+	/**
+	 * Move plan: write and read back the moves of more than one group, print the JSON form, reject damaged files.
+	 */
+	private void checkMovePlan() throws IOException, InterruptedException {
+		File _dir = mkdir("plan");
+		File _planFile = new File(_dir, "renfiles.plan");
+		final List<String> _expected = new ArrayList<String>();
+		MovePlan.Writer _writer = new MovePlan.Writer(_planFile);
+		for (int i = 0; i < 10000; i++) {  // 3 groups; directories, tags and rules repeat
+			File _src = new File("/import/" + (i % 3 == 0 ? "Zürich" : "in") + "/file " + i + ".pdf");
+			String _destName = i % 4 == 0 ? _src.getName() : "dest" + i + ".pdf";
+			String _tags = i % 5 == 0 ? null : "News,Tag" + (i % 7);
+			String _version = i % 11 == 0 ? "dest" + i + "~1.pdf" : null;
+			FileMove _m = new FileMove(_src, "/archive/dir" + (i % 13), _destName, _tags, "rule" + (i % 17), _version);
+			_writer.add(_m);
+			_expected.add(describe(_m));
+		}
+		_writer.close();
+		checkEquals("plan: count", 10000L, _writer.getCount());
+		final List<String> _actual = new ArrayList<String>();
+		long _count = MovePlan.read(_planFile, new MovePlan.Visitor() {
+			public void visit(FileMove m) {
+				_actual.add(describe(m));
+			}
+		});
+		checkEquals("plan: read count", 10000L, _count);
+		checkEquals("plan: moves", _expected, _actual);
+		checkEquals("plan: destination directories", 13, MovePlan.getDestDirNames(_planFile).size());
+
+		File _one = new File(_dir, "one.plan");
+		_writer = new MovePlan.Writer(_one);
+		_writer.add(new FileMove(new File("/import/a \"b\".pdf"), "/archive", "b.pdf", "Red", "rule", "b~1.pdf"));
+		_writer.close();
+		ByteArrayOutputStream _json = new ByteArrayOutputStream();
+		MovePlan.printJson(_one, new PrintStream(_json, true, "UTF-8"));
+		checkEquals("plan: json", "{\"source\": \"/import/a \\\"b\\\".pdf\", \"destination\": \"/archive/b.pdf\", \"tags\": \"Red\", "
+				+ "\"rule\": \"rule\", \"keep\": \"b~1.pdf\"}\n", new String(_json.toByteArray(), UTF8));
+
+		byte[] _bytes = Files.readAllBytes(_planFile.toPath());
+		File _truncated = new File(_dir, "truncated.plan");
+		Files.write(_truncated.toPath(), Arrays.copyOf(_bytes, _bytes.length / 2));
+		checkRejected("plan: truncated", _truncated);
+		File _foreign = new File(_dir, "foreign.plan");
+		write(_foreign, "no plan at all");
+		checkRejected("plan: foreign", _foreign);
+	}
+
+	/**
+	 * Finder tags: encoding and decoding of the binary property list.
+	 */
+	private void checkFinderTags() {
+		List<List<String>> _lists = new ArrayList<List<String>>();
+		_lists.add(new ArrayList<String>());
+		_lists.add(Arrays.asList("News", "Red\n6"));
+		_lists.add(Arrays.asList("Zürich", "tTech", "日本語"));
+		_lists.add(Arrays.asList("a tag that is longer than fourteen characters", "dNews"));
+		List<String> _many = new ArrayList<String>();
+		for (int i = 0; i < 300; i++) {  // more than 255 objects: two-byte object references
+			_many.add("tag" + i);
+		}
+		_lists.add(_many);
+		for (List<String> _tags : _lists) {
+			checkEquals("plist: round trip of " + _tags.size() + " tags", _tags, FinderTags.decode(FinderTags.encode(_tags)));
+		}
+		// written by Python's plistlib (FMT_BINARY), i.e. with another layout than ours
+		checkEquals("plist: foreign ASCII", Arrays.asList("News", "Red\n6"), FinderTags.decode(hex(
+				"62706c6973743030a20102544e657773555265640a36080b100000000000000101000000000000000300000000000000000000000000000016")));
+		checkEquals("plist: foreign UTF-16", Arrays.asList("Zürich", "tTech"), FinderTags.decode(hex(
+				"62706c6973743030a2010266005a00fc0072006900630068557454656368080b18000000000000010100000000000000030000000000000000000000000000001e")));
+		byte[] _valid = FinderTags.encode(Arrays.asList("News", "Red"));
+		check("plist: truncated", FinderTags.decode(Arrays.copyOf(_valid, _valid.length - 10)) == null);
+		check("plist: no plist", FinderTags.decode("not a property list at all".getBytes(UTF8)) == null);
+		checkEquals("plist: strip color", "Red", FinderTags.stripColor("Red\n6"));
+	}
+
+	/**
+	 * Tag audit: finds the archived files whose rule tags are missing and repairs them with the xattr backend.
+	 */
+	private void checkTagAudit() throws IOException, InterruptedException {
+		File _archive = mkdir("audit");
+		File _untagged = archived(_archive, "news/nzz/20131214nzz.pdf");
+		File _partly = archived(_archive, "news/computerworld/20131214computerworld.pdf");
+		File _tagged = archived(_archive, "finance/bank/20131214zkb_1.pdf");
+		File _undecodable = archived(_archive, "news/nzz/20131215nzz.pdf");
+		archived(_archive, "misc/notes.txt");  // no rule
+		UserDefinedFileAttributeView _view = Files.getFileAttributeView(_partly.toPath(), UserDefinedFileAttributeView.class);
+		try {
+			_view.write(FinderTags.XATTR_NAME, ByteBuffer.wrap(FinderTags.encode(Arrays.asList("Private", "dNews"))));
+		}
+		catch (IOException | UnsupportedOperationException _ex) {
+			System.out.println("tag audit skipped, no user extended attributes in " + _archive + ": " + _ex.toString());
+			return;
+		}
+		writeTags(_tagged, FinderTags.encode(Arrays.asList("tFinance\n6", "dBill", "oZkb")));
+		writeTags(_undecodable, "garbage".getBytes(UTF8));
+
+		TagWriter _repair = new TagWriter(new XattrTagBackend(), 100);
+		TagAudit _audit = new TagAudit(RuleTable.getDefault(), _archive.toPath(), new ForkJoinScanner(4), _repair);
+		checkEquals("audit: untagged", 2, _audit.run());
+		_repair.flush();
+		AsyncLog.flush();
+		checkEquals("audit: summary", "files=5, audited=4, untagged=2, undecodable=1, unsupported=0", _audit.getSummary());
+		checkEquals("audit: repair failures", 0, _repair.getFailures());
+		checkEquals("audit: repaired", Arrays.asList("dNews"), readTags(_untagged));
+		checkEquals("audit: repaired, user tag kept", Arrays.asList("Private", "dNews", "tTech"), readTags(_partly));
+		checkEquals("audit: tagged file unchanged", Arrays.asList("tFinance\n6", "dBill", "oZkb"), readTags(_tagged));
+		checkEquals("audit: undecodable file unchanged", "garbage", new String(readAttribute(_undecodable), UTF8));
+
+		_audit = new TagAudit(RuleTable.getDefault(), _archive.toPath(), new ForkJoinScanner(4), null);
+		checkEquals("audit: untagged after the repair", 0, _audit.run());
+		AsyncLog.flush();
+	}
+
+	/**
+	 * Move engine: the copy that is used for moves onto another volume. The copy is called directly, so the
+	 * source can be changed between reading its attributes and copying it.
+	 */
+	private void checkCopy(File otherVolume) throws IOException {
+		File _dir = mkdir("copy");
+		MoveEngine _engine = new MoveEngine();
+		File _src = new File(_dir, "file.pdf");
+		File _dest = new File(_dir, "copied.pdf");
+		write(_src, "content");
+		Files.setLastModifiedTime(_src.toPath(), FileTime.fromMillis(1386979200000L));
+		checkEquals("copy: file", MoveEngine.Result.COPIED, _engine.copy(_src.toPath(), _dest.toPath(), attributes(_src)));
+		checkEquals("copy: content", "content", read(_dest));
+		checkEquals("copy: modification time", FileTime.fromMillis(1386979200000L), Files.getLastModifiedTime(_dest.toPath()));
+		check("copy: source deleted", _src.exists() == false);
+
+		File _tree = mkdir("copy/tree");
+		write(new File(mkdir("copy/tree/sub"), "a.pdf"), "a");
+		Files.createSymbolicLink(new File(_tree, "link").toPath(), new File("sub/a.pdf").toPath());
+		File _treeDest = new File(_dir, "copiedTree");
+		_engine.copy(_tree.toPath(), _treeDest.toPath(), attributes(_tree));
+		checkEquals("copy: tree content", "a", read(new File(_treeDest, "sub/a.pdf")));
+		check("copy: tree link", Files.isSymbolicLink(new File(_treeDest, "link").toPath()));
+		check("copy: tree source deleted", _tree.exists() == false);
+
+		// a download that is still written: the source shrinks or grows after its attributes were read
+		byte[] _data = new byte[200000];
+		Arrays.fill(_data, (byte) 'x');
+		Files.write(_src.toPath(), _data);
+		BasicFileAttributes _attrs = attributes(_src);
+		Files.write(_src.toPath(), Arrays.copyOf(_data, 1000));
+		checkChangedSource("copy: shrinking source", _engine, _src, new File(_dir, "shrunk.pdf"), _attrs);
+		Files.write(_src.toPath(), _data);
+		_attrs = attributes(_src);
+		Files.write(_src.toPath(), "more".getBytes(UTF8), StandardOpenOption.APPEND);
+		checkChangedSource("copy: growing source", _engine, _src, new File(_dir, "grown.pdf"), _attrs);
+		checkEquals("copy: summary", "renamed=0, copied=2, bytesCopied=8", _engine.getSummary());
+
+		// a real move onto another volume
+		MoveEngine.deleteTree(otherVolume.toPath());
+		if (otherVolume.getParentFile().isDirectory() == false
+				|| Files.getFileStore(otherVolume.getParentFile().toPath()).equals(Files.getFileStore(root.toPath()))) {
+			System.out.println("move onto another volume skipped, " + otherVolume.getParent() + " is on the filesystem of " + root);
+			return;
+		}
+		Files.createDirectories(otherVolume.toPath());
+		try {
+			checkEquals("copy: move onto another volume", MoveEngine.Result.COPIED,
+					_engine.move(_src.toPath(), new File(otherVolume, "moved.pdf").toPath()));
+			checkEquals("copy: moved content", _data.length + 4L, new File(otherVolume, "moved.pdf").length());
+			check("copy: moved source deleted", _src.exists() == false);
+			File _movedTree = mkdir("copy/movedTree/sub");
+			write(new File(_movedTree, "b.pdf"), "b");
+			checkEquals("copy: tree onto another volume", MoveEngine.Result.COPIED,
+					_engine.move(_movedTree.getParentFile().toPath(), new File(otherVolume, "tree").toPath()));
+			checkEquals("copy: moved tree content", "b", read(new File(otherVolume, "tree/sub/b.pdf")));
+		}
+		finally {
+			MoveEngine.deleteTree(otherVolume.toPath());
+		}
+	}
+
+	private void checkChangedSource(String name, MoveEngine engine, File src, File dest, BasicFileAttributes attrs) {
+		try {
+			engine.copy(src.toPath(), dest.toPath(), attrs);
+			check(name, false);
+		}
+		catch (IOException _ex) {
+			check(name, true);
+		}
+		check(name + ", source kept", src.exists());
+		check(name + ", no destination", dest.exists() == false);
+		check(name + ", temporary copy removed", Files.exists(MoveEngine.getTempPath(dest.toPath())) == false);
+	}
+
+	private static BasicFileAttributes attributes(File f) throws IOException {
+		return Files.readAttributes(f.toPath(), BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+	}
+
+	private static File archived(File archive, String path) throws IOException {
+		File _f = new File(archive, path);
+		Files.createDirectories(_f.getParentFile().toPath());
+		write(_f, path);
+		return _f;
+	}
+
+	private static void writeTags(File f, byte[] plist) throws IOException {
+		Files.getFileAttributeView(f.toPath(), UserDefinedFileAttributeView.class).write(FinderTags.XATTR_NAME, ByteBuffer.wrap(plist));
+	}
+
+	private static byte[] readAttribute(File f) throws IOException {
+		UserDefinedFileAttributeView _view = Files.getFileAttributeView(f.toPath(), UserDefinedFileAttributeView.class);
+		ByteBuffer _buf = ByteBuffer.allocate(_view.size(FinderTags.XATTR_NAME));
+		_view.read(FinderTags.XATTR_NAME, _buf);
+		return _buf.array();
+	}
+
+	private static List<String> readTags(File f) throws IOException {
+		return FinderTags.decode(readAttribute(f));
+	}
+
+	private static byte[] hex(String s) {
+		byte[] _b = new byte[s.length() / 2];
+		for (int i = 0; i < _b.length; i++) {
+			_b[i] = (byte) Integer.parseInt(s.substring(2 * i, 2 * i + 2), 16);
+		}
+		return _b;
+	}
+
+	private static String describe(FileMove m) {
+		return m.getSource().getPath() + "|" + m.getDestination().getPath() + "|" + m.getTags() + "|" + m.getRuleId() + "|" + m.getVersionName();
+	}
+
+	private void checkRejected(String name, File planFile) throws InterruptedException {
+		try {
+			MovePlan.read(planFile, new MovePlan.Visitor() {
+				public void visit(FileMove m) {
+					// ignored
+				}
+			});
+			check(name, false);
+		}
+		catch (IOException _ex) {
+			check(name, true);
+		}
+	}
+
+	private File mkdir(String name) throws IOException {
+		File _dir = new File(root, name);
+		Files.createDirectories(_dir.toPath());
+		return _dir;
+	}
+
+	private static String join(List<File> files, int from, int to) {
+		StringBuilder _sb = new StringBuilder();
+		for (int i = from; i < to; i++) {
+			_sb.append(i > from ? " " : "").append(files.get(i).getAbsolutePath());
+		}
+		return _sb.toString();
+	}
+
+	private static void write(File f, String content) throws IOException {
+		Files.write(f.toPath(), content.getBytes(UTF8));
+	}
+
+	private static String read(File f) throws IOException {
+		return new String(Files.readAllBytes(f.toPath()), UTF8);
+	}
+
+	private static List<String> readLines(File f) throws IOException {
+		List<String> _lines = new ArrayList<String>();
+		if (f.exists() == false) {
+			return _lines;
+		}
+		try (BufferedReader _in = new BufferedReader(new InputStreamReader(new FileInputStream(f), UTF8))) {
+			String _line;
+			while ((_line = _in.readLine()) != null) {
+				_lines.add(_line);
+			}
+		}
+		return _lines;
+	}
+
+	private void check(String name, boolean ok) {
+		checks++;
+		if (ok == false) {
+			failed++;
+			System.out.println("check failed: " + name);
+		}
+	}
+
+	private void checkEquals(String name, Object expected, Object actual) {
+		checks++;
+		if (expected.equals(actual) == false) {
+			failed++;
+			System.out.println("check failed: " + name + ", expected <" + expected + "> but was <" + actual + ">");
+		}
+	}
+}
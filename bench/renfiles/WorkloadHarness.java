@@ -0,0 +1,373 @@
+package renfiles;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.List;
+import java.util.Random;
+import java.util.Scanner;
+
+/**
+ * End-to-end throughput test with a synthetic workload.<p>
+ * The harness generates a realistic tree in a work directory: pdf files following every naming
+ * scheme of the {@link RuleTable} (plus unrecognized files), software files, podcast feed folders,
+ * Bento backup directories and ProSaldoBackup trees. It writes a configuration that points
+ * all directories into the work directory and uses a stub tag command, runs {@link RenameFiles} in
+ * this process and then checks that every file arrived at its expected destination. The expected
+ * destinations are derived by the generator itself, independent of the rule table.
+ * Finally, it reports the throughput in files per second and the peak memory.<p>
+ * Runs on plain Linux (and Mac OS/X). Usage:
+ * <code>java -cp jmh/target/benchmarks.jar renfiles.WorkloadHarness [files] [workDir] [pipelineMode] [extra.property=value ...]</code>,
+ * e.g. <code>java -Xmx2g -cp jmh/target/benchmarks.jar renfiles.WorkloadHarness 1000000 /tmp/renfiles-load true tagBackend=xattr</code>.
+ * The work directory is deleted first. With <code>-Drenfiles.harness.plan=true</code>, the files are
+ * planned with <code>--plan</code> first and then moved with <code>--apply</code>; both phases are timed.
+ * With <code>-Drenfiles.harness.sync=true</code>, the staging tree toPegasus is synced with <code>--sync</code>
+ * into the directory pegasus afterwards, which stands in for the NAS; the workload then contains a large dmg file
+ * of <code>renfiles.harness.syncMB</code> MB (default 256), and the sync is timed separately.
+ *
+ * @author Bruno Kaiser
+ * @version $Id$
+ */
+public class WorkloadHarness {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** prefix rules: source name prefix, date layout (0 = yyyyMMdd, 1 = yyyy-MM-dd, 2 = yyyyMM), destination sub directory and postfix */
+	private static final String[][] PREFIXES = {
+		{ "NZZS_", "0", "news/nzzs", "nzzs.pdf" },
+		{ "NZZ_", "0", "news/nzz", "nzz.pdf" },
+		{ "ZH_", "0", "news/20min", "_20min.pdf" },
+		{ "taz-ges-", "1", "news/tagesanzeiger", "tagesanzeiger.pdf" },
+		{ "sonze-", "1", "news/sonntagszeitung", "sonntagszeitung.pdf" },
+		{ "EQUITY_", "0", "news/nzzEquity", "nzzEquity.pdf" },
+		{ "FOLIO_", "0", "news/nzzFolio", "nzzFolio.pdf" },
+		{ "GESE_", "0", "news/nzzGesellschaft", "nzzGesellschaft.pdf" },
+		{ "communications", "2", "news/acmCommunications", "00acmCommunications.pdf" },
+		{ "compw-", "1", "news/computerworld", "computerworld.pdf" }
+	};
+	/** date-prefixed keywords and their destination sub directory; the file name is kept */
+	private static final String[][] KEYWORDS = {
+		{ "ic", "news/ic" }, { "rg", "finance/rgs" }, { "zkb", "finance/bank" }, { "pf", "finance/bank" },
+		{ "lohn", "finance" }, { "slkk", "finance/versicherungen" }, { "diary", "diary" }, { "kof", "news/kof" },
+		{ "book", "books" }, { "sise", "orgunits/sise" }, { "awuz", "orgunits/awuz" },
+		{ "informatikSpektrum", "news/informatikSpektrum" }, { "itc", "business" }, { "swd", "business" },
+		{ "sla", "business" }, { "nda", "business" }, { "offer", "business" }
+	};
+	/** podcast feeds: source directory, file name prefix (null for TEDTalks), name in the destination */
+	private static final String[][] PODCASTS = {
+		{ "10vor10", "10vor10_", "10vor10" }, { "DOK", "dok_", "Dok" }, { "ECO", "eco_", "Eco" },
+		{ "Einstein", "einstein_", "Einstein" }, { "Giacobbo---M--ller", "giacobbomueller_", "GiacobboMueller" },
+		{ "Kassensturz", "kassensturz_", "Kassensturz" }, { "Reporter", "reporter_", "Reporter" },
+		{ "Tagesschau", "ts20_", "Tagesschau" }, { "TEDTalks--video-", null, "tedtalks" }
+	};
+
+	private final File root;
+	private final File src;
+	private final File dest;
+	private final File podSrc;
+	private final File podDest;
+	private final File bento;
+	private final File shakehands;
+	/** the stand-in of the NAS for the sync of toPegasus */
+	private final File pegasus;
+	/** the size of the large file to sync in MB, 0 if the sync is not tested */
+	private final int syncMB;
+	/** expected moves: source, destination */
+	private final List<String[]> expected = new ArrayList<String[]>();
+	/** files that must stay in the source directory */
+	private final List<File> unrecognized = new ArrayList<File>();
+	private final long tedMtime;
+	private final String tedDate;
+
+	/**
+	 * Constructor.
+	 * @param root	the work directory
+	 */
+	public WorkloadHarness(File root) {
+		this.root = root;
+		src = new File(root, "import");
+		dest = new File(root, "archive");
+		podSrc = new File(root, "Miro");
+		podDest = new File(root, "Podcasts");
+		bento = new File(root, "Documents");
+		shakehands = new File(root, "ProSaldoBackup");
+		pegasus = new File(root, "pegasus");
+		syncMB = Boolean.getBoolean("renfiles.harness.sync") ? Integer.getInteger("renfiles.harness.syncMB", 256) : 0;
+		Calendar _cal = new GregorianCalendar(2013, Calendar.DECEMBER, 14, 12, 0);
+		tedMtime = _cal.getTimeInMillis();
+		tedDate = new SimpleDateFormat("yyyyMMdd").format(_cal.getTime());
+	}
+
+	/**
+	 * Generates the workload, runs it and verifies the result.
+	 * @param args	see class comment
+	 */
+	public static void main(String[] args) {
+		int _files = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		File _root = new File(args.length > 1 ? args[1] : System.getProperty("java.io.tmpdir") + "/renfiles-load");
+		boolean _pipeline = args.length > 2 && Boolean.parseBoolean(args[2]);
+		List<String> _extra = new ArrayList<String>();
+		for (int i = 3; i < args.length; i++) {
+			_extra.add(args[i]);
+		}
+		try {
+			WorkloadHarness _h = new WorkloadHarness(_root.getAbsoluteFile());
+			long _start = System.currentTimeMillis();
+			_h.generate(_files);
+			_h.writeConfig(_pipeline, _extra);
+			System.out.println("generated " + _h.expected.size() + " files to move and " + _h.unrecognized.size()
+					+ " unrecognized files in " + (System.currentTimeMillis() - _start) + " ms");
+			_start = System.nanoTime();
+			if (Boolean.getBoolean("renfiles.harness.plan")) {
+				String _plan = new File(_h.root, "renfiles.plan").getPath();
+				RenameFiles.main(new String[] { "--plan", _plan });
+				System.out.println("planned in " + (System.nanoTime() - _start) / 1000000 + " ms, plan file " 
+						+ new File(_plan).length() + " bytes");
+				_start = System.nanoTime();
+				RenameFiles.main(new String[] { "--apply", _plan });
+			}
+			else {
+				RenameFiles.main(new String[0]);
+			}
+			long _millis = Math.max(1, (System.nanoTime() - _start) / 1000000);
+			if (_h.syncMB > 0) {
+				long _syncStart = System.nanoTime();
+				RenameFiles.main(new String[] { "--sync" });
+				long _syncMillis = Math.max(1, (System.nanoTime() - _syncStart) / 1000000);
+				System.out.println("synced in " + _syncMillis + " ms: " + (_h.syncMB * 1000L / _syncMillis) + " MB/s for the large file");
+				_h.expectSynced();
+			}
+			int _errors = _h.verify();
+			System.out.println("moved " + _h.expected.size() + " files in " + _millis + " ms: "
+					+ (_h.expected.size() * 1000L / _millis) + " files/s, peak RSS " + peakRss() + ", errors " + _errors);
+			if (_errors > 0) {
+				System.exit(1);
+			}
+		}
+		catch (Exception _ex) {
+			System.out.println("***** failed with " + _ex.toString() + "**********");
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Generates about the given number of files; the mix is roughly the one of a real import directory.
+	 */
+	private void generate(int files) throws IOException {
+		MoveEngine.deleteTree(root.toPath());
+		for (File _d : new File[] { src, dest, podSrc, podDest, bento, shakehands }) {
+			Files.createDirectories(_d.toPath());
+		}
+		Calendar _day = new GregorianCalendar(1950, Calendar.JANUARY, 1);
+		int _podcasts = Math.max(PODCASTS.length, files / 50);
+		int _backups = Math.max(1, files / 1000);
+		int _software = Math.max(1, files / 100);
+		int _pdfs = Math.max(1, files - _podcasts - 2 * _backups - _software);
+		int _schemes = PREFIXES.length + KEYWORDS.length + 4;
+		for (int i = 0; i < _pdfs; i++) {
+			int _scheme = i % _schemes;
+			if (_scheme == 0) {  // all schemes of a round share the same date, so a date is unique per scheme
+				_day.add(Calendar.DAY_OF_MONTH, 1);
+			}
+			String _d = format(_day, false);
+			if (_scheme < PREFIXES.length) {
+				String[] _p = PREFIXES[_scheme];
+				String _date = _p[1].equals("1") ? format(_day, true) : _p[1].equals("2") ? _d.substring(0, 6) : _d;
+				String _destDate = _p[1].equals("2") ? _d.substring(0, 6) : _d;
+				if (_p[1].equals("2") && _day.get(Calendar.DAY_OF_MONTH) != 1) {  // one issue per month
+					continue;
+				}
+				pdf(_p[0] + _date + ".pdf", _p[2] + "/" + _destDate + _p[3]);
+				continue;
+			}
+			_scheme -= PREFIXES.length;
+			if (_scheme < KEYWORDS.length) {
+				String _name = _d + KEYWORDS[_scheme][0] + "_" + i + ".pdf";
+				pdf(_name, KEYWORDS[_scheme][1] + "/" + _name);
+				continue;
+			}
+			switch (_scheme - KEYWORDS.length) {
+			case 0:
+				pdf(_d + "_zsr.pdf", "news/zsz/" + _d + "zsz.pdf");
+				break;
+			case 1:
+				pdf(_d + "meeting_" + i + "_pres.pdf", "done/business/" + _d + "meeting_" + i + "_pres.pdf");
+				break;
+			case 2:
+				pdf(_d + "abstract_" + i + ".pdf", "news/abstract/" + _d + "abstract_" + i + ".pdf");
+				break;
+			default:
+				if (i % 2 == 0) {
+					pdf(_d + "misc_" + i + ".pdf", _d + "misc_" + i + ".pdf");  // leading date without meaning
+				}
+				else {
+					File _f = new File(src, "Scan " + i + ".pdf");
+					create(_f);
+					unrecognized.add(_f);
+				}
+				break;
+			}
+		}
+		for (int i = 0; i < _software; i++) {
+			move(new File(src, "tool-" + i + ".dmg"), new File(dest, "toPegasus/software/tool-" + i + ".dmg"));
+		}
+		if (syncMB > 0) {
+			File _large = new File(src, "large.dmg");
+			byte[] _block = new byte[1 << 20];
+			Random _random = new Random(syncMB);
+			try (FileOutputStream _out = new FileOutputStream(_large)) {
+				for (int i = 0; i < syncMB; i++) {
+					_random.nextBytes(_block);
+					_out.write(_block);
+				}
+			}
+			expected.add(new String[] { _large.getPath(), new File(dest, "toPegasus/software/large.dmg").getPath() });
+		}
+		Calendar _podDay = new GregorianCalendar(1990, Calendar.JANUARY, 1);
+		for (int i = 0; i < _podcasts; i++) {
+			String[] _p = PODCASTS[i % PODCASTS.length];
+			File _dir = new File(podSrc, _p[0]);
+			if (_p[1] == null) {
+				File _f = new File(_dir, "Talk" + i + "xxxxxx.mp4");  // the last 10 characters are cut off
+				move(_f, new File(podDest, "tedtalks/" + tedDate + "tedtalksTalk" + i + ".mp4"));
+				_f.setLastModified(tedMtime);
+			}
+			else {
+				if (i % PODCASTS.length == 0) {
+					_podDay.add(Calendar.DAY_OF_MONTH, 1);
+				}
+				String _d = format(_podDay, false);
+				move(new File(_dir, _p[1] + _d + "_episode.mp4"),
+						new File(podDest, _p[2].toLowerCase() + "/" + _d + "sfdrs" + _p[2] + ".mp4"));
+			}
+		}
+		Calendar _backupDay = new GregorianCalendar(2000, Calendar.JANUARY, 1);
+		for (int i = 0; i < _backups; i++) {
+			_backupDay.add(Calendar.DAY_OF_MONTH, 1);
+			String _iso = format(_backupDay, true);
+			String _d = format(_backupDay, false);
+			File _bento = new File(bento, "Bento Backup - " + _iso + ".bentodb");
+			Files.createDirectories(_bento.toPath());
+			create(new File(_bento, "Contents.db"));
+			expected.add(new String[] { _bento.getPath(), new File(dest, "toPegasus/backup/bento/" + _d + ".bentodb").getPath() });
+			move(new File(shakehands, _iso + " 10-00-00/Business.sdb"), new File(dest, "toPegasus/backup/shakehands/" + _d + ".sdb"));
+		}
+	}
+
+	private void pdf(String name, String destPath) throws IOException {
+		move(new File(src, name), new File(dest, destPath));
+	}
+
+	private void move(File from, File to) throws IOException {
+		Files.createDirectories(from.getParentFile().toPath());
+		create(from);
+		expected.add(new String[] { from.getPath(), to.getPath() });
+	}
+
+	private static void create(File f) throws IOException {
+		try (FileOutputStream _out = new FileOutputStream(f)) {
+			_out.write(f.getPath().getBytes(UTF8));  // unique content, so dedupMode finds no duplicates
+		}
+	}
+
+	private static String format(Calendar c, boolean iso) {
+		String _sep = iso ? "-" : "";
+		return String.format("%04d%s%02d%s%02d", c.get(Calendar.YEAR), _sep, c.get(Calendar.MONTH) + 1, _sep, c.get(Calendar.DAY_OF_MONTH));
+	}
+
+	/**
+	 * Changes the expected destinations in the staging tree toPegasus to the NAS stand-in, after the sync.
+	 */
+	private void expectSynced() {
+		String _staging = new File(dest, "toPegasus").getPath() + File.separator;
+		for (String[] _e : expected) {
+			if (_e[1].startsWith(_staging)) {
+				_e[1] = new File(pegasus, _e[1].substring(_staging.length())).getPath();
+			}
+		}
+	}
+
+	/**
+	 * Writes the configuration and the stub tag command and points RenameFiles to it.
+	 */
+	private void writeConfig(boolean pipeline, List<String> extra) throws IOException {
+		File _tag = new File(root, "stub-tag");
+		try (Writer _out = new OutputStreamWriter(new FileOutputStream(_tag), UTF8)) {
+			_out.write("#!/bin/sh\nexit 0\n");
+		}
+		_tag.setExecutable(true);
+		File _config = new File(root, "renfiles.properties");
+		try (Writer _out = new OutputStreamWriter(new FileOutputStream(_config), UTF8)) {
+			_out.write("srcDirName=" + src + "\ndestDirName=" + dest + "\npodcastSrcDirName=" + podSrc
+					+ "\npodcastDestDirName=" + podDest + "\nbentoSrcDirName=" + bento + "\nshakehandsSrcDirName=" + shakehands
+					+ "\ntestMode=false\ndebugMode=false\npipelineMode=" + pipeline + "\ntagCommand=" + _tag
+					+ "\njournalFileName=" + new File(root, "renfiles.journal") + "\nmoveLogFileName=" + new File(root, "renfiles.movelog")
+					+ "\ndedupIndexFileName=" + new File(root, "renfiles.dedup") + "\nmetricsFileName=" + new File(root, "renfiles-metrics.json") + "\n");
+			if (syncMB > 0) {
+				_out.write("syncSrcDirName=" + new File(dest, "toPegasus") + "\nsyncDestDirName=" + pegasus + "\n");
+			}
+			for (String _e : extra) {
+				_out.write(_e + "\n");
+			}
+		}
+		System.setProperty("renfiles.config", _config.getPath());
+	}
+
+	/**
+	 * Checks that every file was moved to its expected destination and the unrecognized files were not touched.
+	 * @return	the number of errors
+	 */
+	private int verify() {
+		int _errors = 0;
+		for (String[] _e : expected) {
+			if (new File(_e[0]).exists() || new File(_e[1]).exists() == false) {
+				if (_errors++ < 10) {
+					System.out.println("not moved as expected: " + _e[0] + " -> " + _e[1]);
+				}
+			}
+		}
+		for (File _f : unrecognized) {
+			if (_f.exists() == false) {
+				if (_errors++ < 10) {
+					System.out.println("unrecognized file was moved: " + _f);
+				}
+			}
+		}
+		return _errors;
+	}
+
+	/**
+	 * @return	the peak resident set size of this process (Linux), or the peak heap usage
+	 */
+	private static String peakRss() {
+		Path _status = new File("/proc/self/status").toPath();
+		if (Files.isReadable(_status)) {
+			try (Scanner _in = new Scanner(_status.toFile(), "UTF-8")) {
+				while (_in.hasNextLine()) {
+					String _line = _in.nextLine();
+					if (_line.startsWith("VmHWM:")) {
+						return _line.substring(6).trim();
+					}
+				}
+			}
+			catch (IOException _ex) {
+				// use the heap usage below
+			}
+		}
+		long _peak = 0;
+		for (MemoryPoolMXBean _pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			_peak += _pool.getPeakUsage() == null ? 0 : _pool.getPeakUsage().getUsed();
+		}
+		return (_peak / 1024) + " kB (heap and non-heap pools)";
+	}
+}
@@ -1,6 +1,6 @@
 #!/bin/sh
 #export JAVA_HOME=/usr/lib/jvm/java-6-openjdk-amd64
-export JAVA_HOME=`/usr/libexec/java_home -v 1.7`
+export JAVA_HOME=`/usr/libexec/java_home -v 21`
 echo "JAVA_HOME=<$JAVA_HOME>"
 which java
 java -version
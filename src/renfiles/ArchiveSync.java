@@ -0,0 +1,371 @@
+package renfiles;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.nio.file.ExtendedOpenOption;
+
+/**
+ * Copies the staging tree (toPegasus) onto the archive volume (the Pegasus NAS) and verifies each copy
+ * before the staging file is deleted.<p>
+ * Every file is copied in chunks of {@code chunkSize} bytes. The chunks of a large file (a multi-GB dmg or
+ * video) are read and written concurrently with positional <code>FileChannel</code> I/O, so that several
+ * requests are in flight on the network link; each chunk is hashed (SHA-256) while it is in memory.
+ * The digest of a file is the SHA-256 of its chunk digests (a tree hash of depth one), so the chunks can be
+ * hashed in any order. After the copy is synced to disk, it is read back, again chunk by chunk in parallel,
+ * and its tree hash is compared with the one of the source. Only if they match, the copy is renamed into
+ * place and the staging file is deleted; otherwise the copy is removed and the staging file is kept for
+ * the next sync.<p>
+ * The copy is read back with direct I/O (<code>ExtendedOpenOption.DIRECT</code>, i.e. O_DIRECT on Linux and
+ * F_NOCACHE on Mac OS/X), so that a network volume (SMB, AFP, NFS) is asked for the data instead of the page
+ * cache of the client, which still holds the data just written. If the archive volume does not support direct
+ * I/O (or its block size does not divide the chunk size), the copy is read back through the cache; this is
+ * reported once, and the verification then only detects errors of the local copy, not of the transfer.<p>
+ * Files are copied by {@code fileWorkers} threads; the chunks of all files are processed by
+ * {@code chunkWorkers} threads. A file that already exists on the archive volume with the same size and
+ * digest (e.g. after an interrupted sync) is not copied again. A file that exists there with another content
+ * is a collision: it is never replaced, the staging file is kept and reported, so it can be resolved by hand.
+ * The {@link Listener} is told about each staging file that was deleted, e.g. to update the search index.
+ *
+ * @author Bruno Kaiser
+ * @version $Id$
+ */
+public class ArchiveSync {
+	private static final String DIGEST = "SHA-256";
+
+	/**
+	 * Is told about the synced files.
+	 */
+	public interface Listener {
+		/**
+		 * Called by the file workers after a staging file was deleted because it is on the archive volume.
+		 * @param staging	the former path of the file in the staging tree
+		 * @param target	the file on the archive volume
+		 */
+		void synced(Path staging, Path target);
+	}
+
+	private final Path stagingRoot;
+	private final Path targetRoot;
+	private final int chunkSize;
+	private final int fileWorkers;
+	private final int chunkWorkers;
+	private final boolean debug;
+	private final Listener listener;
+	/** one chunk buffer per thread */
+	private final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocate(chunkSize);
+		}
+	};
+
+	/** one aligned chunk buffer per thread for direct I/O */
+	private final ThreadLocal<ByteBuffer> directBuffers = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer.allocateDirect(chunkSize + directBlockSize).alignedSlice(directBlockSize);
+		}
+	};
+	/** the block size of the archive volume for direct I/O, 0 if it is not supported, -1 if not known yet */
+	private volatile int directBlockSize = -1;
+
+	private ExecutorService chunkPool = null;
+	private final AtomicInteger copied = new AtomicInteger();
+	private final AtomicInteger present = new AtomicInteger();
+	private final AtomicInteger collisions = new AtomicInteger();
+	private final AtomicInteger failed = new AtomicInteger();
+	private final AtomicLong bytesCopied = new AtomicLong();
+	private final AtomicLong bytesVerified = new AtomicLong();
+	private final AtomicLong bytesVerifiedDirect = new AtomicLong();
+	private volatile long millis = 0;
+
+	/**
+	 * Constructor.
+	 * @param stagingRoot	the local staging tree, e.g. destDirName/toPegasus
+	 * @param targetRoot	the root of the archive volume
+	 * @param chunkSize		the size of the chunks that are copied and hashed concurrently
+	 * @param fileWorkers	the number of files that are copied at the same time
+	 * @param chunkWorkers	the number of chunks that are copied at the same time
+	 * @param debug			prints each synced file
+	 * @param listener		is told about the synced files, or null
+	 */
+	public ArchiveSync(Path stagingRoot, Path targetRoot, int chunkSize, int fileWorkers, int chunkWorkers, boolean debug,
+			Listener listener) {
+		this.stagingRoot = stagingRoot;
+		this.targetRoot = targetRoot;
+		this.chunkSize = Math.max(1 << 16, chunkSize);
+		this.fileWorkers = Math.max(1, fileWorkers);
+		this.chunkWorkers = Math.max(1, chunkWorkers);
+		this.debug = debug;
+		this.listener = listener;
+	}
+
+	/**
+	 * Copies all files of the staging tree to the archive volume, verifies them and deletes the staging files.
+	 * Directories of the staging tree are kept; see {@link ForkJoinScanner#removeEmptyDirectories(Path)}.
+	 *
+	 * @return	the number of files that could not be synced, including the collisions
+	 * @throws IOException	if the staging tree can not be traversed
+	 * @throws InterruptedException
+	 */
+	public int sync() throws IOException, InterruptedException {
+		long _start = System.currentTimeMillis();
+		final List<Path> _files = new ArrayList<Path>();
+		Files.walkFileTree(stagingRoot, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+				if (attrs.isRegularFile() && file.getFileName().toString().endsWith(MoveEngine.TMP_SUFFIX) == false) {
+					_files.add(file);
+				}
+				return FileVisitResult.CONTINUE;
+			}
+		});
+		ExecutorService _filePool = Executors.newFixedThreadPool(fileWorkers);
+		chunkPool = Executors.newFixedThreadPool(chunkWorkers);
+		try {
+			List<Future<?>> _results = new ArrayList<Future<?>>(_files.size());
+			for (final Path _f : _files) {
+				_results.add(_filePool.submit(new Callable<Void>() {
+					public Void call() throws Exception {
+						syncFile(_f);
+						return null;
+					}
+				}));
+			}
+			for (int i = 0; i < _results.size(); i++) {
+				try {
+					_results.get(i).get();
+				}
+				catch (ExecutionException _ex) {
+					failed.incrementAndGet();
+					AsyncLog.println("******** failed in sync() of " + _files.get(i) + " with " + _ex.getCause().toString() + "*********");
+				}
+			}
+		}
+		finally {
+			_filePool.shutdownNow();
+			chunkPool.shutdownNow();
+		}
+		millis = System.currentTimeMillis() - _start;
+		return failed.get() + collisions.get();
+	}
+
+	/**
+	 * Copies, verifies and deletes one staging file.
+	 */
+	private void syncFile(Path src) throws IOException, InterruptedException, ExecutionException {
+		Path _target = targetRoot.resolve(stagingRoot.relativize(src).toString());
+		BasicFileAttributes _attrs = Files.readAttributes(src, BasicFileAttributes.class);
+		Files.createDirectories(_target.getParent());
+		if (Files.isRegularFile(_target, LinkOption.NOFOLLOW_LINKS) && Files.size(_target) == _attrs.size()
+				&& Arrays.equals(digest(src, null, _attrs.size(), false), digest(_target, null, _attrs.size(), isDirect(_target)))) {
+			Files.delete(src);
+			present.incrementAndGet();
+			if (listener != null) {
+				listener.synced(src, _target);
+			}
+			if (debug) {
+				AsyncLog.println("sync " + src + ": already on the archive volume");
+			}
+			return;
+		}
+		if (Files.exists(_target, LinkOption.NOFOLLOW_LINKS)) {
+			collisions.incrementAndGet();
+			AsyncLog.println("******** sync " + src + ": " + _target + " exists with another content, staging file kept *********");
+			return;
+		}
+		Path _tmp = MoveEngine.getTempPath(_target);
+		MoveEngine.deleteTree(_tmp);  // left over by an interrupted sync
+		try {
+			byte[] _digest;
+			try (FileChannel _out = FileChannel.open(_tmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+				_digest = digest(src, _out, _attrs.size(), false);
+				_out.force(true);
+			}
+			bytesCopied.addAndGet(_attrs.size());
+			if (Arrays.equals(_digest, digest(_tmp, null, _attrs.size(), isDirect(_tmp))) == false) {
+				throw new IOException("the copy on the archive volume differs from " + src);
+			}
+			bytesVerified.addAndGet(_attrs.size());
+			Files.setLastModifiedTime(_tmp, _attrs.lastModifiedTime());
+			Files.move(_tmp, _target, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (IOException | InterruptedException | ExecutionException _ex) {
+			MoveEngine.deleteTree(_tmp);
+			throw _ex;
+		}
+		MoveEngine.syncDirectory(_target.getParent());
+		Files.delete(src);
+		copied.incrementAndGet();
+		if (listener != null) {
+			listener.synced(src, _target);
+		}
+		if (debug) {
+			AsyncLog.println("sync " + src + " -> " + _target + ", " + _attrs.size() + " bytes verified");
+		}
+	}
+
+	/**
+	 * Tests once if a file of the archive volume can be read with direct I/O, see class comment.
+	 * @param file	a file on the archive volume
+	 * @return		true if the file is to be read with direct I/O
+	 */
+	private boolean isDirect(Path file) {
+		if (directBlockSize < 0) {
+			synchronized (this) {
+				if (directBlockSize < 0) {
+					int _blockSize = 0;
+					String _reason = null;
+					try (FileChannel _ch = FileChannel.open(file, StandardOpenOption.READ, ExtendedOpenOption.DIRECT)) {
+						_blockSize = (int) Files.getFileStore(file).getBlockSize();
+						if (_blockSize <= 0 || chunkSize % _blockSize != 0) {
+							_reason = "block size " + _blockSize;
+							_blockSize = 0;
+						}
+					}
+					catch (IOException | UnsupportedOperationException _ex) {
+						_reason = _ex.toString();
+					}
+					if (_blockSize == 0) {
+						AsyncLog.println("sync: no direct I/O on " + targetRoot + " (" + _reason + "), the copies are verified through the cache");
+					}
+					directBlockSize = _blockSize;
+				}
+			}
+		}
+		return directBlockSize > 0;
+	}
+
+	/**
+	 * Computes the tree hash of a file and optionally copies it. A small file is processed by the calling
+	 * thread; the chunks of a larger file are processed by the chunk workers.
+	 *
+	 * @param file		the file to read
+	 * @param out		the copy (written at the same positions), or null to just hash the file
+	 * @param size		the size of the file
+	 * @param direct	reads the file with direct I/O, bypassing the page cache (only without out)
+	 * @return			the SHA-256 of the chunk digests
+	 */
+	private byte[] digest(final Path file, final FileChannel out, long size, final boolean direct) 
+			throws IOException, InterruptedException, ExecutionException {
+		int _chunks = (int) Math.max(1, (size + chunkSize - 1) / chunkSize);
+		byte[][] _digests = new byte[_chunks][];
+		try (final FileChannel _in = direct ? FileChannel.open(file, StandardOpenOption.READ, ExtendedOpenOption.DIRECT)
+				: FileChannel.open(file, StandardOpenOption.READ)) {
+			if (_chunks == 1) {
+				_digests[0] = direct ? readChunkDirect(_in, 0, size) : copyChunk(_in, out, 0, size);
+			}
+			else {
+				List<Future<byte[]>> _results = new ArrayList<Future<byte[]>>(_chunks);
+				for (int i = 0; i < _chunks; i++) {
+					final long _pos = (long) i * chunkSize;
+					final long _length = Math.min(chunkSize, size - _pos);
+					_results.add(chunkPool.submit(new Callable<byte[]>() {
+						public byte[] call() throws IOException {
+							return direct ? readChunkDirect(_in, _pos, _length) : copyChunk(_in, out, _pos, _length);
+						}
+					}));
+				}
+				try {
+					for (int i = 0; i < _chunks; i++) {
+						_digests[i] = _results.get(i).get();
+					}
+				}
+				finally {  // the channel is closed when this method returns
+					for (Future<byte[]> _r : _results) {
+						_r.cancel(false);
+					}
+				}
+			}
+		}
+		MessageDigest _tree = newDigest();
+		for (byte[] _d : _digests) {
+			_tree.update(_d);
+		}
+		return _tree.digest();
+	}
+
+	/**
+	 * Reads one chunk with positional I/O, hashes it and writes it to the same position of the copy.
+	 * @return	the digest of the chunk
+	 */
+	private byte[] copyChunk(FileChannel in, FileChannel out, long pos, long length) throws IOException {
+		ByteBuffer _buf = buffers.get();
+		_buf.clear().limit((int) length);
+		while (_buf.hasRemaining()) {
+			if (in.read(_buf, pos + _buf.position()) < 0) {
+				throw new IOException("file is shorter than expected");
+			}
+		}
+		_buf.flip();
+		MessageDigest _md = newDigest();
+		_md.update(_buf.array(), 0, _buf.limit());
+		if (out != null) {
+			while (_buf.hasRemaining()) {
+				out.write(_buf, pos + _buf.position());
+			}
+		}
+		return _md.digest();
+	}
+
+	/**
+	 * Reads one chunk with direct I/O and hashes it. The position is a multiple of the chunk size and thus
+	 * aligned; the last chunk of a file is read with a length rounded up to the block size.
+	 * @return	the digest of the chunk
+	 */
+	private byte[] readChunkDirect(FileChannel in, long pos, long length) throws IOException {
+		ByteBuffer _buf = directBuffers.get();
+		_buf.clear().limit((int) ((length + directBlockSize - 1) / directBlockSize * directBlockSize));
+		while (_buf.position() < length) {
+			if (in.read(_buf, pos + _buf.position()) < 0) {
+				throw new IOException("file is shorter than expected");
+			}
+		}
+		_buf.flip().limit((int) length);
+		bytesVerifiedDirect.addAndGet(length);
+		MessageDigest _md = newDigest();
+		_md.update(_buf);
+		return _md.digest();
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance(DIGEST);
+		}
+		catch (NoSuchAlgorithmException _ex) {
+			throw new IllegalStateException(DIGEST + " is not available", _ex);
+		}
+	}
+
+	/**
+	 * @return	a one-line summary of the last sync
+	 */
+	public String getSummary() {
+		long _mb = bytesCopied.get() >> 20;
+		return "copied=" + copied.get() + ", present=" + present.get() + ", collisions=" + collisions.get() + ", failed=" + failed.get() 
+				+ ", bytesCopied=" + bytesCopied.get()
+				+ ", bytesVerified=" + bytesVerified.get() + ", bytesVerifiedDirect=" + bytesVerifiedDirect.get() + ", millis=" + millis + ", MB/s=" + (_mb * 1000 / Math.max(1, millis));
+	}
+}
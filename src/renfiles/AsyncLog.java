@@ -0,0 +1,100 @@
+package renfiles;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Asynchronous console output for the messages that are written while files are processed.<p>
+ * The messages are queued and printed by a background thread, so the workers do not wait for
+ * the console. The order of the messages is kept. If the queue is full, the caller waits (no
+ * message is lost). {@link #flush()} waits until all queued messages are printed; it is called at the
+ * end of a run, before the final messages are printed with <code>System.out</code>.
+ *
+ * @author Bruno Kaiser
+ * @version $Id$
+ */
+public final class AsyncLog {
+	private static final int QUEUE_SIZE = 10000;
+	private static final BlockingQueue<String> queue = new ArrayBlockingQueue<String>(QUEUE_SIZE);
+	private static final Object lock = new Object();
+	private static long queued = 0;
+	private static long printed = 0;
+	private static Thread writer = null;
+
+	private AsyncLog() {
+	}
+
+	/**
+	 * Queues a message.
+	 * @param message	the line to print
+	 */
+	public static void println(String message) {
+		synchronized (lock) {
+			if (writer == null) {
+				writer = new Thread("renfiles-log") {
+					public void run() {
+						drain();
+					}
+				};
+				writer.setDaemon(true);
+				writer.start();
+			}
+			queued++;
+		}
+		try {
+			queue.put(message);
+		}
+		catch (InterruptedException _ex) {
+			Thread.currentThread().interrupt();
+			System.out.println(message);
+			markPrinted(1);
+		}
+	}
+
+	private static void drain() {
+		List<String> _batch = new ArrayList<String>();
+		while (true) {
+			try {
+				_batch.add(queue.take());
+			}
+			catch (InterruptedException _ex) {
+				return;
+			}
+			queue.drainTo(_batch);
+			StringBuilder _sb = new StringBuilder();
+			for (String _m : _batch) {
+				_sb.append(_m).append('\n');
+			}
+			System.out.print(_sb);
+			System.out.flush();
+			markPrinted(_batch.size());
+			_batch.clear();
+		}
+	}
+
+	private static void markPrinted(int count) {
+		synchronized (lock) {
+			printed += count;
+			lock.notifyAll();
+		}
+	}
+
+	/**
+	 * Waits until all queued messages are printed.
+	 */
+	public static void flush() {
+		synchronized (lock) {
+			while (printed < queued) {
+				try {
+					lock.wait();
+				}
+				catch (InterruptedException _ex) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+}
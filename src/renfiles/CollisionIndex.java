@@ -0,0 +1,212 @@
+package renfiles;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Index of the names in the destination directories, to detect name collisions before a file is moved.<p>
+ * Without it, a move onto an existing name silently replaces the archived file (Linux) or fails (Mac OS/X).
+ * The names of a destination directory are read with a single listing the first time a file is classified
+ * into it (no stat per file), and each planned destination name is reserved in the index, so that two new files
+ * with the same destination collide as well. A collision is then resolved by the configured policy:
+ * <ul>
+ * <li>suffix: the new file gets the first free name <code>name_1.ext</code>, <code>name_2.ext</code>, ...
+ * <li>skip: the new file stays in the source directory
+ * <li>version: the new file replaces the archived one, which is kept as <code>name~1.ext</code>, <code>name~2.ext</code>, ...
+ * <li>replaceIfLarger: the new file replaces the archived one if it is larger, otherwise it is skipped
+ * </ul>
+ * version and replaceIfLarger only apply to files that were archived before the run; a collision of two
+ * new files is resolved with a suffix (skip: the second file is skipped).
+ * The names of a move that is not executed are released again, see {@link #release(FileMove)}; a long-running
+ * daemon lists the directories again for each batch, see {@link #refresh()}.
+ * On Mac OS/X, names are compared ignoring case, like the file system does.
+ *
+ * @author Bruno Kaiser
+ * @version $Id$
+ */
+public class CollisionIndex {
+	/** how a collision is resolved */
+	public enum Policy {
+		SUFFIX, SKIP, VERSION, REPLACE_IF_LARGER;
+
+		/**
+		 * Parses a policy name of the configuration, e.g. replaceIfLarger.
+		 * @param name		the name of the policy
+		 * @return			the policy
+		 * @throws IllegalArgumentException		if there is no such policy
+		 */
+		public static Policy parse(String name) {
+			return valueOf(name.trim().replaceAll("([a-z])([A-Z])", "$1_$2").toUpperCase());
+		}
+	}
+
+	private final Policy policy;
+	private final boolean ignoreCase;
+	/** destination directory -> name (in lower case if ignoreCase) -> true if the file existed before the run */
+	private final ConcurrentMap<String, ConcurrentMap<String, Boolean>> directories = new ConcurrentHashMap<String, ConcurrentMap<String, Boolean>>();
+
+	private final AtomicInteger collisions = new AtomicInteger();
+	private final AtomicInteger suffixed = new AtomicInteger();
+	private final AtomicInteger skipped = new AtomicInteger();
+	private final AtomicInteger versioned = new AtomicInteger();
+	private final AtomicInteger replaced = new AtomicInteger();
+
+	/**
+	 * Constructor.
+	 * @param policy	how collisions are resolved
+	 */
+	public CollisionIndex(Policy policy) {
+		this.policy = policy;
+		this.ignoreCase = System.getProperty("os.name", "").startsWith("Mac");
+	}
+
+	/**
+	 * Reserves the destination name of a planned move and resolves a collision.
+	 *
+	 * @param m		the planned move
+	 * @return		the move to execute (possibly with another destination name), or null if the file is to be skipped
+	 * @throws IOException	if the destination directory can not be listed
+	 */
+	public FileMove resolve(FileMove m) throws IOException {
+		ConcurrentMap<String, Boolean> _names = getNames(m.getDestDirName());
+		String _name = m.getDestination().getName();
+		Boolean _existing = _names.putIfAbsent(key(_name), Boolean.FALSE);
+		if (_existing == null) {
+			return m;
+		}
+		collisions.incrementAndGet();
+		Policy _policy = policy;
+		if ((_policy == Policy.VERSION || _policy == Policy.REPLACE_IF_LARGER)
+				&& (_existing == Boolean.FALSE || _names.replace(key(_name), Boolean.TRUE, Boolean.FALSE) == false)) {
+			_policy = Policy.SUFFIX;  // another new file takes this name, it is not in the archive yet
+		}
+		switch (_policy) {
+		case SKIP:
+			skipped.incrementAndGet();
+			return null;
+		case REPLACE_IF_LARGER:
+			if (m.getSource().length() > m.getDestination().length()) {
+				replaced.incrementAndGet();
+				return m;
+			}
+			_names.put(key(_name), Boolean.TRUE);  // the archived file stays
+			skipped.incrementAndGet();
+			return null;
+		case VERSION:
+			versioned.incrementAndGet();
+			return m.keepingVersion(reserve(_names, _name, "~"));
+		default:
+			suffixed.incrementAndGet();
+			return m.withDestFileName(reserve(_names, _name, "_"));
+		}
+	}
+
+	/**
+	 * Releases the names that were reserved for a move which was not executed (e.g. it failed or the file
+	 * is a duplicate), so that the file gets the same name when it is converted again. The names are set
+	 * to the state of the destination directory.
+	 * @param m		the move returned by {@link #resolve(FileMove)}
+	 */
+	public void release(FileMove m) {
+		ConcurrentMap<String, Boolean> _names = directories.get(m.getDestDirName());
+		if (_names == null) {
+			return;
+		}
+		update(_names, m.getDestination());
+		if (m.getVersionName() != null) {
+			update(_names, getVersionFile(m));
+		}
+	}
+
+	private void update(ConcurrentMap<String, Boolean> names, File f) {
+		if (f.exists()) {
+			names.put(key(f.getName()), Boolean.TRUE);
+		}
+		else {
+			names.remove(key(f.getName()));
+		}
+	}
+
+	/**
+	 * Forgets the names of all directories; they are listed again on next use. Called by the daemon
+	 * before each batch, so that the files which were archived since the last batch count as archived
+	 * (version, replaceIfLarger) and files that were removed from the archive do not collide any more.
+	 */
+	public void refresh() {
+		directories.clear();
+	}
+
+	/**
+	 * Reserves the first free name with a numbered suffix.
+	 */
+	private String reserve(ConcurrentMap<String, Boolean> names, String name, String separator) {
+		int _dot = name.lastIndexOf('.');
+		String _base = _dot > 0 ? name.substring(0, _dot) : name;
+		String _ext = _dot > 0 ? name.substring(_dot) : "";
+		for (int i = 1; ; i++) {
+			String _candidate = _base + separator + i + _ext;
+			if (names.putIfAbsent(key(_candidate), Boolean.FALSE) == null) {
+				return _candidate;
+			}
+		}
+	}
+
+	private String key(String name) {
+		return ignoreCase ? name.toLowerCase() : name;
+	}
+
+	/**
+	 * Returns the names of a destination directory; the directory is listed on first use.
+	 */
+	private ConcurrentMap<String, Boolean> getNames(String dirName) throws IOException {
+		ConcurrentMap<String, Boolean> _names = directories.get(dirName);
+		if (_names != null) {
+			return _names;
+		}
+		_names = new ConcurrentHashMap<String, Boolean>();
+		Path _dir = Paths.get(dirName);
+		try (DirectoryStream<Path> _stream = Files.newDirectoryStream(_dir)) {
+			for (Path _p : _stream) {
+				_names.put(key(_p.getFileName().toString()), Boolean.TRUE);
+			}
+		}
+		catch (NoSuchFileException _ex) {
+			// not created yet, i.e. empty
+		}
+		ConcurrentMap<String, Boolean> _other = directories.putIfAbsent(dirName, _names);
+		return _other != null ? _other : _names;
+	}
+
+	/**
+	 * @return	the number of collisions so far
+	 */
+	public int getCollisions() {
+		return collisions.get();
+	}
+
+	/**
+	 * @return	a one-line summary of the collisions
+	 */
+	public String getSummary() {
+		return "policy=" + policy + ", directories=" + directories.size() + ", collisions=" + collisions.get()
+				+ ", suffixed=" + suffixed.get() + ", skipped=" + skipped.get() + ", versioned=" + versioned.get()
+				+ ", replaced=" + replaced.get();
+	}
+
+	/**
+	 * Returns the path under which an archived file is kept when it is replaced by a new version.
+	 * @param m		a move with {@link FileMove#getVersionName()}
+	 * @return		the new path of the archived file
+	 */
+	public static File getVersionFile(FileMove m) {
+		return new File(m.getDestDirName(), m.getVersionName());
+	}
+}
@@ -0,0 +1,359 @@
+package renfiles;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Persistent index of the files in the destination archive, to recognize incoming files
+ * that are already archived (e.g. the same epaper downloaded twice under different names).<p>
+ * Files are compared in three steps, each one only if the previous one matched:
+ * <ol>
+ * <li>the size (from the index, no file access)
+ * <li>the partial hash: SHA-256 of the first and the last {@link #PARTIAL_BYTES} bytes
+ * <li>the full hash: SHA-256 of the whole content
+ * </ol>
+ * The hashes are computed lazily (only when needed) with memory-mapped reads and stored in the index,
+ * so a multi-GB video is read completely only if another file of exactly the same size
+ * and with the same head and tail exists. The class is thread-safe; incoming files are hashed
+ * by the calling threads, i.e. in parallel by the move workers of the pipeline, the {@link MountExecutor}
+ * (virtualThreadMode) and the {@link MoveScheduler}. A plain sequential run looks up one file after the other,
+ * like it moves them: an incoming file has candidates only if an archived file has exactly its size, which
+ * is rare, so a pool per batch would mostly hash nothing while it delays the moves behind the slowest file.<p>
+ * The index is built by walking the archive if the index file does not exist (delete it to rebuild the index),
+ * and is kept up to date with the files moved into the archive. Entries of files that were changed or removed
+ * are dropped when they are found. Record format: <code>size mtime partialHash fullHash path</code>, separated
+ * by tabs; a hash that is not computed yet is empty.
+ *
+ * @author Bruno Kaiser
+ * @version $Id$
+ */
+public class DedupIndex {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	/** number of bytes at the head and at the tail of a file that make up the partial hash */
+	private static final int PARTIAL_BYTES = 64 * 1024;
+	/** size of the memory-mapped window for the full hash */
+	private static final long MAP_WINDOW = 256L * 1024 * 1024;
+
+	private final File file;
+	private final Map<Long, List<Entry>> bySize = new HashMap<Long, List<Entry>>();
+	/** hashes of incoming files, kept until the file is added to the index under its new path */
+	private final Map<String, Entry> incoming = new ConcurrentHashMap<String, Entry>();
+	private boolean changed = false;
+
+	private final AtomicInteger lookups = new AtomicInteger();
+	private final AtomicInteger duplicates = new AtomicInteger();
+	private final AtomicInteger partialHashes = new AtomicInteger();
+	private final AtomicInteger fullHashes = new AtomicInteger();
+	private final AtomicLong bytesHashed = new AtomicLong();
+
+	/**
+	 * Constructor; loads the index file, or builds the index by walking the archive directories.
+	 *
+	 * @param file			the index file
+	 * @param archiveDirs	the root directories of the archive
+	 * @throws IOException
+	 */
+	public DedupIndex(File file, List<File> archiveDirs) throws IOException {
+		this.file = file;
+		if (file.exists()) {
+			load();
+		}
+		else {
+			for (File _dir : archiveDirs) {
+				if (_dir.isDirectory()) {
+					walk(_dir.toPath());
+				}
+			}
+			changed = true;
+		}
+	}
+
+	private void load() throws IOException {
+		try (BufferedReader _in = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8))) {
+			String _line;
+			while ((_line = _in.readLine()) != null) {
+				String[] _f = _line.split("\t", 5);
+				if (_f.length != 5) {
+					continue;  // damaged record
+				}
+				try {
+					Entry _e = new Entry(_f[4], Long.parseLong(_f[0]), Long.parseLong(_f[1]));
+					_e.partialHash = _f[2].isEmpty() ? null : _f[2];
+					_e.fullHash = _f[3].isEmpty() ? null : _f[3];
+					put(_e);
+				}
+				catch (NumberFormatException _ex) {
+					// ignore a damaged record
+				}
+			}
+		}
+	}
+
+	private void walk(Path root) throws IOException {
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path p, BasicFileAttributes attrs) {
+				if (attrs.isRegularFile() && attrs.size() > 0 && p.getFileName().toString().startsWith(".") == false) {
+					put(new Entry(p.toAbsolutePath().toString(), attrs.size(), attrs.lastModifiedTime().toMillis()));
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path p, IOException exc) {
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	private synchronized void put(Entry e) {
+		List<Entry> _l = bySize.get(e.size);
+		if (_l == null) {
+			_l = new ArrayList<Entry>(1);
+			bySize.put(e.size, _l);
+		}
+		for (Iterator<Entry> _it = _l.iterator(); _it.hasNext();) {
+			if (_it.next().path.equals(e.path)) {
+				_it.remove();
+			}
+		}
+		_l.add(e);
+	}
+
+	/**
+	 * Looks for an archived file with the same content as an incoming file.
+	 *
+	 * @param p		the incoming file; directories are never duplicates
+	 * @return		the archived file or null if the content is not archived yet
+	 * @throws IOException	if the incoming file can not be read
+	 */
+	public Path findDuplicate(Path p) throws IOException {
+		BasicFileAttributes _attrs = Files.readAttributes(p, BasicFileAttributes.class);
+		if (_attrs.isRegularFile() == false || _attrs.size() == 0) {
+			return null;
+		}
+		lookups.incrementAndGet();
+		List<Entry> _candidates;
+		synchronized (this) {
+			List<Entry> _l = bySize.get(_attrs.size());
+			if (_l == null) {
+				return null;
+			}
+			_candidates = new ArrayList<Entry>(_l);
+		}
+		Entry _in = new Entry(p.toAbsolutePath().toString(), _attrs.size(), _attrs.lastModifiedTime().toMillis());
+		incoming.put(_in.path, _in);
+		for (Entry _c : _candidates) {
+			Path _archived = new File(_c.path).toPath();
+			if (_archived.equals(p.toAbsolutePath()) || isCurrent(_c, _archived) == false) {
+				continue;
+			}
+			if (getPartialHash(_in).equals(getPartialHash(_c)) && getFullHash(_in).equals(getFullHash(_c))) {
+				duplicates.incrementAndGet();
+				return _archived;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Tests if an entry still describes the file; if not, the entry is removed
+	 * (and replaced by a new one without hashes if the file was changed).
+	 */
+	private boolean isCurrent(Entry e, Path p) {
+		BasicFileAttributes _attrs = null;
+		try {
+			_attrs = Files.readAttributes(p, BasicFileAttributes.class);
+			if (_attrs.size() == e.size && _attrs.lastModifiedTime().toMillis() == e.mtime) {
+				return true;
+			}
+		}
+		catch (IOException _ex) {
+			// removed
+		}
+		synchronized (this) {
+			List<Entry> _l = bySize.get(e.size);
+			if (_l != null) {
+				_l.remove(e);
+			}
+			if (_attrs != null && _attrs.isRegularFile() && _attrs.size() > 0) {
+				put(new Entry(e.path, _attrs.size(), _attrs.lastModifiedTime().toMillis()));
+			}
+			changed = true;
+		}
+		return false;
+	}
+
+	/**
+	 * Adds a file that was moved into the archive; hashes computed for it by
+	 * {@link #findDuplicate(Path)} under its former path are kept.
+	 *
+	 * @param archived	the file in the archive
+	 * @param source	the former path of the file
+	 * @throws IOException
+	 */
+	public void add(Path archived, Path source) throws IOException {
+		BasicFileAttributes _attrs = Files.readAttributes(archived, BasicFileAttributes.class);
+		Entry _former = incoming.remove(source.toAbsolutePath().toString());
+		if (_attrs.isRegularFile() == false || _attrs.size() == 0) {
+			return;
+		}
+		Entry _e = new Entry(archived.toAbsolutePath().toString(), _attrs.size(), _attrs.lastModifiedTime().toMillis());
+		if (_former != null && _former.size == _e.size) {
+			_e.partialHash = _former.partialHash;
+			_e.fullHash = _former.fullHash;
+		}
+		put(_e);
+		synchronized (this) {
+			changed = true;
+		}
+	}
+
+	/**
+	 * Forgets the hashes of an incoming file that was not moved into the archive.
+	 *
+	 * @param source	the incoming file
+	 */
+	public void forget(Path source) {
+		incoming.remove(source.toAbsolutePath().toString());
+	}
+
+	private String getPartialHash(Entry e) throws IOException {
+		synchronized (e) {
+			if (e.partialHash == null) {
+				e.partialHash = hash(new File(e.path).toPath(), true);
+				partialHashes.incrementAndGet();
+				markChanged();
+			}
+			return e.partialHash;
+		}
+	}
+
+	private String getFullHash(Entry e) throws IOException {
+		synchronized (e) {
+			if (e.fullHash == null && e.size <= 2 * PARTIAL_BYTES) {  // the partial hash covers the whole file
+				e.fullHash = getPartialHash(e);
+			}
+			else if (e.fullHash == null) {
+				e.fullHash = hash(new File(e.path).toPath(), false);
+				fullHashes.incrementAndGet();
+				markChanged();
+			}
+			return e.fullHash;
+		}
+	}
+
+	private synchronized void markChanged() {
+		changed = true;
+	}
+
+	/**
+	 * Computes the SHA-256 of a file (or of its head and tail) with memory-mapped reads.
+	 */
+	private String hash(Path p, boolean partial) throws IOException {
+		MessageDigest _md;
+		try {
+			_md = MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException _ex) {
+			throw new IOException(_ex);
+		}
+		try (FileChannel _ch = FileChannel.open(p, StandardOpenOption.READ)) {
+			long _size = _ch.size();
+			if (partial && _size > 2 * PARTIAL_BYTES) {
+				update(_md, _ch, 0, PARTIAL_BYTES);
+				update(_md, _ch, _size - PARTIAL_BYTES, PARTIAL_BYTES);
+			}
+			else {
+				for (long _pos = 0; _pos < _size; _pos += MAP_WINDOW) {
+					update(_md, _ch, _pos, Math.min(MAP_WINDOW, _size - _pos));
+				}
+			}
+		}
+		StringBuilder _sb = new StringBuilder(64);
+		for (byte _b : _md.digest()) {
+			_sb.append(Character.forDigit((_b >> 4) & 0xf, 16)).append(Character.forDigit(_b & 0xf, 16));
+		}
+		return _sb.toString();
+	}
+
+	private void update(MessageDigest md, FileChannel ch, long pos, long len) throws IOException {
+		MappedByteBuffer _buf = ch.map(FileChannel.MapMode.READ_ONLY, pos, len);
+		md.update(_buf);
+		bytesHashed.addAndGet(len);
+	}
+
+	/**
+	 * Writes the index file if the index was changed.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void save() throws IOException {
+		if (changed == false) {
+			return;
+		}
+		File _tmp = new File(file.getPath() + ".tmp");
+		try (Writer _out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(_tmp), UTF8))) {
+			for (List<Entry> _l : bySize.values()) {
+				for (Entry _e : _l) {
+					_out.write(_e.size + "\t" + _e.mtime + "\t" + (_e.partialHash == null ? "" : _e.partialHash) + "\t"
+							+ (_e.fullHash == null ? "" : _e.fullHash) + "\t" + _e.path + "\n");
+				}
+			}
+		}
+		Files.move(_tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		changed = false;
+	}
+
+	/**
+	 * @return	a one-line summary of the lookups done so far
+	 */
+	public String getSummary() {
+		return "lookups=" + lookups.get() + ", duplicates=" + duplicates.get() + ", partialHashes=" + partialHashes.get()
+				+ ", fullHashes=" + fullHashes.get() + ", bytesHashed=" + bytesHashed.get();
+	}
+
+	/**
+	 * A file in the archive (or an incoming file).
+	 */
+	private static class Entry {
+		private final String path;
+		private final long size;
+		private final long mtime;
+		private String partialHash = null;
+		private String fullHash = null;
+
+		Entry(String path, long size, long mtime) {
+			this.path = path;
+			this.size = size;
+			this.mtime = mtime;
+		}
+	}
+}
@@ -0,0 +1,116 @@
+package renfiles;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Cache of the destination directories, shared by all movers.<p>
+ * The same few dozen destination directories are used for thousands of files. Instead of calling
+ * <code>mkdirs()</code> (one stat per path element) and <code>getCanonicalPath()</code> (a realpath) for
+ * each file, the existence and the canonical path of each directory are determined once and kept in a
+ * concurrent map. The known destinations are resolved at the start of a run by {@link #prepare(Collection)};
+ * a directory is only created when the first file is moved into it, so no empty directories are left behind.
+ * If a move into a cached directory fails, the entry is invalidated with {@link #invalidate(String)} and
+ * resolved again on the next use, e.g. after somebody removed the directory during a daemon run.
+ *
+ * @author Bruno Kaiser
+ * @version $Id$
+ */
+public class DestinationDirectories {
+	private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+	private final AtomicInteger hits = new AtomicInteger();
+	private final AtomicInteger created = new AtomicInteger();
+	private final AtomicInteger invalidated = new AtomicInteger();
+
+	/**
+	 * Determines which of the given directories exist; these are not touched again when files are moved into them.
+	 * @param dirNames	the destination directories that are known before the run, e.g. those of the rules
+	 */
+	public void prepare(Collection<String> dirNames) {
+		for (String _name : dirNames) {
+			Entry _e = getEntry(_name);
+			_e.exists = Files.isDirectory(Paths.get(_name));
+		}
+	}
+
+	/**
+	 * Creates a directory (and its parents) unless it is known to exist.
+	 * @param dirName	the destination directory
+	 * @throws IOException	if the directory can not be created, e.g. because a file with this name exists
+	 */
+	public void ensure(String dirName) throws IOException {
+		Entry _e = getEntry(dirName);
+		if (_e.exists) {
+			hits.incrementAndGet();
+			return;
+		}
+		Files.createDirectories(Paths.get(dirName));
+		_e.exists = true;
+		created.incrementAndGet();
+	}
+
+	/**
+	 * Returns the canonical path of a directory; it is determined only once.
+	 * @param dirName	the destination directory
+	 * @return			the canonical path, or the absolute path if it can not be determined
+	 */
+	public String getCanonicalPath(String dirName) {
+		Entry _e = getEntry(dirName);
+		String _canonical = _e.canonicalPath;
+		if (_canonical == null) {
+			File _dir = new File(dirName);
+			try {
+				_canonical = _dir.getCanonicalPath();
+			}
+			catch (IOException _ex) {
+				_canonical = _dir.getAbsolutePath();
+			}
+			_e.canonicalPath = _canonical;
+		}
+		return _canonical;
+	}
+
+	/**
+	 * Forgets what is known about a directory, e.g. after a move into it failed.
+	 * @param dirName	the destination directory
+	 */
+	public void invalidate(String dirName) {
+		if (entries.remove(dirName) != null) {
+			invalidated.incrementAndGet();
+		}
+	}
+
+	private Entry getEntry(String dirName) {
+		Entry _e = entries.get(dirName);
+		if (_e == null) {
+			Entry _new = new Entry();
+			_e = entries.putIfAbsent(dirName, _new);
+			if (_e == null) {
+				_e = _new;
+			}
+		}
+		return _e;
+	}
+
+	/**
+	 * @return	a one-line summary of the cache
+	 */
+	public String getSummary() {
+		return "directories=" + entries.size() + ", hits=" + hits.get() + ", created=" + created.get() + ", invalidated=" + invalidated.get();
+	}
+
+	/**
+	 * What is known about a directory.
+	 */
+	private static class Entry {
+		private volatile boolean exists = false;
+		private volatile String canonicalPath = null;
+	}
+}
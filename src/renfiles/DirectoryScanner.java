@@ -0,0 +1,84 @@
+package renfiles;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Streaming directory scanner.<p>
+ * In contrast to <code>File.listFiles()</code>, the directory is never materialized
+ * as an array: each entry is passed to the {@link Visitor} as soon as it is read from
+ * the directory, together with its attributes. The name filter is applied before any
+ * attributes are read, so entries that do not match cost no additional system call.
+ * The memory used is independent of the size of the directory.
+ *
+ * @author Bruno Kaiser
+ * @version $Id$
+ */
+public class DirectoryScanner {
+	/**
+	 * Receives the entries of a scan.
+	 */
+	public interface Visitor {
+		/**
+		 * Handles an entry.
+		 * @param p			the entry
+		 * @param attrs		the attributes of the entry
+		 */
+		void visit(Path p, BasicFileAttributes attrs) throws IOException, InterruptedException;
+	}
+
+	/** which kind of entries to pass to the visitor */
+	public enum Type {
+		FILES, DIRECTORIES, ALL
+	}
+
+	private DirectoryScanner() {
+	}
+
+	/**
+	 * Tests if an entry is of a certain type.
+	 * @param type		the type
+	 * @param attrs		the attributes of the entry
+	 * @return			true if the entry matches
+	 */
+	public static boolean matches(Type type, BasicFileAttributes attrs) {
+		switch (type) {
+		case FILES:
+			return attrs.isRegularFile();
+		case DIRECTORIES:
+			return attrs.isDirectory();
+		default:
+			return true;
+		}
+	}
+
+	/**
+	 * Scans the entries of a single directory.
+	 *
+	 * @param dir		the directory to scan
+	 * @param filter	selects the entries by name, e.g. a {@link RenameFileFilter}
+	 * @param type		only entries of this type are passed to the visitor
+	 * @param visitor	receives the entries
+	 * @throws IOException	if the directory can not be read
+	 * @throws InterruptedException
+	 */
+	public static void scan(Path dir, DirectoryStream.Filter<Path> filter, Type type, Visitor visitor) throws IOException, InterruptedException {
+		try (DirectoryStream<Path> _stream = Files.newDirectoryStream(dir, filter)) {
+			for (Path _p : _stream) {
+				BasicFileAttributes _attrs;
+				try {
+					_attrs = Files.readAttributes(_p, BasicFileAttributes.class);
+				}
+				catch (IOException _ex) { // removed in the meantime or dangling link
+					continue;
+				}
+				if (matches(type, _attrs)) {
+					visitor.visit(_p, _attrs);
+				}
+			}
+		}
+	}
+}
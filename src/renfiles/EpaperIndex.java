@@ -0,0 +1,365 @@
+package renfiles;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistent index of the issues of the daily news epapers in the archive, to find missing issues.<p>
+ * The archive already encodes one date per issue, e.g. <code>news/nzz/20131214nzz.pdf</code>. For each
+ * publication, the index keeps a bitmap of day numbers (days since 1900-01-01), i.e. 365 bits per year,
+ * so a report over all publications and decades is answered without any file access. A publication has a
+ * schedule, the days of the week it appears (e.g. NZZS only on Sundays); a day of the schedule without an
+ * issue is reported as missing, from the first archived issue on (holidays without an issue are reported too).<p>
+ * The index is built by listing the publication directories once if the index file does not exist (delete it
+ * to rebuild the index), and is kept up to date with the files moved into the archive, see {@link #add(File)}.
+ * Record format: <code>name dir postfix days</code>, separated by tabs; days is a comma-separated list of
+ * dates and date ranges, e.g. <code>20130101-20131230,20140102</code>.
+ *
+ * @author Bruno Kaiser
+ * @version $Id$
+ */
+public class EpaperIndex {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String[] WEEKDAYS = { "Sun", "Mon", "Tue", "Wed", "Thu", "Fri", "Sat" };
+
+	private final File file;
+	private final List<Publication> publications;
+	/** publication directory -> publications in it */
+	private final Map<String, List<Publication>> byDir = new HashMap<String, List<Publication>>();
+	private boolean changed = false;
+	private int added = 0;
+
+	/**
+	 * A daily or weekly publication.
+	 */
+	public static class Publication {
+		private final String name;
+		private final String dir;
+		private final String postfix;
+		/** days of the week it appears; bit 0 is Sunday */
+		private final int weekdays;
+		private final BitSet days = new BitSet();
+
+		/**
+		 * Constructor.
+		 * @param name		the name in the reports, e.g. nzz
+		 * @param dir		the archive directory of the issues
+		 * @param postfix	the name of an issue after its date yyyyMMdd, e.g. nzz.pdf
+		 * @param weekdays	the days of the week it appears, bit 0 is Sunday
+		 */
+		public Publication(String name, String dir, String postfix, int weekdays) {
+			this.name = name;
+			this.dir = dir;
+			this.postfix = postfix;
+			this.weekdays = weekdays;
+		}
+
+		/**
+		 * @return	the name in the reports
+		 */
+		public String getName() {
+			return name;
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+
+	/**
+	 * Constructor; loads the index file, or builds the index by listing the publication directories.
+	 *
+	 * @param file			the index file
+	 * @param publications	the publications to index
+	 * @throws IOException
+	 */
+	public EpaperIndex(File file, List<Publication> publications) throws IOException {
+		this.file = file;
+		this.publications = publications;
+		for (Publication _p : publications) {
+			String _dir = new File(_p.dir).getPath();
+			List<Publication> _l = byDir.get(_dir);
+			if (_l == null) {
+				_l = new ArrayList<Publication>(1);
+				byDir.put(_dir, _l);
+			}
+			_l.add(_p);
+		}
+		List<Publication> _missing = new ArrayList<Publication>(publications);
+		if (file.exists()) {
+			_missing.removeAll(load());
+		}
+		for (Publication _p : _missing) {  // new publication or different directory: list it once
+			scan(_p);
+			changed = true;
+		}
+	}
+
+	/**
+	 * Creates the publications out of the rules for dated epapers and their schedules.
+	 *
+	 * @param rules			the rules, see {@link RuleTable#getRules()}
+	 * @param destDirName	the root of the archive
+	 * @param schedules		comma-separated list of name=weekdays, e.g. <code>nzz=Mon-Sat,nzzs=Sun</code>;
+	 * 						the name is the last element of the destination directory of a rule
+	 * @return				the publications that have a rule and a schedule
+	 * @throws IllegalArgumentException		if a schedule is invalid
+	 */
+	public static List<Publication> createPublications(List<RenameRule> rules, String destDirName, String schedules) {
+		Map<String, Integer> _schedules = new HashMap<String, Integer>();
+		for (String _s : schedules.split(",")) {
+			int _eq = _s.indexOf('=');
+			if (_eq > 0) {
+				_schedules.put(_s.substring(0, _eq).trim(), parseWeekdays(_s.substring(_eq + 1).trim()));
+			}
+		}
+		List<Publication> _result = new ArrayList<Publication>();
+		for (RenameRule _r : rules) {
+			if (_r.getKind() == RenameRule.Kind.DATED || _r.getKind() == RenameRule.Kind.DATED_POSTFIX
+					|| _r.getDateLayout() == RenameRule.DateLayout.YYYYMM || _r.getDateLayout() == RenameRule.DateLayout.KEEP) {
+				continue;  // no daily issues
+			}
+			String _subDir = _r.getDestSubDir();
+			String _name = _subDir.substring(_subDir.lastIndexOf('/') + 1);
+			Integer _weekdays = _schedules.remove(_name);
+			if (_weekdays != null) {
+				_result.add(new Publication(_name, _r.buildDestDirName(destDirName), _r.getPostfix(), _weekdays));
+			}
+		}
+		if (_schedules.isEmpty() == false) {
+			throw new IllegalArgumentException("no epaper rule for " + _schedules.keySet());
+		}
+		return _result;
+	}
+
+	/**
+	 * Parses the days of the week, e.g. Mon-Sat, Sun or Mon+Thu.
+	 * @return	the days, bit 0 is Sunday
+	 */
+	private static int parseWeekdays(String s) {
+		int _result = 0;
+		for (String _part : s.split("\\+")) {
+			int _dash = _part.indexOf('-');
+			int _from = parseWeekday(_dash > 0 ? _part.substring(0, _dash) : _part);
+			int _to = _dash > 0 ? parseWeekday(_part.substring(_dash + 1)) : _from;
+			for (int i = _from; ; i = (i + 1) % 7) {
+				_result |= 1 << i;
+				if (i == _to) {
+					break;
+				}
+			}
+		}
+		return _result;
+	}
+
+	private static int parseWeekday(String name) {
+		for (int i = 0; i < WEEKDAYS.length; i++) {
+			if (WEEKDAYS[i].equalsIgnoreCase(name.trim())) {
+				return i;
+			}
+		}
+		throw new IllegalArgumentException("unknown day of the week " + name);
+	}
+
+	/**
+	 * Adds a file that was moved into the archive, if it is an issue of a publication.
+	 * @param f		the file in the archive
+	 * @return		true if it is an issue
+	 */
+	public synchronized boolean add(File f) {
+		List<Publication> _l = byDir.get(f.getParent());
+		if (_l == null) {
+			return false;
+		}
+		for (Publication _p : _l) {
+			int _day = parseIssue(_p, f.getName());
+			if (_day >= 0) {
+				if (_p.days.get(_day) == false) {
+					_p.days.set(_day);
+					changed = true;
+					added++;
+				}
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return	the day number of an issue of the publication, or -1 if the name is not the one of an issue
+	 */
+	private static int parseIssue(Publication p, String name) {
+		if (name.length() != 8 + p.postfix.length() || name.endsWith(p.postfix) == false) {
+			return -1;
+		}
+		int _date = LeadingDate.parse(name, 0);
+		if (LeadingDate.getPrecision(_date) != 8) {
+			return -1;
+		}
+		int _day = LeadingDate.toDayNumber(LeadingDate.getDate(_date));
+		return _day >= 0 ? _day : -1;
+	}
+
+	/**
+	 * Lists the directory of a publication and replaces its issues.
+	 */
+	private void scan(Publication p) throws IOException {
+		p.days.clear();
+		try (DirectoryStream<Path> _stream = Files.newDirectoryStream(new File(p.dir).toPath())) {
+			for (Path _f : _stream) {
+				int _day = parseIssue(p, _f.getFileName().toString());
+				if (_day >= 0) {
+					p.days.set(_day);
+				}
+			}
+		}
+		catch (NoSuchFileException _ex) {
+			// no issues yet
+		}
+	}
+
+	/**
+	 * Prints the missing issues of all publications in a period, one line per publication.
+	 *
+	 * @param from		the first day, yyyyMMdd
+	 * @param to		the last day, yyyyMMdd
+	 * @param out		the output
+	 * @return			the number of missing issues
+	 */
+	public synchronized int printGaps(int from, int to, PrintStream out) {
+		int _fromDay = LeadingDate.toDayNumber(from);
+		int _toDay = LeadingDate.toDayNumber(to);
+		if (_fromDay < 0 || _toDay < 0) {
+			throw new IllegalArgumentException("invalid period " + from + " - " + to);
+		}
+		int _total = 0;
+		for (Publication _p : publications) {
+			int _first = _p.days.nextSetBit(0);
+			StringBuilder _missing = new StringBuilder();
+			int _count = 0;
+			for (int _day = Math.max(_fromDay, _first); _first >= 0 && _day <= _toDay; _day++) {
+				if ((_p.weekdays & (1 << weekday(_day))) != 0 && _p.days.get(_day) == false) {
+					_missing.append(_count++ == 0 ? " " : ", ").append(LeadingDate.fromDayNumber(_day));
+				}
+			}
+			int _issues = _first < 0 ? 0 : _p.days.get(_fromDay, _toDay + 1).cardinality();
+			out.println(_p.name + ": " + _issues + " issues, " + _count + " missing" + (_count > 0 ? ":" : "") + _missing);
+			_total += _count;
+		}
+		return _total;
+	}
+
+	/**
+	 * Loads the index file.
+	 * @return	the publications found in the file with the same directory and postfix
+	 */
+	private List<Publication> load() throws IOException {
+		Map<String, Publication> _byName = new HashMap<String, Publication>();
+		for (Publication _p : publications) {
+			_byName.put(_p.name, _p);
+		}
+		List<Publication> _loaded = new ArrayList<Publication>();
+		try (BufferedReader _in = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8))) {
+			String _line;
+			while ((_line = _in.readLine()) != null) {
+				String[] _f = _line.split("\t", 4);
+				if (_f.length != 4) {
+					continue;  // damaged record
+				}
+				Publication _p = _byName.get(_f[0]);
+				if (_p == null || _p.dir.equals(_f[1]) == false || _p.postfix.equals(_f[2]) == false) {
+					changed = true;  // no longer indexed or changed
+					continue;
+				}
+				try {
+					parseDays(_f[3], _p.days);
+					_loaded.add(_p);
+				}
+				catch (NumberFormatException _ex) {
+					_p.days.clear();  // damaged record, scan again
+				}
+			}
+		}
+		return _loaded;
+	}
+
+	private static void parseDays(String s, BitSet days) {
+		for (String _range : s.split(",")) {
+			if (_range.isEmpty()) {
+				continue;
+			}
+			int _dash = _range.indexOf('-');
+			int _from = LeadingDate.toDayNumber(Integer.parseInt(_dash > 0 ? _range.substring(0, _dash) : _range));
+			int _to = _dash > 0 ? LeadingDate.toDayNumber(Integer.parseInt(_range.substring(_dash + 1))) : _from;
+			if (_from < 0 || _to < _from) {
+				throw new NumberFormatException("invalid range " + _range);
+			}
+			days.set(_from, _to + 1);
+		}
+	}
+
+	/**
+	 * Saves the index if it was changed.
+	 * @throws IOException
+	 */
+	public synchronized void save() throws IOException {
+		if (changed == false) {
+			return;
+		}
+		File _tmp = new File(file.getPath() + ".tmp");
+		try (Writer _out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(_tmp), UTF8))) {
+			for (Publication _p : publications) {
+				_out.write(_p.name + "\t" + _p.dir + "\t" + _p.postfix + "\t");
+				String _sep = "";
+				for (int _from = _p.days.nextSetBit(0); _from >= 0; _from = _p.days.nextSetBit(_from + 1)) {
+					int _to = _p.days.nextClearBit(_from) - 1;
+					_out.write(_sep + LeadingDate.fromDayNumber(_from) + (_to > _from ? "-" + LeadingDate.fromDayNumber(_to) : ""));
+					_sep = ",";
+					_from = _to;
+				}
+				_out.write("\n");
+			}
+		}
+		Files.move(_tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		changed = false;
+	}
+
+	/**
+	 * @return	the day of the week of a day number, 0 is Sunday
+	 */
+	private static int weekday(int day) {
+		return (day + 1) % 7;  // 1900-01-01 was a Monday
+	}
+
+	/**
+	 * @return	a one-line summary of the index
+	 */
+	public synchronized String getSummary() {
+		StringBuilder _sb = new StringBuilder("publications=" + publications.size() + ", added=" + added + ", issues=");
+		int _issues = 0;
+		for (Publication _p : publications) {
+			_issues += _p.days.cardinality();
+		}
+		return _sb.append(_issues).toString();
+	}
+}
@@ -0,0 +1,115 @@
+package renfiles;
+
+import java.io.File;
+
+/**
+ * A planned move of a file (or directory) from the source to the destination,
+ * including the finder tags to add afterwards.<p>
+ * FileMoves are the result of the classification and are passed on to the
+ * move and tag stages.
+ *
+ * @author Bruno Kaiser
+ * @version $Id$
+ */
+public class FileMove {
+	private final File source;
+	private final String destDirName;
+	private final File destination;
+	private final String tags;
+	private final String ruleId;
+	private final String versionName;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param source		the file to move
+	 * @param destDirName	the destination directory
+	 * @param destFileName	the name of the file in the destination directory
+	 * @param tags			comma-separated list of finder tags, or null for no tags
+	 * @param ruleId		the name of the rule that classified the file
+	 */
+	public FileMove(File source, String destDirName, String destFileName, String tags, String ruleId) {
+		this(source, destDirName, destFileName, tags, ruleId, null);
+	}
+
+	/**
+	 * Constructor of a move that replaces an existing destination file, which is kept under another name.
+	 *
+	 * @param source		the file to move
+	 * @param destDirName	the destination directory
+	 * @param destFileName	the name of the file in the destination directory
+	 * @param tags			comma-separated list of finder tags, or null for no tags
+	 * @param ruleId		the name of the rule that classified the file
+	 * @param versionName	the name under which the existing destination file is kept, or null to replace it
+	 */
+	public FileMove(File source, String destDirName, String destFileName, String tags, String ruleId, String versionName) {
+		this.source = source;
+		this.destDirName = destDirName;
+		this.destination = new File(destDirName + "/" + destFileName);
+		this.tags = tags;
+		this.ruleId = ruleId;
+		this.versionName = versionName;
+	}
+
+	/**
+	 * @param destFileName	another name of the file in the destination directory
+	 * @return				a copy of this move with the other destination name
+	 */
+	public FileMove withDestFileName(String destFileName) {
+		return new FileMove(source, destDirName, destFileName, tags, ruleId, versionName);
+	}
+
+	/**
+	 * @param name	the name under which the existing destination file is kept
+	 * @return		a copy of this move that keeps the existing destination file
+	 */
+	public FileMove keepingVersion(String name) {
+		return new FileMove(source, destDirName, destination.getName(), tags, ruleId, name);
+	}
+
+	/**
+	 * @return	the move that keeps the existing destination file under the version name, or null if it is replaced
+	 */
+	public FileMove getVersionMove() {
+		return versionName == null ? null : new FileMove(destination, destDirName, versionName, null, ruleId);
+	}
+
+	public File getSource() {
+		return source;
+	}
+
+	public String getDestDirName() {
+		return destDirName;
+	}
+
+	public File getDestination() {
+		return destination;
+	}
+
+	public String getTags() {
+		return tags;
+	}
+
+	/**
+	 * @return	true if finder tags need to be added after the move
+	 */
+	public boolean hasTags() {
+		return tags != null && tags.length() > 0;
+	}
+
+	public String getRuleId() {
+		return ruleId;
+	}
+
+	/**
+	 * @return	the name under which an existing destination file is kept before it is replaced, or null
+	 */
+	public String getVersionName() {
+		return versionName;
+	}
+
+	@Override
+	public String toString() {
+		return source.getName() + " -> " + destination.getPath();
+	}
+}
@@ -0,0 +1,231 @@
+package renfiles;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * Helper to convert finder tags between the comma-separated form used in the rules
+ * (e.g. <code>tFinance,dBill,oZkb</code>) and the binary property list that Mac OS/X stores
+ * in the extended attribute <code>com.apple.metadata:_kMDItemUserTags</code>.<p>
+ * Only the subset of the binary plist format that is needed for tags is supported:
+ * a single array of strings.
+ *
+ * @author Bruno Kaiser
+ * @version $Id$
+ */
+public class FinderTags {
+	/** name of the extended attribute that holds the finder tags */
+	public static final String XATTR_NAME = "com.apple.metadata:_kMDItemUserTags";
+
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+	private static final Charset UTF16 = Charset.forName("UTF-16BE");
+	private static final byte[] MAGIC = "bplist00".getBytes(ASCII);
+
+	private FinderTags() {
+	}
+
+	/**
+	 * Splits a comma-separated list of tags.
+	 * @param tags	comma-separated list of tags, may be null
+	 * @return		the tags, without empty entries and duplicates, sorted
+	 */
+	public static List<String> parse(String tags) {
+		TreeSet<String> _set = new TreeSet<String>();
+		if (tags != null) {
+			for (String _t : tags.split(",")) {
+				_t = _t.trim();
+				if (_t.length() > 0) {
+					_set.add(_t);
+				}
+			}
+		}
+		return new ArrayList<String>(_set);
+	}
+
+	/**
+	 * Builds the normalized comma-separated form of a tag set, i.e. sorted and without duplicates.
+	 * Two tag lists with the same tags always result in the same String.
+	 * @param tags	the tags
+	 * @return		comma-separated list of tags
+	 */
+	public static String join(Collection<String> tags) {
+		StringBuilder _buf = new StringBuilder();
+		for (String _t : new TreeSet<String>(tags)) {
+			if (_buf.length() > 0) {
+				_buf.append(',');
+			}
+			_buf.append(_t);
+		}
+		return _buf.toString();
+	}
+
+	/**
+	 * Encodes a list of tags as a binary property list (array of strings).
+	 * @param tags	the tags
+	 * @return		the content of the extended attribute
+	 */
+	public static byte[] encode(List<String> tags) {
+		int _numObjects = tags.size() + 1;
+		int _refSize = _numObjects < 256 ? 1 : 2;
+		ByteArrayOutputStream _out = new ByteArrayOutputStream();
+		long[] _offsets = new long[_numObjects];
+		_out.write(MAGIC, 0, MAGIC.length);
+
+		// object 0: the array, followed by the references to the strings
+		_offsets[0] = _out.size();
+		writeMarker(_out, 0xA0, tags.size());
+		for (int i = 1; i < _numObjects; i++) {
+			writeInt(_out, i, _refSize);
+		}
+		// objects 1..n: the strings
+		for (int i = 0; i < tags.size(); i++) {
+			_offsets[i + 1] = _out.size();
+			String _t = tags.get(i);
+			if (isAscii(_t)) {
+				writeMarker(_out, 0x50, _t.length());
+				byte[] _b = _t.getBytes(ASCII);
+				_out.write(_b, 0, _b.length);
+			}
+			else {
+				writeMarker(_out, 0x60, _t.length());
+				byte[] _b = _t.getBytes(UTF16);
+				_out.write(_b, 0, _b.length);
+			}
+		}
+		// offset table and trailer
+		long _offsetTableOffset = _out.size();
+		int _offsetSize = _offsetTableOffset < 256 ? 1 : (_offsetTableOffset < 65536 ? 2 : 4);
+		for (int i = 0; i < _numObjects; i++) {
+			writeInt(_out, _offsets[i], _offsetSize);
+		}
+		writeInt(_out, 0, 6);
+		_out.write(_offsetSize);
+		_out.write(_refSize);
+		writeInt(_out, _numObjects, 8);
+		writeInt(_out, 0, 8);
+		writeInt(_out, _offsetTableOffset, 8);
+		return _out.toByteArray();
+	}
+
+	/**
+	 * Decodes the binary property list of the extended attribute.
+	 * @param b		the content of the extended attribute
+	 * @return		the tags, or null if the content is not an array of strings
+	 */
+	public static List<String> decode(byte[] b) {
+		try {
+			if (b.length < MAGIC.length + 32 || !Arrays.equals(Arrays.copyOf(b, MAGIC.length), MAGIC)) {
+				return null;
+			}
+			int _t = b.length - 32;
+			int _offsetSize = b[_t + 6] & 0xFF;
+			int _refSize = b[_t + 7] & 0xFF;
+			int _numObjects = (int) readInt(b, _t + 8, 8);
+			int _top = (int) readInt(b, _t + 16, 8);
+			int _offsetTable = (int) readInt(b, _t + 24, 8);
+			int[] _pos = new int[1];
+
+			_pos[0] = (int) readInt(b, _offsetTable + _top * _offsetSize, _offsetSize);
+			if ((b[_pos[0]] & 0xF0) != 0xA0) {
+				return null;
+			}
+			int _count = readLength(b, _pos);
+			List<String> _tags = new ArrayList<String>(_count);
+			for (int i = 0; i < _count; i++) {
+				int _ref = (int) readInt(b, _pos[0] + i * _refSize, _refSize);
+				if (_ref >= _numObjects) {
+					return null;
+				}
+				int[] _spos = new int[] { (int) readInt(b, _offsetTable + _ref * _offsetSize, _offsetSize) };
+				int _type = b[_spos[0]] & 0xF0;
+				int _len = readLength(b, _spos);
+				if (_type == 0x50) {
+					_tags.add(new String(b, _spos[0], _len, ASCII));
+				}
+				else if (_type == 0x60) {
+					_tags.add(new String(b, _spos[0], _len * 2, UTF16));
+				}
+				else {
+					return null;
+				}
+			}
+			return _tags;
+		}
+		catch (IndexOutOfBoundsException _ex) {
+			return null;
+		}
+	}
+
+	/**
+	 * Removes the finder color suffix (e.g. "\n6") from a tag.
+	 * @param tag	a tag as stored by the finder
+	 * @return		the name of the tag
+	 */
+	public static String stripColor(String tag) {
+		int _nl = tag.indexOf('\n');
+		return _nl < 0 ? tag : tag.substring(0, _nl);
+	}
+
+	private static boolean isAscii(String s) {
+		for (int i = 0; i < s.length(); i++) {
+			if (s.charAt(i) > 0x7F) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static void writeMarker(ByteArrayOutputStream out, int type, int length) {
+		if (length < 15) {
+			out.write(type | length);
+		}
+		else {
+			out.write(type | 0x0F);
+			if (length < 256) {
+				out.write(0x10);
+				writeInt(out, length, 1);
+			}
+			else if (length < 65536) {
+				out.write(0x11);
+				writeInt(out, length, 2);
+			}
+			else {
+				out.write(0x12);
+				writeInt(out, length, 4);
+			}
+		}
+	}
+
+	private static void writeInt(ByteArrayOutputStream out, long value, int size) {
+		for (int i = size - 1; i >= 0; i--) {
+			out.write((int) (value >>> (8 * i)) & 0xFF);
+		}
+	}
+
+	/**
+	 * Reads the length of an object whose marker is at pos[0]; pos[0] is moved to the first byte of its content.
+	 */
+	private static int readLength(byte[] b, int[] pos) {
+		int _len = b[pos[0]] & 0x0F;
+		pos[0]++;
+		if (_len == 0x0F) {
+			int _size = 1 << (b[pos[0]] & 0x0F);
+			_len = (int) readInt(b, pos[0] + 1, _size);
+			pos[0] += 1 + _size;
+		}
+		return _len;
+	}
+
+	private static long readInt(byte[] b, int pos, int size) {
+		long _v = 0;
+		for (int i = 0; i < size; i++) {
+			_v = (_v << 8) | (b[pos + i] & 0xFF);
+		}
+		return _v;
+	}
+}
@@ -0,0 +1,315 @@
+package renfiles;
+
+import java.io.IOException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Parallel traversal of directory trees with a fork-join pool.<p>
+ * A tree like ProSaldoBackup contains thousands of timestamped subdirectories. Listed one after
+ * the other, each of them costs a round-trip on a network mount. Here, the subdirectories of a
+ * directory are listed concurrently: each subdirectory is a task of the pool, and idle workers
+ * steal the tasks of busy ones, so the tree is traversed with the configured parallelism, independent
+ * of its shape.<p>
+ * {@link #scan(Path, int, DirectoryHandler)} passes each directory at a certain depth to a handler
+ * (e.g. a scan of its files); {@link #walkFiles(Path, FileHandler)} passes each file of a tree to a handler,
+ * where the files of a large directory are split into slices for several workers;
+ * {@link #removeEmptyDirectories(Path)} removes the empty directories below a root in post-order,
+ * i.e. a directory is removed after its subdirectories.
+ * The handlers are called concurrently and must be thread-safe.
+ *
+ * @author Bruno Kaiser
+ * @version $Id$
+ */
+public class ForkJoinScanner {
+	/**
+	 * Handles a directory found by the traversal.
+	 */
+	public interface DirectoryHandler {
+		/**
+		 * Handles a directory, e.g. scans its files.
+		 * @param dir	the directory
+		 */
+		void handle(Path dir) throws IOException, InterruptedException;
+	}
+
+	/**
+	 * Handles a file found by the traversal.
+	 */
+	public interface FileHandler {
+		/**
+		 * Handles a file, e.g. reads its extended attributes.
+		 * @param file	the file
+		 */
+		void handle(Path file) throws IOException, InterruptedException;
+	}
+
+	/** number of files of a directory that are handled by one task */
+	private static final int SLICE = 256;
+
+	private final ForkJoinPool pool;
+	private final AtomicInteger directories = new AtomicInteger();
+	private final AtomicInteger removed = new AtomicInteger();
+
+	/**
+	 * Constructor.
+	 * @param parallelism	the number of directories that are listed at the same time
+	 */
+	public ForkJoinScanner(int parallelism) {
+		pool = new ForkJoinPool(Math.max(1, parallelism));
+	}
+
+	/**
+	 * Passes all directories at a certain depth below root to the handler.
+	 * A directory that can not be listed does not stop the traversal of its siblings; the first
+	 * failure is thrown when the whole tree is done.
+	 *
+	 * @param root		the root of the tree
+	 * @param depth		1 to handle root itself, 2 to handle its subdirectories, ...
+	 * @param handler	handles the directories; called concurrently
+	 * @throws IOException	the first failure of the listing or of the handler
+	 * @throws InterruptedException
+	 */
+	public void scan(Path root, int depth, DirectoryHandler handler) throws IOException, InterruptedException {
+		if (depth <= 1) {
+			handler.handle(root);
+			return;
+		}
+		AtomicReference<Exception> _failure = new AtomicReference<Exception>();
+		pool.invoke(new ScanTask(root, depth, handler, _failure));
+		rethrow(_failure.get());
+	}
+
+	/**
+	 * Passes all regular files below root (and in root) to the handler. Symbolic links are not followed.
+	 * A file or directory that fails does not stop the traversal; the first failure is thrown when the whole tree is done.
+	 *
+	 * @param root		the root of the tree
+	 * @param handler	handles the files; called concurrently
+	 * @throws IOException	the first failure of the listing or of the handler
+	 * @throws InterruptedException
+	 */
+	public void walkFiles(Path root, FileHandler handler) throws IOException, InterruptedException {
+		AtomicReference<Exception> _failure = new AtomicReference<Exception>();
+		pool.invoke(new WalkTask(root, handler, _failure));
+		rethrow(_failure.get());
+	}
+
+	/**
+	 * Removes all empty directories below root; root itself is kept. A directory that becomes empty
+	 * because its subdirectories are removed is removed as well. Symbolic links are not followed.
+	 *
+	 * @param root		the root of the tree
+	 * @return			the number of removed directories
+	 * @throws IOException	the first failure, after all other directories are done
+	 * @throws InterruptedException
+	 */
+	public int removeEmptyDirectories(Path root) throws IOException, InterruptedException {
+		AtomicReference<Exception> _failure = new AtomicReference<Exception>();
+		AtomicInteger _removed = new AtomicInteger();
+		pool.invoke(new RemoveTask(root, true, _removed, _failure));
+		removed.addAndGet(_removed.get());
+		rethrow(_failure.get());
+		return _removed.get();
+	}
+
+	private static void rethrow(Exception ex) throws IOException, InterruptedException {
+		if (ex instanceof IOException) {
+			throw (IOException) ex;
+		}
+		if (ex instanceof InterruptedException) {
+			throw (InterruptedException) ex;
+		}
+		if (ex instanceof RuntimeException) {
+			throw (RuntimeException) ex;
+		}
+	}
+
+	/**
+	 * Lists the subdirectories of a directory.
+	 * @param dir			the directory
+	 * @param followLinks	whether a symbolic link to a directory is a subdirectory
+	 */
+	private static List<Path> listDirectories(Path dir, boolean followLinks) throws IOException {
+		List<Path> _dirs = new ArrayList<Path>();
+		try (DirectoryStream<Path> _stream = Files.newDirectoryStream(dir)) {
+			for (Path _p : _stream) {
+				if (followLinks ? Files.isDirectory(_p) : Files.isDirectory(_p, LinkOption.NOFOLLOW_LINKS)) {
+					_dirs.add(_p);
+				}
+			}
+		}
+		return _dirs;
+	}
+
+	/**
+	 * Lists a directory and forks a task for each subdirectory, or handles the directory at the requested depth.
+	 */
+	private class ScanTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final Path dir;
+		private final int depth;
+		private final DirectoryHandler handler;
+		private final AtomicReference<Exception> failure;
+
+		ScanTask(Path dir, int depth, DirectoryHandler handler, AtomicReference<Exception> failure) {
+			this.dir = dir;
+			this.depth = depth;
+			this.handler = handler;
+			this.failure = failure;
+		}
+
+		@Override
+		protected void compute() {
+			directories.incrementAndGet();
+			try {
+				if (depth <= 1) {
+					handler.handle(dir);
+					return;
+				}
+				List<ScanTask> _tasks = new ArrayList<ScanTask>();
+				for (Path _sub : listDirectories(dir, true)) {
+					_tasks.add(new ScanTask(_sub, depth - 1, handler, failure));
+				}
+				invokeAll(_tasks);
+			}
+			catch (Exception _ex) {
+				failure.compareAndSet(null, _ex);
+			}
+		}
+	}
+
+	/**
+	 * Lists a directory, forks a task for each subdirectory and for each slice of its files.
+	 */
+	private class WalkTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final Path dir;
+		private final FileHandler handler;
+		private final AtomicReference<Exception> failure;
+
+		WalkTask(Path dir, FileHandler handler, AtomicReference<Exception> failure) {
+			this.dir = dir;
+			this.handler = handler;
+			this.failure = failure;
+		}
+
+		@Override
+		protected void compute() {
+			directories.incrementAndGet();
+			try {
+				List<RecursiveAction> _tasks = new ArrayList<RecursiveAction>();
+				List<Path> _files = new ArrayList<Path>(SLICE);
+				try (DirectoryStream<Path> _stream = Files.newDirectoryStream(dir)) {
+					for (Path _p : _stream) {
+						if (Files.isDirectory(_p, LinkOption.NOFOLLOW_LINKS)) {
+							_tasks.add(new WalkTask(_p, handler, failure));
+						}
+						else if (Files.isRegularFile(_p, LinkOption.NOFOLLOW_LINKS)) {
+							_files.add(_p);
+							if (_files.size() == SLICE) {
+								_tasks.add(new FilesTask(_files, handler, failure));
+								_files = new ArrayList<Path>(SLICE);
+							}
+						}
+					}
+				}
+				if (_files.isEmpty() == false) {
+					_tasks.add(new FilesTask(_files, handler, failure));
+				}
+				invokeAll(_tasks);
+			}
+			catch (Exception _ex) {
+				failure.compareAndSet(null, _ex);
+			}
+		}
+	}
+
+	/**
+	 * Passes a slice of the files of a directory to the handler.
+	 */
+	private static class FilesTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final List<Path> files;
+		private final FileHandler handler;
+		private final AtomicReference<Exception> failure;
+
+		FilesTask(List<Path> files, FileHandler handler, AtomicReference<Exception> failure) {
+			this.files = files;
+			this.handler = handler;
+			this.failure = failure;
+		}
+
+		@Override
+		protected void compute() {
+			for (Path _f : files) {
+				try {
+					handler.handle(_f);
+				}
+				catch (Exception _ex) {
+					failure.compareAndSet(null, _ex);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Removes the empty subdirectories of a directory, then the directory itself if it is empty.
+	 */
+	private class RemoveTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private final Path dir;
+		private final boolean root;
+		private final AtomicInteger removed;
+		private final AtomicReference<Exception> failure;
+
+		RemoveTask(Path dir, boolean root, AtomicInteger removed, AtomicReference<Exception> failure) {
+			this.dir = dir;
+			this.root = root;
+			this.removed = removed;
+			this.failure = failure;
+		}
+
+		@Override
+		protected void compute() {
+			directories.incrementAndGet();
+			try {
+				List<RemoveTask> _tasks = new ArrayList<RemoveTask>();
+				for (Path _sub : listDirectories(dir, false)) {
+					_tasks.add(new RemoveTask(_sub, false, removed, failure));
+				}
+				invokeAll(_tasks);
+				if (root == false) {
+					Files.delete(dir);
+					removed.incrementAndGet();
+				}
+			}
+			catch (DirectoryNotEmptyException _ex) {
+				// still contains files, keep it
+			}
+			catch (NoSuchFileException _ex) {
+				// removed in the meantime
+			}
+			catch (Exception _ex) {
+				failure.compareAndSet(null, _ex);
+			}
+		}
+	}
+
+	/**
+	 * @return	a one-line summary of the work done so far
+	 */
+	public String getSummary() {
+		return "directories=" + directories.get() + ", removed=" + removed.get() + ", parallelism=" + pool.getParallelism();
+	}
+}
@@ -0,0 +1,268 @@
+package renfiles;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Declarative definition of a conversion job, e.g. the pdf inbox, the Bento backups or a podcast feed.<p>
+ * A job names a directory to scan, the entries to select (extension, files or directories, depth)
+ * and the classifier that determines the destination of each entry. The classifiers are implemented
+ * by {@link RenameFiles}; a job only holds their parameters.<p>
+ * The jobs are defined in the configuration:
+ * <pre>
+ * jobs=pdf,software,bento,shakehands,10vor10,meteo
+ * job.meteo.classifier=podcast
+ * job.meteo.dir=/Users/bruno/Movies/Miro/Meteo
+ * job.meteo.prefix=meteo_
+ * job.meteo.destName=Meteo
+ * job.meteo.template={date}sfdrs{dest}.mp4
+ * job.meteo.tags=dNews
+ * </pre>
+ * A job with the name of a built-in job takes all values that are not configured from the built-in job;
+ * if <code>jobs</code> is not set, the built-in jobs are run.<p>
+ * The destination name of a podcast episode is rendered from the template of its feed, see {@link PodcastTemplate};
+ * the template is compiled once, when the job is created.
+ *
+ * @author Bruno Kaiser
+ * @version $Id$
+ */
+public class Job {
+	/** how the entries of a job are classified */
+	public enum Classifier {
+		/** the {@link RuleTable} of the pdf files */
+		PDF,
+		/** Bento Backup - yyyy-MM-dd.bentodb -> yyyyMMdd.bentodb */
+		BENTO,
+		/** yyyy-MM-dd hh-mm-ss/Business.sdb -> yyyyMMdd.sdb */
+		SHAKEHANDS,
+		/** the file is moved as is */
+		SOFTWARE,
+		/** a podcast episode: the destination name is rendered from the template of the job, e.g. prefix yyyyMMdd ... -> yyyyMMddsfdrs destName.mp4 */
+		PODCAST
+	}
+
+	private final String name;
+	private final Classifier classifier;
+	private final File dir;
+	private final String extension;
+	private final DirectoryScanner.Type type;
+	private final int depth;
+	private final String destDir;
+	private final String prefix;
+	private final String destName;
+	private final String template;
+	private final String tags;
+	private final RenameFileFilter filter;
+	/** PODCAST only: the compiled template */
+	private final PodcastTemplate podcastTemplate;
+	/** PODCAST only: the destination directory of the episodes */
+	private final String podcastDestDir;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param name			a short, unique name of the job (used in messages and metrics)
+	 * @param classifier	determines the destination of an entry
+	 * @param dir			the directory to scan
+	 * @param extension		the extension of the entries to select, e.g. .pdf
+	 * @param type			whether to select files or directories
+	 * @param depth			1 to select the entries of dir, 2 to select the entries of its subdirectories
+	 * @param destDir		the destination directory (PODCAST: the root of all podcasts)
+	 * @param prefix		PODCAST only: the prefix of the file names
+	 * @param destName		PODCAST only: the name of the podcast in the destination
+	 */
+	public Job(String name, Classifier classifier, File dir, String extension, DirectoryScanner.Type type, int depth,
+			String destDir, String prefix, String destName) {
+		this(name, classifier, dir, extension, type, depth, destDir, prefix, destName, null, null);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param name			a short, unique name of the job (used in messages and metrics)
+	 * @param classifier	determines the destination of an entry
+	 * @param dir			the directory to scan
+	 * @param extension		the extension of the entries to select, e.g. .pdf
+	 * @param type			whether to select files or directories
+	 * @param depth			1 to select the entries of dir, 2 to select the entries of its subdirectories
+	 * @param destDir		the destination directory (PODCAST: the root of all podcasts)
+	 * @param prefix		PODCAST only: the prefix of the file names
+	 * @param destName		PODCAST only: the name of the podcast in the destination
+	 * @param template		PODCAST only: the template of the destination names, see {@link PodcastTemplate}
+	 * @param tags			PODCAST only: the finder tags of the episodes, or null
+	 * @throws IllegalArgumentException		if the template is not valid
+	 */
+	public Job(String name, Classifier classifier, File dir, String extension, DirectoryScanner.Type type, int depth,
+			String destDir, String prefix, String destName, String template, String tags) {
+		this.name = name;
+		this.classifier = classifier;
+		this.dir = dir;
+		this.extension = extension;
+		this.type = type;
+		this.depth = depth;
+		this.destDir = destDir;
+		this.prefix = prefix;
+		this.destName = destName;
+		this.template = template;
+		this.tags = tags;
+		this.filter = new RenameFileFilter(extension);
+		if (classifier == Classifier.PODCAST && template != null) {
+			this.podcastTemplate = new PodcastTemplate(template, prefix, destName);
+			this.podcastDestDir = new File(destDir, destName.toLowerCase()).getPath();
+		}
+		else {
+			this.podcastTemplate = null;
+			this.podcastDestDir = null;
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public Classifier getClassifier() {
+		return classifier;
+	}
+
+	public File getDir() {
+		return dir;
+	}
+
+	public String getExtension() {
+		return extension;
+	}
+
+	public DirectoryScanner.Type getType() {
+		return type;
+	}
+
+	public int getDepth() {
+		return depth;
+	}
+
+	public String getDestDir() {
+		return destDir;
+	}
+
+	public String getPrefix() {
+		return prefix;
+	}
+
+	public String getDestName() {
+		return destName;
+	}
+
+	public String getTemplate() {
+		return template;
+	}
+
+	public String getTags() {
+		return tags;
+	}
+
+	/**
+	 * @return	PODCAST only: the compiled template of the destination names, or null
+	 */
+	public PodcastTemplate getPodcastTemplate() {
+		return podcastTemplate;
+	}
+
+	/**
+	 * @return	PODCAST only: the directory of the episodes, i.e. destDir/destName in lower case, or null
+	 */
+	public String getPodcastDestDir() {
+		return podcastDestDir;
+	}
+
+	/**
+	 * Tests if an entry is selected by this job by its name only.
+	 * @param name	the name of the entry
+	 * @return		true if the name ends with the extension of this job
+	 */
+	public boolean acceptName(String name) {
+		return filter.accept(null, name);
+	}
+
+	/**
+	 * Loads the jobs from the configuration.
+	 *
+	 * @param config		the configuration properties
+	 * @param defaults		the built-in jobs
+	 * @return				the jobs in the order of the jobs property; jobs with an invalid definition are left out
+	 */
+	public static List<Job> load(Properties config, List<Job> defaults) {
+		String _names = config.getProperty("jobs");
+		if (_names == null) {
+			return defaults;
+		}
+		Map<String, Job> _defaults = new LinkedHashMap<String, Job>();
+		for (Job _j : defaults) {
+			_defaults.put(_j.getName(), _j);
+		}
+		List<Job> _jobs = new ArrayList<Job>();
+		for (String _name : _names.split(",")) {
+			_name = _name.trim();
+			if (_name.isEmpty() == false) {
+				Job _j = load(config, _name, _defaults);
+				if (_j != null) {
+					_jobs.add(_j);
+				}
+			}
+		}
+		return _jobs;
+	}
+
+	/**
+	 * Loads a single job. Values that are not configured are taken from the built-in job with the same name;
+	 * for a new job, extension, type, depth, destDir, template and tags are taken from the first built-in job with the same classifier.
+	 * @return	the job or null if its definition is not complete
+	 */
+	private static Job load(Properties config, String name, Map<String, Job> defaults) {
+		String _key = "job." + name + ".";
+		try {
+			Job _base = defaults.get(name);
+			String _classifier = config.getProperty(_key + "classifier");
+			Classifier _c = _classifier != null ? Classifier.valueOf(_classifier.trim().toUpperCase())
+					: _base != null ? _base.classifier : null;
+			String _dir = config.getProperty(_key + "dir", _base != null ? _base.dir.getPath() : null);
+			if (_c == null || _dir == null) {
+				System.out.println("job " + name + " needs at least a classifier and a dir, ignored");
+				return null;
+			}
+			Job _template = _base != null && _base.classifier == _c ? _base : null;
+			for (Job _j : defaults.values()) {
+				if (_template == null && _j.classifier == _c) {
+					_template = _j;
+				}
+			}
+			if (_template == null) {
+				System.out.println("job " + name + ": no built-in job with classifier " + _c + ", ignored");
+				return null;
+			}
+			String _type = config.getProperty(_key + "type");
+			String _depth = config.getProperty(_key + "depth");
+			return new Job(name, _c, new File(_dir.trim()),
+					config.getProperty(_key + "extension", _template.extension).trim(),
+					_type != null ? DirectoryScanner.Type.valueOf(_type.trim().toUpperCase()) : _template.type,
+					_depth != null ? Integer.parseInt(_depth.trim()) : _template.depth,
+					config.getProperty(_key + "destDir", _template.destDir),
+					config.getProperty(_key + "prefix", _base != null ? _base.prefix : name.toLowerCase() + "_"),
+					config.getProperty(_key + "destName", _base != null ? _base.destName : name),
+					config.getProperty(_key + "template", _template.template),
+					config.getProperty(_key + "tags", _template.tags));
+		}
+		catch (IllegalArgumentException _ex) {  // also NumberFormatException
+			System.out.println("invalid definition of job " + name + ": " + _ex.getMessage() + ", ignored");
+			return null;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return name + "(" + classifier.name().toLowerCase() + ", " + dir + ", " + extension + ")";
+	}
+}
@@ -0,0 +1,145 @@
+package renfiles;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Schedules the {@link Job}s of a sequential run.<p>
+ * Jobs that scan the same directory at the same depth (e.g. the pdf and the software files in srcDirName)
+ * are merged by {@link #merge(List)}, so that the directory is read only once for all of them.
+ * The resulting sources are independent of each other and are run concurrently by
+ * {@link #run(List, Sink)}; within a source, the entries are classified and converted in the
+ * order of the scan.
+ *
+ * @author Bruno Kaiser
+ * @version $Id$
+ */
+public class JobScheduler {
+	/**
+	 * Receives the classified files, e.g. to move and tag them.
+	 */
+	public interface Sink {
+		/**
+		 * Converts a file.
+		 * @param m		the planned move
+		 */
+		void convert(FileMove m) throws IOException;
+	}
+
+	private final int workers;
+	private final AtomicInteger failed = new AtomicInteger();
+
+	/**
+	 * Constructor.
+	 * @param workers	the maximal number of sources that are run at the same time
+	 */
+	public JobScheduler(int workers) {
+		this.workers = Math.max(1, workers);
+	}
+
+	/**
+	 * Groups the jobs by the directory they scan. The order of the jobs is kept, both
+	 * within a group and between the groups (by the first job of each group).
+	 *
+	 * @param jobs		the jobs
+	 * @return			the groups of jobs that share a directory traversal
+	 */
+	public static List<List<Job>> merge(List<Job> jobs) {
+		Map<String, List<Job>> _groups = new LinkedHashMap<String, List<Job>>();
+		for (Job _j : jobs) {
+			String _key = getRoot(_j.getDir()) + "|" + _j.getDepth();
+			List<Job> _g = _groups.get(_key);
+			if (_g == null) {
+				_g = new ArrayList<Job>();
+				_groups.put(_key, _g);
+			}
+			_g.add(_j);
+		}
+		return new ArrayList<List<Job>>(_groups.values());
+	}
+
+	private static String getRoot(File dir) {
+		try {
+			return dir.getCanonicalPath();
+		}
+		catch (IOException _ex) {
+			return dir.getAbsoluteFile().toPath().normalize().toString();
+		}
+	}
+
+	/**
+	 * Scans all sources, classifies their entries and passes the planned moves to the sink.
+	 * Returns when all sources are done; a source that fails does not stop the others.
+	 *
+	 * @param sources	the sources, e.g. one per group of jobs
+	 * @param sink		converts the classified files; it must be thread-safe if workers &gt; 1
+	 * @throws InterruptedException
+	 */
+	public void run(List<? extends Pipeline.FileSource> sources, final Sink sink) throws InterruptedException {
+		int _threads = Math.min(workers, sources.size());
+		if (_threads <= 1) {
+			for (Pipeline.FileSource _s : sources) {
+				run(_s, sink);
+			}
+			return;
+		}
+		ExecutorService _executor = Executors.newFixedThreadPool(_threads);
+		try {
+			for (final Pipeline.FileSource _s : sources) {
+				_executor.execute(new Runnable() {
+					public void run() {
+						try {
+							JobScheduler.this.run(_s, sink);
+						}
+						catch (InterruptedException _ex) {
+							Thread.currentThread().interrupt();
+						}
+					}
+				});
+			}
+			_executor.shutdown();
+			_executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		}
+		finally {
+			_executor.shutdownNow();
+		}
+	}
+
+	private void run(final Pipeline.FileSource source, final Sink sink) throws InterruptedException {
+		try {
+			source.scan(new DirectoryScanner.Visitor() {
+				public void visit(Path p, BasicFileAttributes attrs) throws IOException {
+					FileMove _m = source.classify(p.toFile());
+					if (_m != null) {  // convert only known files
+						sink.convert(_m);
+					}
+				}
+			});
+		}
+		catch (IOException _ex) {
+			failed.incrementAndGet();
+			AsyncLog.println("******** failed in job " + source.getName() + " with " + _ex.toString() + "*********");
+		}
+		catch (RuntimeException _ex) {
+			failed.incrementAndGet();
+			AsyncLog.println("******** failed in job " + source.getName() + " with " + _ex.toString() + "*********");
+		}
+	}
+
+	/**
+	 * @return	the number of sources that failed
+	 */
+	public int getFailed() {
+		return failed.get();
+	}
+}
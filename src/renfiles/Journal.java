@@ -0,0 +1,271 @@
+package renfiles;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Persistent journal of processed files for the incremental run mode.<p>
+ * The journal remembers
+ * <ul>
+ * <li>files that were not recognized (keyed by path, size and modification time); they are
+ * skipped in later runs as long as they are not changed
+ * <li>the modification time of each scanned directory; a directory whose modification time did not
+ * change since the last complete run contains no new files and is not read at all
+ * </ul>
+ * The journal is an append-only text file with one record per line, which is loaded into memory at
+ * startup and compacted when it contains too many obsolete records.
+ * Directory records are only written by {@link #commit(boolean)}, i.e. after a run without failures, and only
+ * for directories whose recognized files were all moved ({@link #recordRecognized(File)}, {@link #recordMoved(File)}).
+ * A dry run (testMode) must not use a journal, since it moves nothing.
+ *
+ * @author Bruno Kaiser
+ * @version $Id$
+ */
+public class Journal {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final char REJECTED = 'R';
+	private static final char DIRECTORY = 'D';
+	/** directories modified within this time before the run are not trusted (mtime granularity) */
+	private static final long MTIME_SLACK_MILLIS = 2000;
+
+	private final File file;
+	private final long runStart = System.currentTimeMillis();
+	private final Map<String, long[]> rejected = new HashMap<String, long[]>();
+	private final Map<String, Long> directories = new HashMap<String, Long>();
+	private final Map<String, Long> scannedDirectories = new HashMap<String, Long>();
+	private final Set<String> listedDirectories = new HashSet<String>();
+	private final Set<String> seen = new HashSet<String>();
+	/** directory -> the number of its recognized files that were not moved (yet) */
+	private final Map<String, Integer> outstanding = new HashMap<String, Integer>();
+	private Writer writer = null;
+	private int records = 0;
+
+	private final AtomicInteger skippedFiles = new AtomicInteger();
+	private final AtomicInteger skippedDirectories = new AtomicInteger();
+
+	/**
+	 * Constructor; loads the journal file if it exists.
+	 *
+	 * @param file	the journal file
+	 * @throws IOException
+	 */
+	public Journal(File file) throws IOException {
+		this.file = file;
+		if (file.exists()) {
+			load();
+		}
+	}
+
+	private void load() throws IOException {
+		try (BufferedReader _in = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8))) {
+			String _line;
+			while ((_line = _in.readLine()) != null) {
+				records++;
+				String[] _f = _line.split("\t", 4);
+				try {
+					if (_f.length == 4 && _f[0].charAt(0) == REJECTED) {
+						rejected.put(_f[3], new long[] { Long.parseLong(_f[1]), Long.parseLong(_f[2]) });
+					}
+					else if (_f.length == 3 && _f[0].charAt(0) == DIRECTORY) {
+						directories.put(_f[2], Long.valueOf(_f[1]));
+					}
+				}
+				catch (NumberFormatException _ex) {
+					// ignore a damaged record, e.g. the last line after a crash
+				}
+			}
+		}
+	}
+
+	/**
+	 * Scans a directory like {@link DirectoryScanner#scan(Path, DirectoryStream.Filter, DirectoryScanner.Type, DirectoryScanner.Visitor)},
+	 * but skips the whole directory if it did not change since the last complete run, and
+	 * skips all files that were not recognized before and did not change since then.
+	 *
+	 * @param dir		the directory to scan
+	 * @param key		identifies the kind of scan, e.g. the file extension
+	 * @param filter	selects the entries by name
+	 * @param type		only entries of this type are passed to the visitor
+	 * @param visitor	receives the new or changed entries
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public void scan(Path dir, String key, DirectoryStream.Filter<Path> filter, DirectoryScanner.Type type,
+			final DirectoryScanner.Visitor visitor) throws IOException, InterruptedException {
+		String _dirKey = dir.toAbsolutePath().toString() + "|" + key;
+		long _mtime = Files.getLastModifiedTime(dir).toMillis();
+		synchronized (this) {
+			Long _last = directories.get(_dirKey);
+			if (_last != null && _last.longValue() == _mtime) {
+				skippedDirectories.incrementAndGet();
+				return;
+			}
+		}
+		DirectoryScanner.scan(dir, filter, type, new DirectoryScanner.Visitor() {
+			public void visit(Path p, BasicFileAttributes attrs) throws IOException, InterruptedException {
+				if (isRejected(p.toAbsolutePath().toString(), attrs.size(), attrs.lastModifiedTime().toMillis())) {
+					skippedFiles.incrementAndGet();
+				}
+				else {
+					visitor.visit(p, attrs);
+				}
+			}
+		});
+		synchronized (this) {
+			listedDirectories.add(dir.toAbsolutePath().toString());
+			if (_mtime < runStart - MTIME_SLACK_MILLIS) {
+				scannedDirectories.put(_dirKey, _mtime);
+			}
+		}
+	}
+
+	private synchronized boolean isRejected(String path, long size, long mtime) {
+		long[] _r = rejected.get(path);
+		if (_r != null && _r[0] == size && _r[1] == mtime) {
+			seen.add(path);
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Records a file that was not recognized, so that it is skipped by later runs.
+	 *
+	 * @param f		the file
+	 */
+	public void recordRejected(File f) {
+		String _path = f.getAbsolutePath();
+		long _size = f.length();
+		long _mtime = f.lastModified();
+		synchronized (this) {
+			seen.add(_path);
+			rejected.put(_path, new long[] { _size, _mtime });
+			append(REJECTED + "\t" + _size + "\t" + _mtime + "\t" + _path);
+		}
+	}
+
+	/**
+	 * Records a file that was recognized and is to be moved; its directory is not recorded by {@link #commit(boolean)}
+	 * unless the file is moved, see {@link #recordMoved(File)}.
+	 *
+	 * @param f		the file
+	 */
+	public synchronized void recordRecognized(File f) {
+		String _dir = f.getAbsoluteFile().getParent();
+		Integer _n = outstanding.get(_dir);
+		outstanding.put(_dir, _n == null ? 1 : _n + 1);
+	}
+
+	/**
+	 * Records that a recognized file was moved.
+	 *
+	 * @param f		the former path of the file
+	 */
+	public synchronized void recordMoved(File f) {
+		String _dir = f.getAbsoluteFile().getParent();
+		Integer _n = outstanding.get(_dir);
+		if (_n != null && _n > 1) {
+			outstanding.put(_dir, _n - 1);
+		}
+		else {
+			outstanding.remove(_dir);
+		}
+	}
+
+	private void append(String record) {
+		try {
+			if (writer == null) {
+				writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), UTF8));
+			}
+			writer.write(record);
+			writer.write('\n');
+			records++;
+		}
+		catch (IOException _ex) {
+			System.out.println("******** failed to write journal " + file + " with " + _ex.toString() + "*********");
+		}
+	}
+
+	/**
+	 * Completes a run: records the modification times of the scanned directories (if the run had no failures)
+	 * whose recognized files were all moved, forgets rejected files that disappeared and compacts the journal if needed.
+	 *
+	 * @param complete	true if all files were processed without failure
+	 * @throws IOException
+	 */
+	public synchronized void commit(boolean complete) throws IOException {
+		// forget the rejected files that were not seen in a directory that was listed
+		boolean _removed = false;
+		Iterator<String> _it = rejected.keySet().iterator();
+		while (_it.hasNext()) {
+			String _path = _it.next();
+			if (!seen.contains(_path) && listedDirectories.contains(new File(_path).getParent())) {
+				_it.remove();
+				_removed = true;
+			}
+		}
+		if (complete) {
+			for (Map.Entry<String, Long> _e : scannedDirectories.entrySet()) {
+				String _dir = _e.getKey().substring(0, _e.getKey().lastIndexOf('|'));
+				if (outstanding.containsKey(_dir)) {
+					continue;  // a file of the directory was not moved, read it again next time
+				}
+				if (!_e.getValue().equals(directories.get(_e.getKey()))) {
+					directories.put(_e.getKey(), _e.getValue());
+					append(DIRECTORY + "\t" + _e.getValue() + "\t" + _e.getKey());
+				}
+			}
+		}
+		if (writer != null) {
+			writer.close();
+			writer = null;
+		}
+		if (_removed || records > 2 * (rejected.size() + directories.size()) + 1000) {
+			compact();
+		}
+	}
+
+	/**
+	 * Rewrites the journal with the current records only.
+	 */
+	private void compact() throws IOException {
+		File _tmp = new File(file.getPath() + ".tmp");
+		try (Writer _out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(_tmp), UTF8))) {
+			for (Map.Entry<String, long[]> _e : rejected.entrySet()) {
+				_out.write(REJECTED + "\t" + _e.getValue()[0] + "\t" + _e.getValue()[1] + "\t" + _e.getKey() + "\n");
+			}
+			for (Map.Entry<String, Long> _e : directories.entrySet()) {
+				_out.write(DIRECTORY + "\t" + _e.getValue() + "\t" + _e.getKey() + "\n");
+			}
+		}
+		Files.move(_tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		records = rejected.size() + directories.size();
+	}
+
+	/**
+	 * @return	a one-line summary of the work saved by the journal
+	 */
+	public String getSummary() {
+		return "skippedDirectories=" + skippedDirectories.get() + ", skippedFiles=" + skippedFiles.get()
+				+ ", rejected=" + rejected.size() + ", directories=" + directories.size();
+	}
+}
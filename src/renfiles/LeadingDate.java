@@ -0,0 +1,218 @@
+package renfiles;
+
+import java.util.TimeZone;
+
+/**
+ * Allocation-free parser for the dates in file names.<p>
+ * A date is returned as a single int that packs the precision (the number of valid
+ * date digits: 4 for yyyy, 6 for yyyyMM, 8 for yyyyMMdd) and the date as yyyyMMdd
+ * (missing parts are 0), see {@link #getPrecision(int)} and {@link #getDate(int)}.
+ * {@link #NONE} means that there is no date. The parser reads the characters directly;
+ * it creates no objects and throws no exceptions, so it is cheap also for the
+ * (frequent) names that do not start with a date.<p>
+ * Two layouts are supported:
+ * <ul>
+ * <li>yyyyMMdd, e.g. <code>20131214zkb.pdf</code> or <code>NZZ_20131214.pdf</code>; shorter prefixes
+ * (yyyy, yyyyMM) are accepted with a lower precision
+ * <li>yyyy-MM-dd, e.g. <code>taz-ges-2013-12-14.pdf</code>; only complete dates are accepted
+ * </ul>
+ * The year must be within 1 .. 2999, the month within 1 .. 12 and the day must exist in
+ * that month (leap years included). A part that is not valid (e.g. month 00 or 20130231) is
+ * ignored, i.e. the precision is reduced accordingly.<p>
+ * Dates can also be converted to day numbers (days since 1900-01-01) and back, e.g. for bitmaps of days,
+ * and the date of a point in time is computed without a Calendar or a date format.
+ *
+ * @author Bruno Kaiser
+ * @version $Id$
+ */
+public final class LeadingDate {
+	/** no date found */
+	public static final int NONE = 0;
+	private static final int PRECISION_SHIFT = 25;	// yyyyMMdd < 2^25
+	private static final int DATE_MASK = (1 << PRECISION_SHIFT) - 1;
+	private static final int[] DAYS_IN_MONTH = { 0, 31, 29, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31 };
+	/** number of days from 1900-01-01 to 1970-01-01 */
+	private static final int DAYS_BEFORE_1970 = 25567;
+	private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+
+	private LeadingDate() {
+	}
+
+	/**
+	 * Parses a date in the layout yyyyMMdd (or yyyyMM or yyyy).
+	 *
+	 * @param s			the String to parse, typically a file name
+	 * @param offset	the position of the date within s
+	 * @return			the packed date or {@link #NONE} if there is no valid year at offset
+	 */
+	public static int parse(CharSequence s, int offset) {
+		int _year = digits(s, offset, 4);
+		if (_year <= 0 || _year >= 3000) {
+			return NONE;
+		}
+		int _month = digits(s, offset + 4, 2);
+		if (_month < 1 || _month > 12) {
+			return pack(4, _year, 0, 0);
+		}
+		int _day = digits(s, offset + 6, 2);
+		if (isValidDay(_year, _month, _day) == false) {
+			return pack(6, _year, _month, 0);
+		}
+		return pack(8, _year, _month, _day);
+	}
+
+	/**
+	 * Parses a complete date in the layout yyyy-MM-dd.
+	 *
+	 * @param s			the String to parse, typically a file name
+	 * @param offset	the position of the date within s
+	 * @return			the packed date with precision 8 or {@link #NONE} if there is no valid date at offset
+	 */
+	public static int parseIso(CharSequence s, int offset) {
+		if (s.length() < offset + 10 || s.charAt(offset + 4) != '-' || s.charAt(offset + 7) != '-') {
+			return NONE;
+		}
+		int _year = digits(s, offset, 4);
+		int _month = digits(s, offset + 5, 2);
+		int _day = digits(s, offset + 8, 2);
+		if (_year <= 0 || _year >= 3000 || _month < 1 || _month > 12 || isValidDay(_year, _month, _day) == false) {
+			return NONE;
+		}
+		return pack(8, _year, _month, _day);
+	}
+
+	/**
+	 * @param packed	a packed date
+	 * @return			the number of valid date digits: 0 (no date), 4 (yyyy), 6 (yyyyMM) or 8 (yyyyMMdd)
+	 */
+	public static int getPrecision(int packed) {
+		return packed >>> PRECISION_SHIFT;
+	}
+
+	/**
+	 * @param packed	a packed date
+	 * @return			the date as yyyyMMdd; missing parts are 0
+	 */
+	public static int getDate(int packed) {
+		return packed & DATE_MASK;
+	}
+
+	/**
+	 * Appends the first digits of a packed date, e.g. 6 digits for yyyyMM.
+	 *
+	 * @param buf		receives the digits
+	 * @param packed	a packed date
+	 * @param count		the number of digits to append, 4, 6 or 8
+	 * @return			buf
+	 */
+	public static StringBuilder append(StringBuilder buf, int packed, int count) {
+		int _date = getDate(packed);
+		for (int _div = 10000000, i = 0; i < count; i++, _div /= 10) {
+			buf.append((char) ('0' + _date / _div % 10));
+		}
+		return buf;
+	}
+
+	/**
+	 * Tests if a day exists, e.g. 29 in February 2012 but not in February 2013.
+	 *
+	 * @param year		the year
+	 * @param month		the month, 1 .. 12
+	 * @param day		the day
+	 * @return			true if the day exists in this month
+	 */
+	public static boolean isValidDay(int year, int month, int day) {
+		if (day < 1 || day > DAYS_IN_MONTH[month]) {
+			return false;
+		}
+		return month != 2 || day < 29 || (year % 4 == 0 && (year % 100 != 0 || year % 400 == 0));
+	}
+
+	/**
+	 * Converts a date to the number of days since 1900-01-01 (Gregorian calendar).
+	 * @param yyyyMMdd	the date
+	 * @return			the day number, or -1 for an invalid date or a date before 1900
+	 */
+	public static int toDayNumber(int yyyyMMdd) {
+		int _year = yyyyMMdd / 10000;
+		int _month = yyyyMMdd / 100 % 100;
+		int _day = yyyyMMdd % 100;
+		if (_year < 1900 || _month < 1 || _month > 12 || LeadingDate.isValidDay(_year, _month, _day) == false) {
+			return -1;
+		}
+		int _y = _month <= 2 ? _year - 1 : _year;  // the year starts in March, so February 29 is the last day
+		int _era = _y / 400;
+		int _yoe = _y - _era * 400;
+		int _doy = (153 * (_month + (_month > 2 ? -3 : 9)) + 2) / 5 + _day - 1;
+		int _doe = _yoe * 365 + _yoe / 4 - _yoe / 100 + _doy;
+		return _era * 146097 + _doe - 719468 + DAYS_BEFORE_1970;
+	}
+
+	/**
+	 * Converts a day number of {@link #toDayNumber(int)} back to a date.
+	 * @param day	the number of days since 1900-01-01
+	 * @return		the date as yyyyMMdd
+	 */
+	public static int fromDayNumber(int day) {
+		int _z = day - DAYS_BEFORE_1970 + 719468;
+		int _era = _z / 146097;
+		int _doe = _z - _era * 146097;
+		int _yoe = (_doe - _doe / 1460 + _doe / 36524 - _doe / 146096) / 365;
+		int _doy = _doe - (365 * _yoe + _yoe / 4 - _yoe / 100);
+		int _mp = (5 * _doy + 2) / 153;
+		int _day = _doy - (153 * _mp + 2) / 5 + 1;
+		int _month = _mp < 10 ? _mp + 3 : _mp - 9;
+		int _year = _yoe + _era * 400 + (_month <= 2 ? 1 : 0);
+		return _year * 10000 + _month * 100 + _day;
+	}
+
+	/**
+	 * Converts a point in time to the date in the given time zone.
+	 * @param millis	milliseconds since 1970-01-01 UTC, e.g. the time of the last modification of a file
+	 * @param zone		the time zone
+	 * @return			the date as yyyyMMdd
+	 */
+	public static int fromMillis(long millis, TimeZone zone) {
+		long _local = millis + zone.getOffset(millis);
+		long _days = _local / MILLIS_PER_DAY;
+		if (_local % MILLIS_PER_DAY < 0) {  // before 1970, round down
+			_days--;
+		}
+		return fromDayNumber((int) _days + DAYS_BEFORE_1970);
+	}
+
+	/**
+	 * @param packed	a packed date
+	 * @return			a readable form for debug output, e.g. "201312 (6)"
+	 */
+	public static String toString(int packed) {
+		int _precision = getPrecision(packed);
+		if (_precision == 0) {
+			return "none";
+		}
+		return append(new StringBuilder(), packed, _precision).append(" (").append(_precision).append(')').toString();
+	}
+
+	/**
+	 * Reads a fixed number of decimal digits.
+	 * @return	the value or -1 if s is too short or contains a non-digit
+	 */
+	private static int digits(CharSequence s, int offset, int count) {
+		if (s.length() < offset + count) {
+			return -1;
+		}
+		int _value = 0;
+		for (int i = offset; i < offset + count; i++) {
+			char _c = s.charAt(i);
+			if (_c < '0' || _c > '9') {
+				return -1;
+			}
+			_value = _value * 10 + (_c - '0');
+		}
+		return _value;
+	}
+
+	private static int pack(int precision, int year, int month, int day) {
+		return (precision << PRECISION_SHIFT) | (year * 10000 + month * 100 + day);
+	}
+}
@@ -0,0 +1,253 @@
+package renfiles;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms of a run.<p>
+ * Each stage (scan, classify, move, tag, ...) records its latencies in a {@link Timer}; the
+ * names contain the source or rule, e.g. <code>scan.pdf</code> or <code>rule.NZZ_</code>.
+ * A timer keeps a log-linear histogram (like HdrHistogram with 3 significant bits): 8 buckets for each
+ * power of two, i.e. a percentile is accurate within 12.5%, with a fixed memory of 4 KB per timer.
+ * Recording is lock-free, so it is cheap enough to be always on.<p>
+ * The metrics are exported as JSON at the end of a run ({@link #writeJson(File)}) and, while the
+ * process is running, through JMX as <code>renfiles:type=Metrics</code>.
+ *
+ * @author Bruno Kaiser
+ * @version $Id$
+ */
+public class Metrics implements MetricsMBean {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final long start = System.currentTimeMillis();
+	private final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+	private final ConcurrentMap<String, Timer> timers = new ConcurrentHashMap<String, Timer>();
+
+	/**
+	 * Increments a counter.
+	 * @param name	the name of the counter
+	 */
+	public void count(String name) {
+		add(name, 1);
+	}
+
+	/**
+	 * Adds a value to a counter.
+	 * @param name	the name of the counter
+	 * @param delta	the value to add
+	 */
+	public void add(String name, long delta) {
+		AtomicLong _c = counters.get(name);
+		if (_c == null) {
+			AtomicLong _new = new AtomicLong();
+			_c = counters.putIfAbsent(name, _new);
+			if (_c == null) {
+				_c = _new;
+			}
+		}
+		_c.addAndGet(delta);
+	}
+
+	/**
+	 * Returns a timer; it is created if it does not exist yet.
+	 * @param name	the name of the timer
+	 * @return		the timer
+	 */
+	public Timer timer(String name) {
+		Timer _t = timers.get(name);
+		if (_t == null) {
+			Timer _new = new Timer();
+			_t = timers.putIfAbsent(name, _new);
+			if (_t == null) {
+				_t = _new;
+			}
+		}
+		return _t;
+	}
+
+	/**
+	 * Records the time since start in a timer.
+	 * @param name			the name of the timer
+	 * @param startNanos	the start time from <code>System.nanoTime()</code>
+	 */
+	public void stop(String name, long startNanos) {
+		timer(name).record(System.nanoTime() - startNanos);
+	}
+
+	/**
+	 * Registers the metrics as MBean <code>renfiles:type=Metrics</code>.
+	 */
+	public void registerMBean() {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("renfiles:type=Metrics"));
+		}
+		catch (JMException _ex) {
+			System.out.println("******** failed to register the metrics MBean with " + _ex.toString() + "*********");
+		}
+	}
+
+	/**
+	 * Writes the metrics into a JSON file.
+	 * @param file	the file
+	 * @throws IOException
+	 */
+	public void writeJson(File file) throws IOException {
+		try (Writer _out = new OutputStreamWriter(new FileOutputStream(file), UTF8)) {
+			_out.write(getJson());
+			_out.write('\n');
+		}
+	}
+
+	public String getJson() {
+		StringBuilder _sb = new StringBuilder(4096);
+		_sb.append("{\n  \"start\": ").append(start);
+		_sb.append(",\n  \"durationMillis\": ").append(System.currentTimeMillis() - start);
+		_sb.append(",\n  \"counters\": {");
+		String _sep = "\n    ";
+		for (Map.Entry<String, AtomicLong> _e : new TreeMap<String, AtomicLong>(counters).entrySet()) {
+			_sb.append(_sep);
+			quote(_sb, _e.getKey()).append(": ").append(_e.getValue().get());
+			_sep = ",\n    ";
+		}
+		_sb.append("\n  },\n  \"timers\": {");
+		_sep = "\n    ";
+		for (Map.Entry<String, Timer> _e : new TreeMap<String, Timer>(timers).entrySet()) {
+			_sb.append(_sep);
+			quote(_sb, _e.getKey()).append(": ");
+			_e.getValue().appendJson(_sb);
+			_sep = ",\n    ";
+		}
+		return _sb.append("\n  }\n}").toString();
+	}
+
+	public long getUptimeMillis() {
+		return System.currentTimeMillis() - start;
+	}
+
+	public String[] getTimerSummaries() {
+		Map<String, Timer> _sorted = new TreeMap<String, Timer>(timers);
+		String[] _result = new String[_sorted.size()];
+		int i = 0;
+		for (Map.Entry<String, Timer> _e : _sorted.entrySet()) {
+			_result[i++] = _e.getKey() + ": " + _e.getValue().toString();
+		}
+		return _result;
+	}
+
+	static StringBuilder quote(StringBuilder sb, String s) {
+		sb.append('"');
+		for (int i = 0; i < s.length(); i++) {
+			char _c = s.charAt(i);
+			if (_c == '"' || _c == '\\') {
+				sb.append('\\').append(_c);
+			}
+			else if (_c < ' ') {
+				sb.append(String.format("\\u%04x", (int) _c));
+			}
+			else {
+				sb.append(_c);
+			}
+		}
+		return sb.append('"');
+	}
+
+	/**
+	 * Latency histogram with count, total and maximum; all values in nanoseconds.
+	 */
+	public static class Timer {
+		private static final int SUB_BITS = 3;
+		private static final int SUB_BUCKETS = 1 << SUB_BITS;
+		private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong total = new AtomicLong();
+		private final AtomicLong max = new AtomicLong();
+
+		/**
+		 * Records a latency.
+		 * @param nanos		the latency in nanoseconds
+		 */
+		public void record(long nanos) {
+			long _v = Math.max(0, nanos);
+			buckets.incrementAndGet(index(_v));
+			count.incrementAndGet();
+			total.addAndGet(_v);
+			long _max;
+			while (_v > (_max = max.get()) && max.compareAndSet(_max, _v) == false) {
+				// retry
+			}
+		}
+
+		public long getCount() {
+			return count.get();
+		}
+
+		/**
+		 * @param percentile	e.g. 99.0
+		 * @return				the latency (in nanoseconds) below which the given percentage of the values are
+		 */
+		public long getPercentile(double percentile) {
+			long _count = count.get();
+			long _rank = (long) Math.ceil(_count * percentile / 100.0);
+			long _seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				_seen += buckets.get(i);
+				if (_seen >= _rank && _seen > 0) {
+					return Math.min(upperBound(i), max.get());
+				}
+			}
+			return max.get();
+		}
+
+		private static int index(long v) {
+			if (v < SUB_BUCKETS) {
+				return (int) v;
+			}
+			int _exp = 63 - Long.numberOfLeadingZeros(v);
+			int _sub = (int) (v >>> (_exp - SUB_BITS)) & (SUB_BUCKETS - 1);
+			return (_exp - SUB_BITS + 1) * SUB_BUCKETS + _sub;
+		}
+
+		private static long upperBound(int index) {
+			if (index < SUB_BUCKETS) {
+				return index;
+			}
+			int _exp = index / SUB_BUCKETS + SUB_BITS - 1;
+			long _lower = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << (_exp - SUB_BITS);
+			return _lower + (1L << (_exp - SUB_BITS)) - 1;
+		}
+
+		void appendJson(StringBuilder sb) {
+			long _count = count.get();
+			sb.append("{\"count\": ").append(_count)
+				.append(", \"totalMillis\": ").append(total.get() / 1000000)
+				.append(", \"meanMicros\": ").append(_count == 0 ? 0 : total.get() / _count / 1000)
+				.append(", \"p50Micros\": ").append(getPercentile(50) / 1000)
+				.append(", \"p90Micros\": ").append(getPercentile(90) / 1000)
+				.append(", \"p99Micros\": ").append(getPercentile(99) / 1000)
+				.append(", \"maxMicros\": ").append(max.get() / 1000).append('}');
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder _sb = new StringBuilder();
+			appendJson(_sb);
+			return _sb.toString();
+		}
+	}
+}
@@ -0,0 +1,24 @@
+package renfiles;
+
+/**
+ * JMX view of the {@link Metrics} of a running process, e.g. the daemon.
+ *
+ * @author Bruno Kaiser
+ * @version $Id$
+ */
+public interface MetricsMBean {
+	/**
+	 * @return	all counters and timers as JSON
+	 */
+	String getJson();
+
+	/**
+	 * @return	the time since the metrics were created
+	 */
+	long getUptimeMillis();
+
+	/**
+	 * @return	one line per timer with count, mean and percentiles
+	 */
+	String[] getTimerSummaries();
+}
@@ -0,0 +1,146 @@
+package renfiles;
+
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs each file operation in its own thread, with a cap on the concurrent operations per mount point.<p>
+ * Moving a file is blocking I/O that mostly waits: a stat, a mkdir, a rename, on a NAS a network round-trip
+ * each. A fixed pool of a few platform threads leaves a high-latency mount idle most of the time.
+ * Here, every operation gets a thread of its own: a virtual thread, or a thread of a cached pool for comparison.
+ * The number of operations in flight is limited per mount point (file store) by a semaphore, so that
+ * thousands of operations can wait on a slow network volume without flooding the local disk, and the
+ * submitting thread is blocked while the mount of the operation is busy, so no unbounded queue builds up.
+ * With platform threads, the number of threads is bounded by the permits of all mounts.
+ *
+ * @author Bruno Kaiser
+ * @version $Id$
+ */
+public class MountExecutor {
+	private final ExecutorService executor;
+	private final boolean virtual;
+	private final int permits;
+	/** file store of a mount point -> permits */
+	private final ConcurrentMap<FileStore, Semaphore> mounts = new ConcurrentHashMap<FileStore, Semaphore>();
+	/** directory -> permits of its mount point; a directory is mapped to its file store only once */
+	private final ConcurrentMap<String, Semaphore> directories = new ConcurrentHashMap<String, Semaphore>();
+	/** used for directories whose file store can not be determined */
+	private final Semaphore unknownMount;
+
+	private final AtomicInteger tasks = new AtomicInteger();
+	private final AtomicInteger waits = new AtomicInteger();
+
+	/**
+	 * Constructor.
+	 * @param permits		the maximum number of concurrent operations per mount point
+	 * @param useVirtual	true to run the operations in virtual threads, false for platform threads
+	 */
+	public MountExecutor(int permits, boolean useVirtual) {
+		this.permits = Math.max(1, permits);
+		this.unknownMount = new Semaphore(this.permits);
+		this.virtual = useVirtual;
+		this.executor = useVirtual ? Executors.newVirtualThreadPerTaskExecutor() : Executors.newCachedThreadPool();
+	}
+
+	/**
+	 * Runs an operation in its own thread as soon as its mount point has a free permit.
+	 * Blocks the caller while the mount point is busy.
+	 *
+	 * @param dir		a directory on the mount point of the operation, e.g. the destination directory of a move;
+	 * 					it does not need to exist yet
+	 * @param task		the operation; failures must be handled by the task itself
+	 * @throws InterruptedException
+	 */
+	public void execute(Path dir, final Runnable task) throws InterruptedException {
+		final Semaphore _permits = getPermits(dir);
+		if (_permits.tryAcquire() == false) {
+			waits.incrementAndGet();
+			_permits.acquire();
+		}
+		tasks.incrementAndGet();
+		try {
+			executor.execute(new Runnable() {
+				public void run() {
+					try {
+						task.run();
+					}
+					finally {
+						_permits.release();
+					}
+				}
+			});
+		}
+		catch (RuntimeException _ex) {
+			_permits.release();
+			throw _ex;
+		}
+	}
+
+	/**
+	 * Waits until all operations are done; no operations can be added afterwards.
+	 * @throws InterruptedException
+	 */
+	public void shutdown() throws InterruptedException {
+		executor.shutdown();
+		executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+	}
+
+	private Semaphore getPermits(Path dir) {
+		String _key = dir.toString();
+		Semaphore _permits = directories.get(_key);
+		if (_permits == null) {
+			_permits = unknownMount;
+			FileStore _store = getFileStore(dir);
+			if (_store != null) {
+				Semaphore _new = new Semaphore(permits);
+				_permits = mounts.putIfAbsent(_store, _new);
+				if (_permits == null) {
+					_permits = _new;
+				}
+			}
+			directories.putIfAbsent(_key, _permits);
+		}
+		return _permits;
+	}
+
+	/**
+	 * @return	the file store of the directory or of its first existing parent, or null
+	 */
+	static FileStore getFileStore(Path dir) {
+		for (Path _p = dir.toAbsolutePath(); _p != null; _p = _p.getParent()) {
+			if (Files.exists(_p)) {
+				try {
+					return Files.getFileStore(_p);
+				}
+				catch (IOException _ex) {
+					return null;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return	true if the operations run in virtual threads
+	 */
+	public boolean isVirtual() {
+		return virtual;
+	}
+
+	/**
+	 * @return	a one-line summary of the operations so far
+	 */
+	public String getSummary() {
+		return "threads=" + (virtual ? "virtual" : "platform") + ", mounts=" + mounts.size() + ", permitsPerMount=" + permits
+				+ ", tasks=" + tasks.get() + ", waits=" + waits.get();
+	}
+}
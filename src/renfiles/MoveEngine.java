@@ -0,0 +1,224 @@
+package renfiles;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Moves files and directory trees, also onto different volumes.<p>
+ * A move is first tried as an atomic rename. If the destination is on another filesystem
+ * (where <code>File.renameTo</code> just fails), the source is copied into a temporary file
+ * (or directory) next to the destination with <code>FileChannel.transferTo</code>, which lets
+ * the operating system copy the data without passing it through the java heap. The copy is
+ * synced to disk and renamed into place; only then the source is deleted. Therefore, a
+ * destination file is either complete or does not exist, and the source is never lost.
+ * A source file that changes its size or modification time during the copy is not moved.
+ *
+ * @author Bruno Kaiser
+ * @version $Id$
+ */
+public class MoveEngine {
+	static final String TMP_SUFFIX = ".renfiles-tmp";
+
+	/** how a move was executed */
+	public enum Result {
+		/** atomic rename on the same filesystem */
+		RENAMED,
+		/** copied onto another filesystem */
+		COPIED
+	}
+
+	private final AtomicInteger renamed = new AtomicInteger();
+	private final AtomicInteger copied = new AtomicInteger();
+	private final AtomicLong bytesCopied = new AtomicLong();
+
+	/**
+	 * Moves a file or directory tree. An existing destination file is replaced.
+	 *
+	 * @param src		the file or directory to move
+	 * @param dest		the new path
+	 * @return			how the move was executed
+	 * @throws IOException	if the move failed; the source is still complete in this case
+	 */
+	public Result move(Path src, Path dest) throws IOException {
+		try {
+			Files.move(src, dest, StandardCopyOption.ATOMIC_MOVE);
+			renamed.incrementAndGet();
+			return Result.RENAMED;
+		}
+		catch (AtomicMoveNotSupportedException _ex) {
+			// different filesystem, copy the data
+		}
+		return copy(src, dest, Files.readAttributes(src, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS));
+	}
+
+	/**
+	 * Moves a file or directory tree by copying it; the source is deleted after the copy was renamed into place.
+	 *
+	 * @param src		the file or directory to move
+	 * @param dest		the new path
+	 * @param attrs		the attributes of src, read before the copy
+	 * @return			{@link Result#COPIED}
+	 * @throws IOException	if the copy failed or a file changed during the copy; the source is still complete in this case
+	 */
+	Result copy(Path src, Path dest, BasicFileAttributes attrs) throws IOException {
+		Path _tmp = getTempPath(dest);
+		deleteTree(_tmp);  // left over by a crash
+		try {
+			if (attrs.isDirectory()) {
+				copyTree(src, _tmp);
+			}
+			else {
+				copyFile(src, _tmp, attrs);
+			}
+			Files.move(_tmp, dest, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		}
+		catch (IOException _ex) {
+			deleteTree(_tmp);
+			throw _ex;
+		}
+		syncDirectory(dest.getParent());
+		deleteTree(src);
+		copied.incrementAndGet();
+		return Result.COPIED;
+	}
+
+	/**
+	 * Returns the temporary path that is used while a file is copied to dest.
+	 * @param dest	the destination of a move
+	 * @return		the temporary file next to dest
+	 */
+	static Path getTempPath(Path dest) {
+		return dest.resolveSibling("." + dest.getFileName() + TMP_SUFFIX);
+	}
+
+	/**
+	 * Copies a regular file with transferTo and syncs it to disk. The file must keep the size and
+	 * modification time of attrs during the copy: a file that is still written (e.g. a download in
+	 * daemon mode) fails with an IOException instead of being copied incompletely.
+	 */
+	private void copyFile(Path src, Path dest, BasicFileAttributes attrs) throws IOException {
+		try (FileChannel _in = FileChannel.open(src, StandardOpenOption.READ);
+				FileChannel _out = FileChannel.open(dest, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+			long _size = attrs.size();
+			long _pos = 0;
+			while (_pos < _size) {
+				long _n = _in.transferTo(_pos, _size - _pos, _out);
+				if (_n <= 0) {  // end of file before _size
+					throw new IOException(src + " shrank during the copy");
+				}
+				_pos += _n;
+			}
+			if (_in.size() != _size || Files.getLastModifiedTime(src).equals(attrs.lastModifiedTime()) == false) {
+				throw new IOException(src + " changed during the copy");
+			}
+			_out.force(true);
+			bytesCopied.addAndGet(_size);
+		}
+		Files.setLastModifiedTime(dest, attrs.lastModifiedTime());
+	}
+
+	/**
+	 * Copies a directory tree; the files are copied with {@link #copyFile(Path, Path, BasicFileAttributes)}.
+	 */
+	private void copyTree(final Path src, final Path dest) throws IOException {
+		Files.walkFileTree(src, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+				Files.createDirectory(dest.resolve(src.relativize(dir).toString()));
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Path _target = dest.resolve(src.relativize(file).toString());
+				if (attrs.isSymbolicLink()) {
+					Files.createSymbolicLink(_target, Files.readSymbolicLink(file));
+				}
+				else {
+					copyFile(file, _target, attrs);
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+				if (exc != null) {
+					throw exc;
+				}
+				Path _target = dest.resolve(src.relativize(dir).toString());
+				syncDirectory(_target);
+				Files.setLastModifiedTime(_target, Files.getLastModifiedTime(dir));
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/**
+	 * Deletes a file or a directory tree; a path that does not exist is ignored.
+	 * @param p		the file or directory to delete
+	 * @throws IOException
+	 */
+	public static void deleteTree(Path p) throws IOException {
+		if (Files.isDirectory(p, LinkOption.NOFOLLOW_LINKS)) {
+			Files.walkFileTree(p, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+					Files.delete(file);
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+					if (exc != null) {
+						throw exc;
+					}
+					Files.delete(dir);
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		}
+		else {
+			try {
+				Files.delete(p);
+			}
+			catch (NoSuchFileException _ex) {
+				// nothing to delete
+			}
+		}
+	}
+
+	/**
+	 * Syncs the entries of a directory to disk, so that a rename survives a crash.
+	 * Not all platforms support this; errors are ignored.
+	 */
+	static void syncDirectory(Path dir) {
+		if (dir == null) {
+			return;
+		}
+		try (FileChannel _ch = FileChannel.open(dir, StandardOpenOption.READ)) {
+			_ch.force(true);
+		}
+		catch (IOException _ex) {
+			// not supported on this platform
+		}
+	}
+
+	/**
+	 * @return	a one-line summary of the moves executed so far
+	 */
+	public String getSummary() {
+		return "renamed=" + renamed.get() + ", copied=" + copied.get() + ", bytesCopied=" + bytesCopied.get();
+	}
+}
@@ -0,0 +1,462 @@
+package renfiles;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Write-ahead log of the moves of each run.<p>
+ * Each planned move (source, destination and finder tags) is appended to the log and synced to disk
+ * <b>before</b> it is executed; after the move, a completion record is appended (without sync). The
+ * sync is group-committed: all records appended since the last sync are forced with one
+ * <code>fsync</code>, no matter how many threads wait for it. A run that ends normally gets an end record.<p>
+ * A run without end record was interrupted (crash, kill). {@link #recover(TagWriter)} completes it:
+ * a move whose destination is in place counts as done (a source left over by an interrupted
+ * copy is deleted), temporary files are removed and the finder tags of all moved files are written again.
+ * A move that was not started is left alone; the next run picks up the file again.<p>
+ * {@link #undo(String, MoveEngine)} moves all files of a run back to their sources (finder tags are kept).<p>
+ * Record format, one record per line, fields separated by tabs:
+ * <pre>
+ * P runId seq tags source destination   planned move
+ * C runId seq                           move completed
+ * E runId                               run ended (or recovered)
+ * U runId                               run undone
+ * </pre>
+ * Tabs, line ends and backslashes in the tags and paths are escaped as <code>\t</code>, <code>\n</code>,
+ * <code>\r</code> and <code>\\</code>, so that any file name fits into its field.
+ *
+ * @author Bruno Kaiser
+ * @version $Id$
+ */
+public class MoveLog {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final char PLANNED = 'P';
+	private static final char COMPLETED = 'C';
+	private static final char ENDED = 'E';
+	private static final char UNDONE = 'U';
+	/** number of runs that are kept when the log is compacted */
+	private static final int MAX_RUNS = 20;
+
+	private final File file;
+	private final Map<String, Run> runs = new LinkedHashMap<String, Run>();
+	private String runId = null;
+	private FileOutputStream out = null;
+	private Writer writer = null;
+	private long seq = 0;
+	private volatile long durableSeq = 0;
+	private final Object syncLock = new Object();
+
+	private final AtomicInteger planned = new AtomicInteger();
+	private final AtomicInteger syncs = new AtomicInteger();
+
+	/**
+	 * Constructor; loads the runs recorded in the log file if it exists.
+	 *
+	 * @param file	the log file
+	 * @throws IOException
+	 */
+	public MoveLog(File file) throws IOException {
+		this.file = file;
+		if (file.exists()) {
+			load();
+		}
+	}
+
+	private void load() throws IOException {
+		try (BufferedReader _in = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8))) {
+			String _line;
+			while ((_line = _in.readLine()) != null) {
+				String[] _f = _line.split("\t", 6);
+				if (_f.length < 2 || _f[0].length() != 1) {
+					continue;  // damaged record, e.g. the last line after a crash
+				}
+				Run _run = runs.get(_f[1]);
+				if (_run == null) {
+					_run = new Run(_f[1]);
+					runs.put(_f[1], _run);
+				}
+				try {
+					switch (_f[0].charAt(0)) {
+					case PLANNED:
+						if (_f.length == 6) {
+							_run.entries.put(Long.valueOf(_f[2]), new Entry(unescape(_f[3]), unescape(_f[4]), unescape(_f[5])));
+						}
+						break;
+					case COMPLETED:
+						Entry _e = _run.entries.get(Long.valueOf(_f[2]));
+						if (_e != null) {
+							_e.completed = true;
+						}
+						break;
+					case ENDED:
+						_run.ended = true;
+						break;
+					case UNDONE:
+						_run.undone = true;
+						break;
+					default:
+						break;
+					}
+				}
+				catch (NumberFormatException _ex) {
+					// ignore a damaged record
+				}
+			}
+		}
+	}
+
+	/**
+	 * Starts a new run; the log is compacted first if it contains too many runs.
+	 *
+	 * @return	the id of the new run, needed for {@link #undo(String, MoveEngine)}
+	 * @throws IOException
+	 */
+	public synchronized String begin() throws IOException {
+		if (runs.size() > MAX_RUNS) {
+			compact();
+		}
+		runId = new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date());
+		out = openForAppend();
+		writer = new BufferedWriter(new OutputStreamWriter(out, UTF8));
+		return runId;
+	}
+
+	/**
+	 * Appends a planned move. The move must not be executed before {@link #sync(long)} returned.
+	 *
+	 * @param m		the planned move
+	 * @return		the sequence number of the record
+	 * @throws IOException
+	 */
+	public synchronized long plan(FileMove m) throws IOException {
+		if (writer == null) {
+			throw new IOException("run is not active in move log " + file);
+		}
+		seq++;
+		writer.write(PLANNED + "\t" + runId + "\t" + seq + "\t" + escape(m.hasTags() ? m.getTags() : "") + "\t"
+				+ escape(m.getSource().getAbsolutePath()) + "\t" + escape(m.getDestination().getAbsolutePath()) + "\n");
+		planned.incrementAndGet();
+		return seq;
+	}
+
+	/**
+	 * Makes sure that a record is on disk. All records appended so far are synced together,
+	 * so concurrent callers (and a batch of planned moves) share one fsync.
+	 *
+	 * @param recordSeq		the sequence number returned by {@link #plan(FileMove)}
+	 * @throws IOException
+	 */
+	public void sync(long recordSeq) throws IOException {
+		if (durableSeq >= recordSeq) {
+			return;
+		}
+		synchronized (syncLock) {
+			if (durableSeq >= recordSeq) {  // synced by another thread in the meantime
+				return;
+			}
+			long _upTo;
+			synchronized (this) {
+				writer.flush();
+				_upTo = seq;
+			}
+			out.getChannel().force(false);
+			durableSeq = _upTo;
+			syncs.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Appends the completion record of a move; it is synced with the next group commit.
+	 *
+	 * @param recordSeq		the sequence number returned by {@link #plan(FileMove)}
+	 * @throws IOException
+	 */
+	public synchronized void complete(long recordSeq) throws IOException {
+		if (writer == null) {  // run ended in the meantime (shutdown); recovered by the next run
+			return;
+		}
+		writer.write(COMPLETED + "\t" + runId + "\t" + recordSeq + "\n");
+	}
+
+	/**
+	 * Ends the current run, i.e. all moves are executed and their finder tags are written.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void end() throws IOException {
+		if (writer == null) {
+			return;
+		}
+		writer.write(ENDED + "\t" + runId + "\n");
+		writer.flush();
+		out.getChannel().force(false);
+		writer.close();
+		writer = null;
+	}
+
+	/**
+	 * Completes the runs that were interrupted, see class comment. Must be called before {@link #begin()}.
+	 *
+	 * @param tagWriter		receives the finder tags of the moved files
+	 * @return				the number of interrupted runs
+	 * @throws IOException
+	 */
+	public int recover(TagWriter tagWriter) throws IOException {
+		List<Run> _interrupted = new ArrayList<Run>();
+		for (Run _run : runs.values()) {
+			if (_run.ended == false && _run.undone == false) {
+				_interrupted.add(_run);
+			}
+		}
+		if (_interrupted.isEmpty()) {
+			return 0;
+		}
+		try (Writer _w = new BufferedWriter(new OutputStreamWriter(openForAppend(), UTF8))) {
+			for (Run _run : _interrupted) {
+				int _done = 0;
+				int _notStarted = 0;
+				for (Entry _e : _run.entries.values()) {
+					Path _src = new File(_e.source).toPath();
+					Path _dest = new File(_e.destination).toPath();
+					MoveEngine.deleteTree(MoveEngine.getTempPath(_dest));
+					boolean _srcExists = Files.exists(_src, LinkOption.NOFOLLOW_LINKS);
+					boolean _destExists = Files.exists(_dest, LinkOption.NOFOLLOW_LINKS);
+					if (_destExists && _srcExists && _e.completed == false && isCopy(_src, _dest)) {
+						MoveEngine.deleteTree(_src);  // interrupted after the copy was renamed into place
+						_srcExists = false;
+					}
+					if (_destExists && (_srcExists == false || _e.completed)) {
+						_done++;
+						if (_e.tags.length() > 0) {
+							tagWriter.add(_e.tags, _dest.toFile());
+						}
+					}
+					else {
+						_notStarted++;
+					}
+				}
+				_run.ended = true;
+				_w.write(ENDED + "\t" + _run.id + "\n");
+				System.out.println("recovered interrupted run " + _run.id + ": " + _done + " moves done, " + _notStarted + " not started");
+			}
+		}
+		return _interrupted.size();
+	}
+
+	/**
+	 * Opens the log for appending; a damaged last record (without line end) is terminated first.
+	 */
+	private FileOutputStream openForAppend() throws IOException {
+		boolean _terminate = false;
+		if (file.length() > 0) {
+			try (RandomAccessFile _raf = new RandomAccessFile(file, "r")) {
+				_raf.seek(_raf.length() - 1);
+				_terminate = _raf.read() != '\n';
+			}
+		}
+		FileOutputStream _out = new FileOutputStream(file, true);
+		if (_terminate) {
+			_out.write('\n');
+		}
+		return _out;
+	}
+
+	/**
+	 * Escapes the field separators of a field, see class comment.
+	 */
+	private static String escape(String field) {
+		if (field.indexOf('\t') < 0 && field.indexOf('\n') < 0 && field.indexOf('\r') < 0 && field.indexOf('\\') < 0) {
+			return field;
+		}
+		StringBuilder _sb = new StringBuilder(field.length() + 8);
+		for (int i = 0; i < field.length(); i++) {
+			char _c = field.charAt(i);
+			switch (_c) {
+			case '\t':
+				_sb.append("\\t");
+				break;
+			case '\n':
+				_sb.append("\\n");
+				break;
+			case '\r':
+				_sb.append("\\r");
+				break;
+			case '\\':
+				_sb.append("\\\\");
+				break;
+			default:
+				_sb.append(_c);
+			}
+		}
+		return _sb.toString();
+	}
+
+	/**
+	 * Reverses {@link #escape(String)}; a backslash that starts no escape sequence is kept.
+	 */
+	private static String unescape(String field) {
+		if (field.indexOf('\\') < 0) {
+			return field;
+		}
+		StringBuilder _sb = new StringBuilder(field.length());
+		for (int i = 0; i < field.length(); i++) {
+			char _c = field.charAt(i);
+			char _next = i + 1 < field.length() ? field.charAt(i + 1) : 0;
+			if (_c == '\\' && (_next == 't' || _next == 'n' || _next == 'r' || _next == '\\')) {
+				_sb.append(_next == 't' ? '\t' : _next == 'n' ? '\n' : _next == 'r' ? '\r' : '\\');
+				i++;
+			}
+			else {
+				_sb.append(_c);
+			}
+		}
+		return _sb.toString();
+	}
+
+	/**
+	 * Tests if dest is a complete copy of src, i.e. a regular file of the same size and modification time.
+	 */
+	private static boolean isCopy(Path src, Path dest) throws IOException {
+		BasicFileAttributes _s = Files.readAttributes(src, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+		BasicFileAttributes _d = Files.readAttributes(dest, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+		return _s.isRegularFile() && _d.isRegularFile() && _s.size() == _d.size()
+				&& _s.lastModifiedTime().equals(_d.lastModifiedTime());
+	}
+
+	/**
+	 * Moves all files of a run back to their source, in reverse order.
+	 * Files that are no longer at their destination (or whose source exists again) are skipped.
+	 *
+	 * @param id			the id of the run, see {@link #begin()}
+	 * @param moveEngine	executes the moves
+	 * @return				the number of files that could not be moved back
+	 * @throws IOException	if the run is unknown
+	 */
+	public int undo(String id, MoveEngine moveEngine) throws IOException {
+		Run _run = runs.get(id);
+		if (_run == null) {
+			throw new IOException("unknown run " + id + ", known runs: " + runs.keySet());
+		}
+		if (_run.undone) {
+			System.out.println("run " + id + " was already undone");
+			return 0;
+		}
+		List<Entry> _entries = new ArrayList<Entry>(_run.entries.values());
+		int _undone = 0;
+		int _failed = 0;
+		for (int i = _entries.size() - 1; i >= 0; i--) {
+			Path _src = new File(_entries.get(i).source).toPath();
+			Path _dest = new File(_entries.get(i).destination).toPath();
+			if (Files.exists(_dest, LinkOption.NOFOLLOW_LINKS) == false || Files.exists(_src, LinkOption.NOFOLLOW_LINKS)) {
+				continue;
+			}
+			try {
+				Files.createDirectories(_src.getParent());
+				moveEngine.move(_dest, _src);
+				_undone++;
+			}
+			catch (IOException _ex) {
+				_failed++;
+				System.out.println("undo of " + _dest + " failed with " + _ex.toString());
+			}
+		}
+		if (_failed == 0) {
+			_run.undone = true;
+			try (Writer _w = new BufferedWriter(new OutputStreamWriter(openForAppend(), UTF8))) {
+				_w.write(UNDONE + "\t" + id + "\n");
+			}
+		}
+		System.out.println("undo of run " + id + ": " + _undone + " files moved back, " + _failed + " failed");
+		return _failed;
+	}
+
+	/**
+	 * Rewrites the log with the last MAX_RUNS runs only.
+	 */
+	private void compact() throws IOException {
+		List<String> _ids = new ArrayList<String>(runs.keySet());
+		for (int i = 0; i < _ids.size() - MAX_RUNS; i++) {
+			runs.remove(_ids.get(i));
+		}
+		File _tmp = new File(file.getPath() + ".tmp");
+		try (FileOutputStream _fos = new FileOutputStream(_tmp);
+				Writer _out = new BufferedWriter(new OutputStreamWriter(_fos, UTF8))) {
+			for (Run _run : runs.values()) {
+				for (Map.Entry<Long, Entry> _e : _run.entries.entrySet()) {
+					Entry _entry = _e.getValue();
+					_out.write(PLANNED + "\t" + _run.id + "\t" + _e.getKey() + "\t" + escape(_entry.tags) + "\t"
+							+ escape(_entry.source) + "\t" + escape(_entry.destination) + "\n");
+					if (_entry.completed) {
+						_out.write(COMPLETED + "\t" + _run.id + "\t" + _e.getKey() + "\n");
+					}
+				}
+				if (_run.ended) {
+					_out.write(ENDED + "\t" + _run.id + "\n");
+				}
+				if (_run.undone) {
+					_out.write(UNDONE + "\t" + _run.id + "\n");
+				}
+			}
+			_out.flush();
+			_fos.getChannel().force(false);
+		}
+		Files.move(_tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * @return	a one-line summary of the current run
+	 */
+	public String getSummary() {
+		return "run=" + runId + ", planned=" + planned.get() + ", syncs=" + syncs.get();
+	}
+
+	/**
+	 * A run as loaded from the log.
+	 */
+	private static class Run {
+		private final String id;
+		private final Map<Long, Entry> entries = new LinkedHashMap<Long, Entry>();
+		private boolean ended = false;
+		private boolean undone = false;
+
+		Run(String id) {
+			this.id = id;
+		}
+	}
+
+	/**
+	 * A planned move as loaded from the log.
+	 */
+	private static class Entry {
+		private final String tags;
+		private final String source;
+		private final String destination;
+		private boolean completed = false;
+
+		Entry(String tags, String source, String destination) {
+			this.tags = tags;
+			this.source = source;
+			this.destination = destination;
+		}
+	}
+}
@@ -0,0 +1,310 @@
+package renfiles;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A complete move plan in a compact, columnar file.<p>
+ * A plan is written by a dry run that classifies all sources but moves nothing ({@link Writer});
+ * it can be reviewed offline ({@link #printJson(File, PrintStream)}, one JSON object per line, which can be
+ * diffed) and applied later without classifying again ({@link #read(File, Visitor)}).<p>
+ * The file consists of groups of up to {@value #GROUP_SIZE} moves, so neither writing nor reading
+ * needs more memory than one group. Within a group, the values are stored column by column: source
+ * directory, source name, destination directory, destination name, tags, rule and the name under which
+ * a replaced destination file is kept (see {@link CollisionIndex}). Directories, tags and rules repeat a lot; they are stored once in a dictionary (the new entries precede each group)
+ * and referenced by number. A destination name that equals the source name is stored as an empty string.
+ * All numbers are variable-length encoded. The file starts with {@value #MAGIC} and ends with an empty group.
+ *
+ * @author Bruno Kaiser
+ * @version $Id$
+ */
+public class MovePlan {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String MAGIC = "RFPLAN02";
+	private static final int GROUP_SIZE = 4096;
+	/** dictionary reference of a null value (no tags) */
+	private static final int NULL = 0;
+
+	private MovePlan() {
+	}
+
+	/**
+	 * Receives the moves of a plan.
+	 */
+	public interface Visitor {
+		/**
+		 * Handles a planned move.
+		 * @param m		the planned move
+		 */
+		void visit(FileMove m) throws IOException, InterruptedException;
+	}
+
+	/**
+	 * Writes a plan. The moves are added in the order of the classification; add() may be called concurrently.
+	 */
+	public static class Writer implements Closeable {
+		private final DataOutputStream out;
+		private final Map<String, Integer> dictionary = new HashMap<String, Integer>();
+		private final List<String> newEntries = new ArrayList<String>();
+		private final List<FileMove> group = new ArrayList<FileMove>(GROUP_SIZE);
+		private long count = 0;
+
+		/**
+		 * Constructor; creates (or replaces) the plan file.
+		 * @param file	the plan file
+		 * @throws IOException
+		 */
+		public Writer(File file) throws IOException {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+			out.write(MAGIC.getBytes(UTF8));
+		}
+
+		/**
+		 * Adds a move to the plan.
+		 * @param m		the planned move
+		 * @throws IOException
+		 */
+		public synchronized void add(FileMove m) throws IOException {
+			group.add(m);
+			count++;
+			if (group.size() >= GROUP_SIZE) {
+				writeGroup();
+			}
+		}
+
+		/**
+		 * @return	the number of moves added so far
+		 */
+		public synchronized long getCount() {
+			return count;
+		}
+
+		private int ref(String value) {
+			if (value == null) {
+				return NULL;
+			}
+			Integer _ref = dictionary.get(value);
+			if (_ref == null) {
+				_ref = dictionary.size() + 1;
+				dictionary.put(value, _ref);
+				newEntries.add(value);
+			}
+			return _ref;
+		}
+
+		private void writeGroup() throws IOException {
+			int _size = group.size();
+			int[] _refs = new int[4 * _size];
+			for (int i = 0; i < _size; i++) {  // collect the new dictionary entries first
+				FileMove _m = group.get(i);
+				_refs[i] = ref(_m.getSource().getAbsoluteFile().getParent());
+				_refs[_size + i] = ref(_m.getDestDirName());
+				_refs[2 * _size + i] = ref(_m.getTags());
+				_refs[3 * _size + i] = ref(_m.getRuleId());
+			}
+			writeVarInt(out, _size);
+			writeVarInt(out, newEntries.size());
+			for (String _e : newEntries) {
+				writeString(out, _e);
+			}
+			newEntries.clear();
+			for (int i = 0; i < _size; i++) {
+				writeVarInt(out, _refs[i]);
+			}
+			for (int i = 0; i < _size; i++) {
+				writeString(out, group.get(i).getSource().getName());
+			}
+			for (int i = 0; i < _size; i++) {
+				writeVarInt(out, _refs[_size + i]);
+			}
+			for (int i = 0; i < _size; i++) {
+				FileMove _m = group.get(i);
+				String _destName = _m.getDestination().getName();
+				writeString(out, _destName.equals(_m.getSource().getName()) ? "" : _destName);
+			}
+			for (int i = 2 * _size; i < 4 * _size; i++) {
+				writeVarInt(out, _refs[i]);
+			}
+			for (int i = 0; i < _size; i++) {
+				String _versionName = group.get(i).getVersionName();
+				writeString(out, _versionName != null ? _versionName : "");
+			}
+			group.clear();
+		}
+
+		/**
+		 * Writes the last group and closes the file.
+		 * @throws IOException
+		 */
+		public synchronized void close() throws IOException {
+			try {
+				if (group.isEmpty() == false) {
+					writeGroup();
+				}
+				writeVarInt(out, 0);
+			}
+			finally {
+				out.close();
+			}
+		}
+	}
+
+	/**
+	 * Reads a plan and passes each move to the visitor, in the order they were added.
+	 *
+	 * @param file		the plan file
+	 * @param visitor	receives the moves
+	 * @return			the number of moves
+	 * @throws IOException	if the file is not a complete plan
+	 * @throws InterruptedException
+	 */
+	public static long read(File file, Visitor visitor) throws IOException, InterruptedException {
+		long _count = 0;
+		try (DataInputStream _in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+			byte[] _magic = new byte[MAGIC.length()];
+			_in.readFully(_magic);
+			if (MAGIC.equals(new String(_magic, UTF8)) == false) {
+				throw new IOException(file + " is not a move plan");
+			}
+			List<String> _dictionary = new ArrayList<String>();
+			_dictionary.add(null);
+			int _size;
+			while ((_size = readVarInt(_in)) > 0) {
+				int _newEntries = readVarInt(_in);
+				for (int i = 0; i < _newEntries; i++) {
+					_dictionary.add(readString(_in));
+				}
+				int[] _sourceDirs = readRefs(_in, _size);
+				String[] _sourceNames = new String[_size];
+				for (int i = 0; i < _size; i++) {
+					_sourceNames[i] = readString(_in);
+				}
+				int[] _destDirs = readRefs(_in, _size);
+				String[] _destNames = new String[_size];
+				for (int i = 0; i < _size; i++) {
+					_destNames[i] = readString(_in);
+				}
+				int[] _tags = readRefs(_in, _size);
+				int[] _rules = readRefs(_in, _size);
+				String[] _versionNames = new String[_size];
+				for (int i = 0; i < _size; i++) {
+					_versionNames[i] = readString(_in);
+				}
+				for (int i = 0; i < _size; i++) {
+					String _destName = _destNames[i].isEmpty() ? _sourceNames[i] : _destNames[i];
+					visitor.visit(new FileMove(new File(_dictionary.get(_sourceDirs[i]), _sourceNames[i]),
+							_dictionary.get(_destDirs[i]), _destName, _dictionary.get(_tags[i]), _dictionary.get(_rules[i]),
+							_versionNames[i].isEmpty() ? null : _versionNames[i]));
+				}
+				_count += _size;
+			}
+		}
+		catch (EOFException _ex) {
+			throw new IOException(file + " is not complete");
+		}
+		catch (IndexOutOfBoundsException _ex) {
+			throw new IOException(file + " is damaged");
+		}
+		return _count;
+	}
+
+	/**
+	 * Returns the destination directories of a plan, e.g. to create them before the plan is applied.
+	 * @param file	the plan file
+	 * @return		the destination directories
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public static List<String> getDestDirNames(File file) throws IOException, InterruptedException {
+		final Map<String, Boolean> _dirs = new HashMap<String, Boolean>();
+		read(file, new Visitor() {
+			public void visit(FileMove m) {
+				_dirs.put(m.getDestDirName(), Boolean.TRUE);
+			}
+		});
+		List<String> _result = new ArrayList<String>(_dirs.keySet());
+		Collections.sort(_result);
+		return _result;
+	}
+
+	/**
+	 * Prints a plan as one JSON object per move, e.g. to review or diff it.
+	 * @param file	the plan file
+	 * @param out	the output
+	 * @return		the number of moves
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public static long printJson(File file, final PrintStream out) throws IOException, InterruptedException {
+		return read(file, new Visitor() {
+			public void visit(FileMove m) {
+				StringBuilder _sb = new StringBuilder(256);
+				Metrics.quote(_sb.append("{\"source\": "), m.getSource().getPath());
+				Metrics.quote(_sb.append(", \"destination\": "), m.getDestination().getPath());
+				if (m.getTags() != null) {
+					Metrics.quote(_sb.append(", \"tags\": "), m.getTags());
+				}
+				Metrics.quote(_sb.append(", \"rule\": "), m.getRuleId());
+				if (m.getVersionName() != null) {
+					Metrics.quote(_sb.append(", \"keep\": "), m.getVersionName());
+				}
+				out.println(_sb.append('}'));
+			}
+		});
+	}
+
+	private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+		while ((value & ~0x7F) != 0) {
+			out.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	private static int readVarInt(DataInputStream in) throws IOException {
+		int _value = 0;
+		for (int _shift = 0; _shift < 35; _shift += 7) {
+			int _b = in.readUnsignedByte();
+			_value |= (_b & 0x7F) << _shift;
+			if ((_b & 0x80) == 0) {
+				return _value;
+			}
+		}
+		throw new IOException("invalid number in move plan");
+	}
+
+	private static int[] readRefs(DataInputStream in, int size) throws IOException {
+		int[] _refs = new int[size];
+		for (int i = 0; i < size; i++) {
+			_refs[i] = readVarInt(in);
+		}
+		return _refs;
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte[] _b = s.getBytes(UTF8);
+		writeVarInt(out, _b.length);
+		out.write(_b);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		byte[] _b = new byte[readVarInt(in)];
+		in.readFully(_b);
+		return new String(_b, UTF8);
+	}
+}
@@ -0,0 +1,317 @@
+package renfiles;
+
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Schedules the moves of a run by their cost.<p>
+ * A run mixes hundreds of small pdf files, which are renamed on the same volume, with multi-GB dmg files,
+ * Bento backup trees and podcast videos, which may have to be copied onto another volume. In the order of the
+ * scan, a single large copy holds up all the cheap renames behind it. Here, each move is classified when it
+ * is submitted: if its source and destination directory are on the same device (file store), it is a
+ * metadata-only rename, otherwise a transfer that copies bytes (see {@link MoveEngine}).
+ * The renames are executed in the order of submission by {@code renameWorkers} threads of their own, so
+ * they never wait for a transfer. The transfers are executed by {@code transferWorkers} threads, the
+ * smallest first; a transfer of at least {@code largeSize} bytes needs one of the {@code transfersPerDevice}
+ * slots of its destination device, so that a disk or a network link is not thrashed by several large copies at once.
+ * A large transfer whose device is busy is put aside and queued again when the device is free, so the
+ * workers can go on with the transfers to other devices.<p>
+ * At most {@code capacity} moves are queued or running; the submitting thread is blocked when this limit is
+ * reached. The depth of both queues is tracked and reported by {@link #getSummary()}.
+ *
+ * @author Bruno Kaiser
+ * @version $Id$
+ */
+public class MoveScheduler {
+	/** the size of a transfer whose source can not be read; it is treated as a large transfer */
+	private static final long UNKNOWN_SIZE = Long.MAX_VALUE;
+
+	/**
+	 * A device (file store) and its large transfers.
+	 */
+	private static class Device {
+		/** the number of large transfers in progress */
+		int active = 0;
+		/** large transfers that wait for a free slot */
+		final ArrayDeque<Task> deferred = new ArrayDeque<Task>();
+	}
+
+	/**
+	 * A submitted move; transfers are ordered by size and then by submission.
+	 */
+	private static class Task implements Comparable<Task> {
+		final Runnable action;
+		final long seq;
+		final long size;
+		final Device device;
+		final boolean large;
+
+		Task(Runnable action, long seq, long size, Device device, boolean large) {
+			this.action = action;
+			this.seq = seq;
+			this.size = size;
+			this.device = device;
+			this.large = large;
+		}
+
+		public int compareTo(Task o) {
+			if (size != o.size) {
+				return size < o.size ? -1 : 1;
+			}
+			return seq < o.seq ? -1 : seq > o.seq ? 1 : 0;
+		}
+	}
+
+	private final int transfersPerDevice;
+	private final long largeSize;
+	private final Semaphore capacity;
+	private final BlockingQueue<Task> renames = new LinkedBlockingQueue<Task>();
+	private final BlockingQueue<Task> transfers = new PriorityBlockingQueue<Task>();
+	private final ExecutorService renamePool;
+	private final ExecutorService transferPool;
+	/** file store -> device */
+	private final ConcurrentMap<FileStore, Device> devices = new ConcurrentHashMap<FileStore, Device>();
+	/** directory -> its device; a directory is mapped to its file store only once */
+	private final ConcurrentMap<String, Device> directories = new ConcurrentHashMap<String, Device>();
+	/** used for directories whose file store can not be determined; moves from or to it are transfers */
+	private final Device unknownDevice = new Device();
+	/** the number of moves that are queued or running */
+	private int pending = 0;
+
+	private final AtomicLong submitted = new AtomicLong();
+	private final AtomicInteger renamed = new AtomicInteger();
+	private final AtomicInteger transferred = new AtomicInteger();
+	private final AtomicInteger large = new AtomicInteger();
+	private final AtomicInteger deferrals = new AtomicInteger();
+	private final AtomicInteger failed = new AtomicInteger();
+	private final AtomicInteger peakRenames = new AtomicInteger();
+	private final AtomicInteger peakTransfers = new AtomicInteger();
+	/** the sum of the queue depths seen by the submitted moves */
+	private final AtomicLong depthSum = new AtomicLong();
+
+	/**
+	 * Constructor; the worker threads are started immediately.
+	 * @param renameWorkers			the number of threads that execute renames
+	 * @param transferWorkers		the number of threads that execute transfers
+	 * @param transfersPerDevice	the maximum number of concurrent large transfers per destination device
+	 * @param largeSize				the size in bytes from which a transfer is large
+	 * @param capacity				the maximum number of moves that are queued or running
+	 */
+	public MoveScheduler(int renameWorkers, int transferWorkers, int transfersPerDevice, long largeSize, int capacity) {
+		this.transfersPerDevice = Math.max(1, transfersPerDevice);
+		this.largeSize = largeSize;
+		this.capacity = new Semaphore(Math.max(1, capacity));
+		renamePool = Executors.newFixedThreadPool(Math.max(1, renameWorkers));
+		transferPool = Executors.newFixedThreadPool(Math.max(1, transferWorkers));
+		for (int i = 0; i < Math.max(1, renameWorkers); i++) {
+			renamePool.execute(new Runnable() {
+				public void run() {
+					runRenames();
+				}
+			});
+		}
+		for (int i = 0; i < Math.max(1, transferWorkers); i++) {
+			transferPool.execute(new Runnable() {
+				public void run() {
+					runTransfers();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Queues a move. Blocks the caller while the scheduler is full.
+	 *
+	 * @param m			the planned move; determines the queue of the action
+	 * @param action	executes the move; failures must be handled by the action itself
+	 * @throws InterruptedException
+	 */
+	public void submit(FileMove m, Runnable action) throws InterruptedException {
+		capacity.acquire();
+		synchronized (this) {
+			pending++;
+		}
+		long _seq = submitted.incrementAndGet();
+		Path _src = m.getSource().toPath().toAbsolutePath();
+		Device _srcDevice = getDevice(_src.getParent());
+		Device _destDevice = getDevice(m.getDestination().toPath().toAbsolutePath().getParent());
+		if (_srcDevice == _destDevice && _srcDevice != unknownDevice) {
+			renamed.incrementAndGet();
+			renames.add(new Task(action, _seq, 0, _destDevice, false));
+			depthSum.addAndGet(updatePeak(peakRenames, renames.size()));
+		}
+		else {
+			long _size = getSize(_src);
+			boolean _large = _size >= largeSize;
+			transferred.incrementAndGet();
+			if (_large) {
+				large.incrementAndGet();
+			}
+			transfers.add(new Task(action, _seq, _size, _destDevice, _large));
+			depthSum.addAndGet(updatePeak(peakTransfers, transfers.size()));
+		}
+	}
+
+	/**
+	 * Waits until all submitted moves are done and stops the workers.
+	 * @throws InterruptedException
+	 */
+	public void shutdown() throws InterruptedException {
+		try {
+			synchronized (this) {
+				while (pending > 0) {
+					wait();
+				}
+			}
+		}
+		finally {
+			renamePool.shutdownNow();
+			transferPool.shutdownNow();
+		}
+	}
+
+	private void runRenames() {
+		try {
+			while (true) {
+				execute(renames.take());
+			}
+		}
+		catch (InterruptedException _ex) {
+			// shutdown
+		}
+	}
+
+	private void runTransfers() {
+		try {
+			while (true) {
+				Task _t = transfers.take();
+				if (_t.large == false) {
+					execute(_t);
+					continue;
+				}
+				synchronized (_t.device) {
+					if (_t.device.active >= transfersPerDevice) {
+						_t.device.deferred.add(_t);
+						deferrals.incrementAndGet();
+						continue;
+					}
+					_t.device.active++;
+				}
+				try {
+					execute(_t);
+				}
+				finally {
+					Task _next;
+					synchronized (_t.device) {
+						_t.device.active--;
+						_next = _t.device.deferred.poll();
+					}
+					if (_next != null) {
+						transfers.add(_next);
+					}
+				}
+			}
+		}
+		catch (InterruptedException _ex) {
+			// shutdown
+		}
+	}
+
+	private void execute(Task t) {
+		try {
+			t.action.run();
+		}
+		catch (RuntimeException _ex) {
+			failed.incrementAndGet();
+			AsyncLog.println("******** failed in MoveScheduler.execute() with " + _ex.toString() + "*********");
+		}
+		finally {
+			capacity.release();
+			synchronized (this) {
+				if (--pending == 0) {
+					notifyAll();
+				}
+			}
+		}
+	}
+
+	private Device getDevice(Path dir) {
+		if (dir == null) {
+			return unknownDevice;
+		}
+		String _key = dir.toString();
+		Device _device = directories.get(_key);
+		if (_device == null) {
+			_device = unknownDevice;
+			FileStore _store = MountExecutor.getFileStore(dir);
+			if (_store != null) {
+				Device _new = new Device();
+				_device = devices.putIfAbsent(_store, _new);
+				if (_device == null) {
+					_device = _new;
+				}
+			}
+			directories.putIfAbsent(_key, _device);
+		}
+		return _device;
+	}
+
+	/**
+	 * @return	the size of a file or the total size of the files of a directory tree, or UNKNOWN_SIZE
+	 */
+	private static long getSize(Path p) {
+		try {
+			BasicFileAttributes _attrs = Files.readAttributes(p, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+			if (_attrs.isDirectory() == false) {
+				return _attrs.size();
+			}
+			final long[] _size = new long[1];
+			Files.walkFileTree(p, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+					_size[0] += attrs.size();
+					return FileVisitResult.CONTINUE;
+				}
+			});
+			return _size[0];
+		}
+		catch (IOException _ex) {
+			return UNKNOWN_SIZE;
+		}
+	}
+
+	private static int updatePeak(AtomicInteger peak, int depth) {
+		int _peak = peak.get();
+		while (depth > _peak && peak.compareAndSet(_peak, depth) == false) {
+			_peak = peak.get();
+		}
+		return depth;
+	}
+
+	/**
+	 * @return	a one-line summary of the scheduled moves and the depth of the queues
+	 */
+	public String getSummary() {
+		long _submitted = submitted.get();
+		return "renames=" + renamed.get() + ", transfers=" + transferred.get() + ", large=" + large.get() + ", deferred=" + deferrals.get()
+				+ ", failed=" + failed.get() + ", devices=" + devices.size() + ", peakRenameQueue=" + peakRenames.get()
+				+ ", peakTransferQueue=" + peakTransfers.get() + ", meanQueueDepth=" + (depthSum.get() / Math.max(1, _submitted));
+	}
+}
@@ -0,0 +1,283 @@
+package renfiles;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Parallel file processing pipeline.<p>
+ * The work is split into four stages that are connected by bounded queues:
+ * <ul>
+ * <li>scan: list the candidate files of each {@link FileSource}; the sources are scanned concurrently
+ * <li>classify: determine destination and tags of each file
+ * <li>move: create the destination directory and move the file
+ * <li>tag: add the finder tags to the moved file
+ * </ul>
+ * Each stage runs with its own number of worker threads. A stage terminates when the stage before
+ * it has terminated and its input queue is drained.
+ *
+ * @author Bruno Kaiser
+ * @version $Id$
+ */
+public class Pipeline {
+	private static final long POLL_MILLIS = 50;
+
+	/**
+	 * A source of files, e.g. the pdf inbox or a podcast feed directory.
+	 */
+	public interface FileSource {
+		/**
+		 * @return	the name of the source (used in messages)
+		 */
+		String getName();
+
+		/**
+		 * Streams the candidate files of this source and passes each of them to the visitor.
+		 * @param visitor	receives the files
+		 */
+		void scan(DirectoryScanner.Visitor visitor) throws IOException, InterruptedException;
+
+		/**
+		 * Determines what to do with a file of this source.
+		 * @param f		a file found by scan()
+		 * @return		the planned move or null if the file is not recognized
+		 */
+		FileMove classify(File f) throws IOException;
+	}
+
+	/**
+	 * Executes the move and tag stages.
+	 */
+	public interface MoveHandler {
+		/**
+		 * Moves a file.
+		 * @param m		the planned move
+		 * @return		true if the file was moved and is passed on to the tag stage
+		 */
+		boolean move(FileMove m) throws IOException;
+
+		/**
+		 * Adds the finder tags to a moved file.
+		 * @param m		the executed move
+		 */
+		void tag(FileMove m) throws IOException;
+	}
+
+	private final int scanWorkers;
+	private final int classifyWorkers;
+	private final int moveWorkers;
+	private final int tagWorkers;
+	private final int queueSize;
+	private final MoveHandler handler;
+
+	private final AtomicInteger scanned = new AtomicInteger();
+	private final AtomicInteger classified = new AtomicInteger();
+	private final AtomicInteger moved = new AtomicInteger();
+	private final AtomicInteger tagged = new AtomicInteger();
+	private final AtomicInteger failed = new AtomicInteger();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param scanWorkers		number of threads that scan sources
+	 * @param classifyWorkers	number of threads that classify files
+	 * @param moveWorkers		number of threads that move files
+	 * @param tagWorkers		number of threads that tag files
+	 * @param queueSize			capacity of each queue between two stages
+	 * @param handler			executes the moves and the tagging
+	 */
+	public Pipeline(int scanWorkers, int classifyWorkers, int moveWorkers, int tagWorkers, int queueSize, MoveHandler handler) {
+		this.scanWorkers = Math.max(1, scanWorkers);
+		this.classifyWorkers = Math.max(1, classifyWorkers);
+		this.moveWorkers = Math.max(1, moveWorkers);
+		this.tagWorkers = Math.max(1, tagWorkers);
+		this.queueSize = Math.max(1, queueSize);
+		this.handler = handler;
+	}
+
+	/**
+	 * Runs all sources through the pipeline and waits until all stages are completed.
+	 *
+	 * @param sources	the sources to process
+	 * @throws InterruptedException
+	 */
+	public void run(List<FileSource> sources) throws InterruptedException {
+		final Queue<FileSource> _sourceQueue = new ConcurrentLinkedQueue<FileSource>(sources);
+		final BlockingQueue<ScanItem> _classifyQueue = new ArrayBlockingQueue<ScanItem>(queueSize);
+		final BlockingQueue<FileMove> _moveQueue = new ArrayBlockingQueue<FileMove>(queueSize);
+		final BlockingQueue<FileMove> _tagQueue = new ArrayBlockingQueue<FileMove>(queueSize);
+		final CountDownLatch _scanDone = new CountDownLatch(scanWorkers);
+		final CountDownLatch _classifyDone = new CountDownLatch(classifyWorkers);
+		final CountDownLatch _moveDone = new CountDownLatch(moveWorkers);
+		final CountDownLatch _tagDone = new CountDownLatch(tagWorkers);
+
+		ExecutorService _executor = Executors.newFixedThreadPool(scanWorkers + classifyWorkers + moveWorkers + tagWorkers);
+		try {
+			for (int i = 0; i < scanWorkers; i++) {
+				_executor.execute(new Runnable() {
+					public void run() {
+						try {
+							FileSource _source;
+							while ((_source = _sourceQueue.poll()) != null) {
+								scan(_source, _classifyQueue);
+							}
+						}
+						catch (InterruptedException _ex) {
+							Thread.currentThread().interrupt();
+						}
+						finally {
+							_scanDone.countDown();
+						}
+					}
+				});
+			}
+			for (int i = 0; i < classifyWorkers; i++) {
+				_executor.execute(new Stage<ScanItem>(_classifyQueue, _scanDone, _classifyDone) {
+					void process(ScanItem item) throws IOException, InterruptedException {
+						FileMove _m = item.source.classify(item.file);
+						if (_m != null) {
+							classified.incrementAndGet();
+							_moveQueue.put(_m);
+						}
+					}
+				});
+			}
+			for (int i = 0; i < moveWorkers; i++) {
+				_executor.execute(new Stage<FileMove>(_moveQueue, _classifyDone, _moveDone) {
+					void process(FileMove m) throws IOException, InterruptedException {
+						if (handler.move(m)) {
+							moved.incrementAndGet();
+							_tagQueue.put(m);
+						}
+					}
+				});
+			}
+			for (int i = 0; i < tagWorkers; i++) {
+				_executor.execute(new Stage<FileMove>(_tagQueue, _moveDone, _tagDone) {
+					void process(FileMove m) throws IOException {
+						handler.tag(m);
+						tagged.incrementAndGet();
+					}
+				});
+			}
+			_tagDone.await();
+		}
+		finally {
+			_executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Scans a single source and feeds its files into the classify queue.
+	 */
+	private void scan(final FileSource source, final BlockingQueue<ScanItem> out) throws InterruptedException {
+		try {
+			source.scan(new DirectoryScanner.Visitor() {
+				public void visit(Path p, BasicFileAttributes attrs) throws InterruptedException {
+					scanned.incrementAndGet();
+					out.put(new ScanItem(source, p.toFile()));
+				}
+			});
+		}
+		catch (IOException _ex) {
+			failed.incrementAndGet();
+			AsyncLog.println("******** failed in scan of " + source.getName() + " with " + _ex.toString() + "*********");
+		}
+		catch (RuntimeException _ex) {
+			failed.incrementAndGet();
+			AsyncLog.println("******** failed in scan of " + source.getName() + " with " + _ex.toString() + "*********");
+		}
+	}
+
+	/**
+	 * @return	the number of files (or sources) that failed in the last run
+	 */
+	public int getFailed() {
+		return failed.get();
+	}
+
+	/**
+	 * @return	a one-line summary of the counters of the last run
+	 */
+	public String getSummary() {
+		return "scanned=" + scanned.get() + ", classified=" + classified.get() + ", moved=" + moved.get()
+				+ ", tagged=" + tagged.get() + ", failed=" + failed.get();
+	}
+
+	/**
+	 * A file found by the scan stage, together with its source.
+	 */
+	private static class ScanItem {
+		private final FileSource source;
+		private final File file;
+
+		ScanItem(FileSource source, File file) {
+			this.source = source;
+			this.file = file;
+		}
+
+		@Override
+		public String toString() {
+			return file.getName();
+		}
+	}
+
+	/**
+	 * A worker of a stage: takes items from its input queue until the previous stage
+	 * is done and the queue is empty.
+	 */
+	private abstract class Stage<T> implements Runnable {
+		private final BlockingQueue<T> in;
+		private final CountDownLatch upstreamDone;
+		private final CountDownLatch done;
+
+		Stage(BlockingQueue<T> in, CountDownLatch upstreamDone, CountDownLatch done) {
+			this.in = in;
+			this.upstreamDone = upstreamDone;
+			this.done = done;
+		}
+
+		abstract void process(T item) throws IOException, InterruptedException;
+
+		public void run() {
+			try {
+				while (true) {
+					T _item = in.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+					if (_item != null) {
+						try {
+							process(_item);
+						}
+						catch (IOException _ex) {
+							failed.incrementAndGet();
+							AsyncLog.println("******** failed with " + _item + ": " + _ex.toString() + "*********");
+						}
+						catch (RuntimeException _ex) {
+							failed.incrementAndGet();
+							AsyncLog.println("******** failed with " + _item + ": " + _ex.toString() + "*********");
+						}
+					}
+					else if (upstreamDone.getCount() == 0 && in.isEmpty()) {
+						break;
+					}
+				}
+			}
+			catch (InterruptedException _ex) {
+				Thread.currentThread().interrupt();
+			}
+			finally {
+				done.countDown();
+			}
+		}
+	}
+}
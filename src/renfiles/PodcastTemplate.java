@@ -0,0 +1,169 @@
+package renfiles;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * Compiled rename template of a podcast feed, e.g. <code>{date}sfdrs{dest}.mp4</code>.<p>
+ * The template is parsed once into a sequence of literals and placeholders; a name is rendered into
+ * a StringBuilder that is reused by each thread, and the dates are formatted digit by digit
+ * ({@link LeadingDate#fromMillis(long, TimeZone)}), so rendering a name allocates little more than the name itself.
+ * Placeholders:
+ * <ul>
+ * <li><code>{date}</code>: the 8 characters after the prefix of the file name (yyyyMMdd)
+ * <li><code>{mtime}</code>: the date of the last modification of the file, yyyyMMdd
+ * <li><code>{name}</code>: the file name; <code>{name-N}</code>: the file name without its last N characters
+ * <li><code>{stem}</code>: the file name without its extension
+ * <li><code>{dest}</code>: the name of the podcast in the destination (resolved when the template is compiled)
+ * </ul>
+ *
+ * @author Bruno Kaiser
+ * @version $Id$
+ */
+public class PodcastTemplate {
+	private static final int LITERAL = 0;
+	private static final int DATE = 1;
+	private static final int MTIME = 2;
+	private static final int NAME = 3;
+	private static final int STEM = 4;
+
+	/** one buffer per thread, reused for all names */
+	private static final ThreadLocal<StringBuilder> BUFFERS = new ThreadLocal<StringBuilder>() {
+		@Override
+		protected StringBuilder initialValue() {
+			return new StringBuilder(128);
+		}
+	};
+
+	private final String template;
+	private final int prefixLength;
+	private final TimeZone zone = TimeZone.getDefault();
+	/** the kind of each part */
+	private final int[] kinds;
+	/** LITERAL: the text */
+	private final String[] literals;
+	/** NAME: the number of characters to cut off */
+	private final int[] cuts;
+
+	/**
+	 * Compiles a template.
+	 * @param template		the template, see class comment
+	 * @param prefix		the prefix of the file names of the feed, followed by the date
+	 * @param destName		the name of the podcast in the destination
+	 * @throws IllegalArgumentException		if the template contains an unknown placeholder
+	 */
+	public PodcastTemplate(String template, String prefix, String destName) {
+		this.template = template;
+		this.prefixLength = prefix != null ? prefix.length() : 0;
+		List<Integer> _kinds = new ArrayList<Integer>();
+		List<String> _literals = new ArrayList<String>();
+		List<Integer> _cuts = new ArrayList<Integer>();
+		StringBuilder _literal = new StringBuilder();
+		int _pos = 0;
+		while (_pos < template.length()) {
+			int _open = template.indexOf('{', _pos);
+			int _close = _open < 0 ? -1 : template.indexOf('}', _open);
+			if (_close < 0) {
+				_literal.append(template, _pos, template.length());
+				break;
+			}
+			_literal.append(template, _pos, _open);
+			String _name = template.substring(_open + 1, _close);
+			_pos = _close + 1;
+			if (_name.equals("dest")) {
+				_literal.append(destName);
+				continue;
+			}
+			int _kind;
+			int _cut = 0;
+			if (_name.equals("date")) {
+				_kind = DATE;
+			}
+			else if (_name.equals("mtime")) {
+				_kind = MTIME;
+			}
+			else if (_name.equals("stem")) {
+				_kind = STEM;
+			}
+			else if (_name.equals("name") || _name.startsWith("name-")) {
+				_kind = NAME;
+				_cut = _name.length() > 5 ? Integer.parseInt(_name.substring(5)) : 0;
+			}
+			else {
+				throw new IllegalArgumentException("unknown placeholder {" + _name + "} in " + template);
+			}
+			if (_literal.length() > 0) {
+				_kinds.add(LITERAL);
+				_literals.add(_literal.toString());
+				_cuts.add(0);
+				_literal.setLength(0);
+			}
+			_kinds.add(_kind);
+			_literals.add(null);
+			_cuts.add(_cut);
+		}
+		if (_literal.length() > 0) {
+			_kinds.add(LITERAL);
+			_literals.add(_literal.toString());
+			_cuts.add(0);
+		}
+		kinds = new int[_kinds.size()];
+		cuts = new int[_kinds.size()];
+		for (int i = 0; i < kinds.length; i++) {
+			kinds[i] = _kinds.get(i);
+			cuts[i] = _cuts.get(i);
+		}
+		literals = _literals.toArray(new String[_literals.size()]);
+	}
+
+	/**
+	 * Renders the destination name of an episode.
+	 * @param f		the file of the episode
+	 * @return		the destination name, or null if the file name is too short for the template
+	 */
+	public String render(File f) {
+		String _name = f.getName();
+		StringBuilder _buf = BUFFERS.get();
+		_buf.setLength(0);
+		for (int i = 0; i < kinds.length; i++) {
+			switch (kinds[i]) {
+			case LITERAL:
+				_buf.append(literals[i]);
+				break;
+			case DATE:
+				if (_name.length() < prefixLength + 8) {
+					return null;
+				}
+				_buf.append(_name, prefixLength, prefixLength + 8);
+				break;
+			case MTIME:
+				appendDate(_buf, LeadingDate.fromMillis(f.lastModified(), zone));
+				break;
+			case STEM:
+				int _dot = _name.lastIndexOf('.');
+				_buf.append(_name, 0, _dot > 0 ? _dot : _name.length());
+				break;
+			default:  // NAME
+				if (_name.length() < cuts[i]) {
+					return null;
+				}
+				_buf.append(_name, 0, _name.length() - cuts[i]);
+				break;
+			}
+		}
+		return _buf.toString();
+	}
+
+	private static void appendDate(StringBuilder buf, int yyyyMMdd) {
+		for (int _div = 10000000; _div > 0; _div /= 10) {
+			buf.append((char) ('0' + yyyyMMdd / _div % 10));
+		}
+	}
+
+	@Override
+	public String toString() {
+		return template;
+	}
+}
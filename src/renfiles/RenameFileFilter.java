@@ -1,5 +1,8 @@
 package renfiles;
 import java.io.File;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Path;
+import java.util.List;
 
 /**
  * A FilenameFilter with a configurable selection criteria.
@@ -7,22 +10,34 @@ import java.io.File;
  * filter filenames. These instances are used to filter directory
  * listings in the <code>list</code> method of class
  * <code>File</code>, and by the Abstract Window Toolkit's file
- * dialog component.
+ * dialog component.<p>
+ * The same criteria is available as a <code>DirectoryStream.Filter</code>;
+ * it only looks at the name of an entry, i.e. it does not access the filesystem.
  *
  * @author  Bruno Kaiser
  * @see     java.io.FilenameFilter
  * @see     java.io.File#list(java.io.FilenameFilter)
+ * @see     java.nio.file.Files#newDirectoryStream(Path, java.nio.file.DirectoryStream.Filter)
  * @since   JDK1.0
  */
-public class RenameFileFilter implements java.io.FilenameFilter {
-	private String fileNameExtension = "";
+public class RenameFileFilter implements java.io.FilenameFilter, DirectoryStream.Filter<Path> {
+	private String[] fileNameExtensions = { "" };
 	/**
 	 * Constructor.
 	 * 
 	 * @param ext			the command line parameters (@see #printUsage()) for a list of valid arguments.
 	 */
 	public RenameFileFilter(String ext) {
-		fileNameExtension = ext;
+		fileNameExtensions = new String[] { ext };
+	}
+
+	/**
+	 * Constructor for a filter that accepts several extensions, e.g. for a scan that is shared by several jobs.
+	 * 
+	 * @param extensions	the file name extensions
+	 */
+	public RenameFileFilter(List<String> extensions) {
+		fileNameExtensions = extensions.toArray(new String[extensions.size()]);
 	}
 
     /**
@@ -35,14 +50,33 @@ public class RenameFileFilter implements java.io.FilenameFilter {
      */
 	public boolean accept(File dir, String name) {
 	//	System.out.print("accept(" + dir.toString() + ", " + name + ") <-" + fileNameExtension);
-		if (name.toLowerCase().endsWith(fileNameExtension)) { 
-	//		System.out.println(" = true");
-			return true;
-		}
-		else {
-	//		System.out.println(" = false");
-			return false;
+		return accept(name);
+	}
+
+    /**
+     * Tests if a directory entry should be included in a directory stream.
+     *
+     * @param   entry  the directory entry
+     * @return  <code>true</code> if and only if the name of the entry should be
+     * included in the directory stream; <code>false</code> otherwise.
+     */
+	public boolean accept(Path entry) {
+		Path _name = entry.getFileName();
+		return _name != null && accept(_name.toString());
+	}
+
+	/**
+	 * Compares the end of the name with the extensions, ignoring case, without
+	 * creating a lower case copy of the name.
+	 */
+	private boolean accept(String name) {
+		for (String _ext : fileNameExtensions) {
+			int _len = _ext.length();
+			if (name.regionMatches(true, name.length() - _len, _ext, 0, _len)) {
+				return true;
+			}
 		}
+		return false;
 	}
 
 }
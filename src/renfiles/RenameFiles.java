@@ -1,7 +1,16 @@
 package renfiles;
 import java.io.*;
-import java.text.SimpleDateFormat;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Utility to automate some regular file conversion tasks.<p>
@@ -39,25 +48,166 @@ public class RenameFiles {
 	private static String destDirName = ".";
 	private static String podcastSrcDirName = ".";
 	private static String podcastDestDirName = ".";
+	private static boolean pipelineMode = false;
+	private static int scanWorkers = 2;
+	private static int classifyWorkers = 1;
+	private static int moveWorkers = 4;
+	private static int tagWorkers = 2;
+	private static int queueSize = 1000;
+	private static boolean daemonMode = false;
+	private static long settleMillis = 1000;
+	private static String tagBackend = "command";
+	private static String tagCommand = "/usr/local/bin/tag";
+	private static int tagMaxArgLength = 100000;
+	private static int tagBatchSize = 500;
+	private static boolean incrementalMode = false;
+	private static String journalFileName = "renfiles.journal";
+	private static boolean transactionalMode = false;
+	private static String moveLogFileName = "renfiles.movelog";
+	private static int moveBatchSize = 100;
+	private static String dedupMode = "off";
+	private static String dedupIndexFileName = "renfiles.dedup";
+	private static boolean metricsMode = false;
+	private static String metricsFileName = "renfiles-metrics.json";
+	private static int traversalParallelism = 4;
+	private static int applyWorkers = 8;
+	private static boolean removeEmptyBackups = true;
+	private static String collisionPolicy = "suffix";
+	/** the staging tree that is copied to the archive volume; empty for destDirName/toPegasus */
+	private static String syncSrcDirName = "";
+	/** the root of the archive volume; empty if there is none */
+	private static String syncDestDirName = "";
+	private static boolean syncAfterRun = false;
+	private static int syncChunkMB = 8;
+	private static int syncFileWorkers = 4;
+	private static int syncChunkWorkers = 8;
+	private static boolean virtualThreadMode = false;
+	private static int mountConcurrency = 64;
+	private static int auditParallelism = 16;
+	private static boolean epaperIndexMode = false;
+	private static String epaperIndexFileName = "renfiles.epapers";
+	private static boolean moveSchedulerMode = false;
+	private static int renameWorkers = 4;
+	private static int transferWorkers = 2;
+	private static int transfersPerDevice = 1;
+	private static int largeFileMB = 64;
+	private static int schedulerCapacity = 10000;
+	private static boolean searchIndexMode = false;
+	private static String searchIndexFileName = "renfiles.search";
+	/** extracts the text of a pdf file for the search index, e.g. "pdftotext -q -l 2"; empty to index no text */
+	private static String searchTextCommand = "";
+	private static int searchLimit = 200;
+	/** the days of the week on which the epapers appear, see {@link EpaperIndex#createPublications(List, String, String)} */
+	private static String epaperSchedules = "nzz=Mon-Sat,nzzs=Sun,20min=Mon-Fri,tagesanzeiger=Mon-Sat,sonntagszeitung=Sun,zsz=Mon-Sat";
+	private static String bentoSrcDirName = "/Users/bruno/Documents";
+	private static String shakehandsSrcDirName = "/Users/bruno/Documents/dfs/sysadm/ProSaldoBackup";
+	/** the time the shutdown hook of the daemon waits for the move in progress */
+	private static final long DAEMON_STOP_MILLIS = 30000;
+	/** built-in podcast jobs: source directory name, file name prefix, destination name, template, tags */
+	private static final String[][] PODCASTS = {
+		{ "10vor10", "10vor10_", "10vor10", "{date}sfdrs{dest}.mp4", "dNews" },
+		{ "DOK", "dok_", "Dok", "{date}sfdrs{dest}.mp4", "dNews" },
+		{ "ECO", "eco_", "Eco", "{date}sfdrs{dest}.mp4", "dNews" },
+		{ "Einstein", "einstein_", "Einstein", "{date}sfdrs{dest}.mp4", "dNews" },
+		{ "Giacobbo---M--ller", "giacobbomueller_", "GiacobboMueller", "{date}sfdrs{dest}.mp4", "dNews" },
+		{ "Kassensturz", "kassensturz_", "Kassensturz", "{date}sfdrs{dest}.mp4", "dNews" },
+		{ "Reporter", "reporter_", "Reporter", "{date}sfdrs{dest}.mp4", "dNews" },
+		{ "Tagesschau", "ts20_", "Tagesschau", "{date}sfdrs{dest}.mp4", "dNews" },
+		{ "TEDTalks--video-", "tedtalks", "tedtalks", "{mtime}{dest}{name-10}.mp4", "tTech" }
+	};
 	private File workDir = null;
+	private final RuleTable ruleTable = RuleTable.getDefault();
+	private TagWriter tagWriter = null;
+	private final MoveEngine moveEngine = new MoveEngine();
+	private final DestinationDirectories destinations = new DestinationDirectories();
+	private ForkJoinScanner treeScanner = null;
+	private Journal journal = null;
+	private MoveLog moveLog = null;
+	/** created by the first move, see {@link #getDedupIndex()} */
+	private volatile DedupIndex dedupIndex = null;
+	/** null if collisionPolicy=off, i.e. an existing destination file is replaced */
+	private CollisionIndex collisionIndex = null;
+	private EpaperIndex epaperIndex = null;
+	private SearchIndex searchIndex = null;
+	private final Metrics metrics = new Metrics();
+	/** the jobs to run, see {@link Job#load(Properties, List)} */
+	private List<Job> jobs = null;
+	/** moves of the current batch, see {@link #convert(FileMove)} */
+	private final List<FileMove> pendingMoves = new ArrayList<FileMove>();
+	private final AtomicInteger failures = new AtomicInteger();
 
 	/**
 	 * Constructor.
 	 * The idea is to start this programm out of Eclipse and to control it via properties settings. 
-	 * Therefore, command line parameters are not supported.
+	 * Therefore, command line parameters are not supported. The configuration is read from
+	 * renfiles.properties, or from the file named by the system property renfiles.config.
 	 * 
 	 * @throws IOException
 	 */
 	public RenameFiles() throws IOException {
 		// load default configuration in the project root directory
 		Properties _props = new Properties();
-		_props.load(new FileInputStream("renfiles.properties"));
+		try (InputStream _in = new FileInputStream(System.getProperty("renfiles.config", "renfiles.properties"))) {
+			_props.load(_in);
+		}
 		destDirName = saveReadProperty(_props, "destDirName", destDirName);
 		srcDirName = saveReadProperty(_props, "srcDirName", srcDirName);
 		testMode = saveReadBooleanProperty(_props, "testMode", testMode);
 		debugMode = saveReadBooleanProperty(_props, "debugMode", debugMode);
 		podcastSrcDirName = saveReadProperty(_props, "podcastSrcDirName", podcastSrcDirName);
 		podcastDestDirName = saveReadProperty(_props, "podcastDestDirName", podcastDestDirName);
+		bentoSrcDirName = saveReadProperty(_props, "bentoSrcDirName", bentoSrcDirName);
+		shakehandsSrcDirName = saveReadProperty(_props, "shakehandsSrcDirName", shakehandsSrcDirName);
+		pipelineMode = saveReadBooleanProperty(_props, "pipelineMode", pipelineMode);
+		scanWorkers = saveReadIntProperty(_props, "scanWorkers", scanWorkers);
+		classifyWorkers = saveReadIntProperty(_props, "classifyWorkers", classifyWorkers);
+		moveWorkers = saveReadIntProperty(_props, "moveWorkers", moveWorkers);
+		tagWorkers = saveReadIntProperty(_props, "tagWorkers", tagWorkers);
+		queueSize = saveReadIntProperty(_props, "queueSize", queueSize);
+		daemonMode = saveReadBooleanProperty(_props, "daemonMode", daemonMode);
+		settleMillis = saveReadIntProperty(_props, "settleMillis", (int) settleMillis);
+		tagBackend = saveReadProperty(_props, "tagBackend", tagBackend);
+		tagCommand = saveReadProperty(_props, "tagCommand", tagCommand);
+		tagMaxArgLength = saveReadIntProperty(_props, "tagMaxArgLength", tagMaxArgLength);
+		tagBatchSize = saveReadIntProperty(_props, "tagBatchSize", tagBatchSize);
+		incrementalMode = saveReadBooleanProperty(_props, "incrementalMode", incrementalMode);
+		journalFileName = saveReadProperty(_props, "journalFileName", journalFileName);
+		transactionalMode = saveReadBooleanProperty(_props, "transactionalMode", transactionalMode);
+		moveLogFileName = saveReadProperty(_props, "moveLogFileName", moveLogFileName);
+		moveBatchSize = saveReadIntProperty(_props, "moveBatchSize", moveBatchSize);
+		dedupMode = saveReadProperty(_props, "dedupMode", dedupMode);
+		dedupIndexFileName = saveReadProperty(_props, "dedupIndexFileName", dedupIndexFileName);
+		metricsMode = saveReadBooleanProperty(_props, "metricsMode", metricsMode);
+		metricsFileName = saveReadProperty(_props, "metricsFileName", metricsFileName);
+		traversalParallelism = saveReadIntProperty(_props, "traversalParallelism", traversalParallelism);
+		applyWorkers = saveReadIntProperty(_props, "applyWorkers", applyWorkers);
+		removeEmptyBackups = saveReadBooleanProperty(_props, "removeEmptyBackups", removeEmptyBackups);
+		collisionPolicy = saveReadProperty(_props, "collisionPolicy", collisionPolicy);
+		syncSrcDirName = saveReadProperty(_props, "syncSrcDirName", syncSrcDirName);
+		if (syncSrcDirName.isEmpty()) {
+			syncSrcDirName = destDirName + "/toPegasus";
+		}
+		syncDestDirName = saveReadProperty(_props, "syncDestDirName", syncDestDirName);
+		syncAfterRun = saveReadBooleanProperty(_props, "syncAfterRun", syncAfterRun);
+		syncChunkMB = saveReadIntProperty(_props, "syncChunkMB", syncChunkMB);
+		syncFileWorkers = saveReadIntProperty(_props, "syncFileWorkers", syncFileWorkers);
+		syncChunkWorkers = saveReadIntProperty(_props, "syncChunkWorkers", syncChunkWorkers);
+		virtualThreadMode = saveReadBooleanProperty(_props, "virtualThreadMode", virtualThreadMode);
+		mountConcurrency = saveReadIntProperty(_props, "mountConcurrency", mountConcurrency);
+		auditParallelism = saveReadIntProperty(_props, "auditParallelism", auditParallelism);
+		epaperIndexMode = saveReadBooleanProperty(_props, "epaperIndexMode", epaperIndexMode);
+		moveSchedulerMode = saveReadBooleanProperty(_props, "moveSchedulerMode", moveSchedulerMode);
+		renameWorkers = saveReadIntProperty(_props, "renameWorkers", renameWorkers);
+		transferWorkers = saveReadIntProperty(_props, "transferWorkers", transferWorkers);
+		transfersPerDevice = saveReadIntProperty(_props, "transfersPerDevice", transfersPerDevice);
+		largeFileMB = saveReadIntProperty(_props, "largeFileMB", largeFileMB);
+		schedulerCapacity = saveReadIntProperty(_props, "schedulerCapacity", schedulerCapacity);
+		searchIndexMode = saveReadBooleanProperty(_props, "searchIndexMode", searchIndexMode);
+		searchIndexFileName = saveReadProperty(_props, "searchIndexFileName", searchIndexFileName);
+		searchTextCommand = saveReadProperty(_props, "searchTextCommand", searchTextCommand);
+		searchLimit = saveReadIntProperty(_props, "searchLimit", searchLimit);
+		epaperIndexFileName = saveReadProperty(_props, "epaperIndexFileName", epaperIndexFileName);
+		epaperSchedules = saveReadProperty(_props, "epaperSchedules", epaperSchedules);
 
 		if (debugMode) {
 			System.out.println("srcDirName=" + srcDirName);
@@ -66,8 +216,64 @@ public class RenameFiles {
 			System.out.println("testMode=" + debugMode);
 			System.out.println("podcastSrcDirName=" + podcastSrcDirName);
 			System.out.println("podcastDestDirName=" + podcastDestDirName);
+			System.out.println("bentoSrcDirName=" + bentoSrcDirName + ", shakehandsSrcDirName=" + shakehandsSrcDirName);
+			System.out.println("pipelineMode=" + pipelineMode + ", daemonMode=" + daemonMode);
+			if (pipelineMode) {
+				System.out.println("workers: scan=" + scanWorkers + ", classify=" + classifyWorkers + 
+						", move=" + moveWorkers + ", tag=" + tagWorkers + ", queueSize=" + queueSize);
+			}
+			System.out.println("tagBackend=" + tagBackend + ", tagCommand=" + tagCommand);
+			System.out.println("incrementalMode=" + incrementalMode + ", journalFileName=" + journalFileName);
+			System.out.println("transactionalMode=" + transactionalMode + ", moveLogFileName=" + moveLogFileName + 
+					", moveBatchSize=" + moveBatchSize);
+			System.out.println("dedupMode=" + dedupMode + ", dedupIndexFileName=" + dedupIndexFileName);
+			System.out.println("metricsMode=" + metricsMode + ", metricsFileName=" + metricsFileName);
+			System.out.println("traversalParallelism=" + traversalParallelism + ", removeEmptyBackups=" + removeEmptyBackups);
+			System.out.println("applyWorkers=" + applyWorkers + ", collisionPolicy=" + collisionPolicy);
+			System.out.println("syncSrcDirName=" + syncSrcDirName + ", syncDestDirName=" + syncDestDirName + ", syncAfterRun=" + syncAfterRun
+					+ ", syncChunkMB=" + syncChunkMB + ", syncFileWorkers=" + syncFileWorkers + ", syncChunkWorkers=" + syncChunkWorkers);
+			System.out.println("virtualThreadMode=" + virtualThreadMode + ", mountConcurrency=" + mountConcurrency
+					+ ", auditParallelism=" + auditParallelism);
+			System.out.println("epaperIndexMode=" + epaperIndexMode + ", epaperIndexFileName=" + epaperIndexFileName 
+					+ ", epaperSchedules=" + epaperSchedules);
+			System.out.println("moveSchedulerMode=" + moveSchedulerMode + ", renameWorkers=" + renameWorkers + ", transferWorkers=" + transferWorkers
+					+ ", transfersPerDevice=" + transfersPerDevice + ", largeFileMB=" + largeFileMB + ", schedulerCapacity=" + schedulerCapacity);
+			System.out.println("searchIndexMode=" + searchIndexMode + ", searchIndexFileName=" + searchIndexFileName 
+					+ ", searchTextCommand=" + searchTextCommand + ", searchLimit=" + searchLimit);
 		}
 		workDir = new File(srcDirName).getCanonicalFile();
+		treeScanner = new ForkJoinScanner(traversalParallelism);
+		jobs = Job.load(_props, createDefaultJobs());
+		if (debugMode) {
+			System.out.println("jobs=" + jobs);
+		}
+		destinations.prepare(getKnownDestinations());
+		tagWriter = TagWriter.create(tagBackend, tagCommand, tagMaxArgLength, tagBatchSize);
+		tagWriter.setMetrics(metrics);
+		if (metricsMode) {
+			metrics.registerMBean();
+		}
+		if (incrementalMode && testMode == false) {  // a dry run must not mark the directories as done
+			journal = new Journal(new File(journalFileName));
+		}
+		if (transactionalMode && testMode == false) {
+			moveLog = new MoveLog(new File(moveLogFileName));
+		}
+		if (epaperIndexMode && testMode == false) {
+			epaperIndex = createEpaperIndex();
+		}
+		if (searchIndexMode && testMode == false) {
+			searchIndex = createSearchIndex();
+		}
+		if (collisionPolicy.equals("off") == false) {
+			try {
+				collisionIndex = new CollisionIndex(CollisionIndex.Policy.parse(collisionPolicy));
+			}
+			catch (IllegalArgumentException _ex) {
+				System.out.println("******** unknown collisionPolicy " + collisionPolicy + ", using suffix *********");
+				collisionIndex = new CollisionIndex(CollisionIndex.Policy.SUFFIX);
+			}
+		}
 	}
 
 	/** 
@@ -114,52 +320,118 @@ public class RenameFiles {
 		return defaultValue;
 	}
 
+	/**
+	 * Reads an int value from configuration properties safely, i.e.
+	 * if the value is not set or not a number, the default value is returned instead.
+	 * 
+	 * @param config		the configuration properties
+	 * @param key			the key of the configuration attribute
+	 * @param defaultValue  the default value of the configuration attribute
+	 * @return              a valid int configuration value, either from the properties or the default
+	 */
+	private int saveReadIntProperty(Properties config, String key, int defaultValue) {
+		String _value = config.getProperty(key);
+		if (_value != null) {
+			try {
+				return Integer.parseInt(_value.trim());
+			}
+			catch (NumberFormatException _ex) {
+				System.out.println("invalid value <" + _value + "> for " + key + ", using default " + defaultValue);
+			}
+		}
+		return defaultValue;
+	}
+
 	/**
 	 * Static entry point of the program (main function). It instantiates a RenameFiles object,
 	 * parses the command line parameters, filters all pdf files in the source directory and executes 
 	 * the conversion function on each of the pdf files.
-	 * @param args	the command line parameters (@see #printUsage()) for a list of valid arguments.
+	 * @param args	the command line parameters:
+	 * 				<ul>
+	 * 				<li><code>--undo runId</code> moves all files of a run (in transactionalMode) back to their source
+	 * 				<li><code>--plan file</code> classifies all files and writes the moves into a plan file, without moving anything
+	 * 				<li><code>--print-plan file</code> prints a plan as JSON, one move per line
+	 * 				<li><code>--apply file</code> executes the moves of a plan with applyWorkers threads
+	 * 				<li><code>--search words</code> prints the archived documents that match a query, e.g. <code>--search zkb bills 2013</code>
+	 * 				</ul>
 	 */
 	public static void main(String[] args) {
+		RenameFiles _renfiles = null;
 		try {
-			RenameFiles _renfiles = new RenameFiles();
-			File[] _fileList = _renfiles.selectFiles(_renfiles.getCurrentDirectory(), ".pdf"); // select all pdf files
-			if (_fileList == null) {
-				System.out.println("****** no pdf files found in directory " + _renfiles.getCurrentDirectory() + " **********");
+			_renfiles = new RenameFiles();
+			if (args.length == 2 && args[0].equals("--undo")) {
+				if (_renfiles.undoRun(args[1]) == 0) {
+					System.out.println("****** completed successfully **********");
+				}
+				return;
 			}
-			else {
-				for (int i = 0; i < _fileList.length; i++) {
-					if (_fileList[i].isFile()) {  // handle all files
-						_renfiles.convertPdfFile(_fileList[i]);
-					}
-					// else it is a directory
+			if (args.length == 2 && args[0].equals("--plan")) {
+				System.out.println("****** " + _renfiles.writePlan(new File(args[1])) + " moves planned in " + args[1] + " **********");
+				_renfiles.finishRun(false);
+				return;
+			}
+			if (args.length == 2 && args[0].equals("--print-plan")) {
+				MovePlan.printJson(new File(args[1]), System.out);
+				return;
+			}
+			if (args.length == 3 && args[0].equals("--gaps")) {
+				if (_renfiles.printGaps(Integer.parseInt(args[1]), Integer.parseInt(args[2])) == 0) {
+					System.out.println("****** no missing epapers **********");
 				}
-				_renfiles.saveBentoBackups();
-				_renfiles.saveShakehandsBackups();
-				_renfiles.saveSoftwareFiles();
-
-				// handle podcast files
-				// check the existance of the source and destination directory
-				File _podcastSrcDir = new File(podcastSrcDirName);
-				File _podcastDestDir = new File(podcastDestDirName);
-				if (_podcastSrcDir.exists() && _podcastDestDir.exists()) {
-					// apply the conversion for each podcast
-					_renfiles.convertPodcast(_podcastSrcDir, _podcastDestDir, "10vor10", "10vor10_", "10vor10");
-					_renfiles.convertPodcast(_podcastSrcDir, _podcastDestDir, "DOK", "dok_", "Dok");
-					_renfiles.convertPodcast(_podcastSrcDir, _podcastDestDir, "ECO", "eco_", "Eco");
-					_renfiles.convertPodcast(_podcastSrcDir, _podcastDestDir, "Einstein", "einstein_", "Einstein");
-					_renfiles.convertPodcast(_podcastSrcDir, _podcastDestDir, "Giacobbo---M--ller", "giacobbomueller_", "GiacobboMueller");
-					_renfiles.convertPodcast(_podcastSrcDir, _podcastDestDir, "Kassensturz", "kassensturz_", "Kassensturz");
-					_renfiles.convertPodcast(_podcastSrcDir, _podcastDestDir, "Reporter", "reporter_", "Reporter");
-					_renfiles.convertPodcast(_podcastSrcDir, _podcastDestDir, "Tagesschau", "ts20_", "Tagesschau");
-					_renfiles.convertPodcast(_podcastSrcDir, _podcastDestDir, "TEDTalks--video-", "tedtalks", "tedtalks");
+				return;
+			}
+			if (args.length == 1 && (args[0].equals("--audit-tags") || args[0].equals("--repair-tags"))) {
+				int _untagged = _renfiles.auditTags(args[0].equals("--repair-tags"));
+				System.out.println("****** " + _untagged + " untagged files in " + destDirName + " **********");
+				return;
+			}
+			if (args.length >= 2 && args[0].equals("--search")) {
+				StringBuilder _query = new StringBuilder();
+				for (int i = 1; i < args.length; i++) {
+					_query.append(args[i]).append(' ');
 				}
-
-				System.out.println("****** completed successfully **********");
-
+				System.out.println("****** " + _renfiles.search(_query.toString()) + " documents found **********");
+				return;
+			}
+			if (args.length == 1 && args[0].equals("--sync")) {
+				if (_renfiles.syncArchive() == 0) {
+					System.out.println("****** completed successfully **********");
+				}
+				return;
+			}
+			_renfiles.beginRun();
+			if (args.length == 2 && args[0].equals("--apply")) {
+				int _failed = _renfiles.applyPlan(new File(args[1]));
+				_renfiles.finishRun(_failed == 0);
+				if (_failed == 0) {
+					System.out.println("****** completed successfully **********");
+				}
+				return;
+			}
+			if (daemonMode) {
+				_renfiles.runDaemon();
+			}
+			else if (pipelineMode) {
+				_renfiles.runPipeline();
+				_renfiles.finishRun(true);
+				if (syncAfterRun == false || _renfiles.syncArchive() == 0) {
+					System.out.println("****** completed successfully **********");
+				}
+			}
+			else if (_renfiles.runSequential()) {
+				_renfiles.finishRun(true);
+				if (syncAfterRun == false || _renfiles.syncArchive() == 0) {
+					System.out.println("****** completed successfully **********");
+				}
+			}
+			else {
+				_renfiles.finishRun(false);
 			}
 		}
 		catch (Exception _ex) {
+			if (_renfiles != null) {  // tag the files that were moved before the failure
+				_renfiles.finishRun(false);
+			}
 			System.out.println("***** failed with " + _ex.toString() + "**********" );
 			if (debugMode) {
 				_ex.printStackTrace();
@@ -168,453 +440,1341 @@ public class RenameFiles {
 
 	}
 
-	private void convertPodcast(File _podcastSrcDir, File _podcastDestDir, String podcastName, String prefix, String destName) throws IOException {
-		File _destF = null;
-		String _dateStr = null;
-		String _tags = "dNews"; // comma-separated list of tags
-		File _srcDir = new File(_podcastSrcDir, podcastName);
-
-		File[] _fileList = selectFiles(_srcDir, ".mp4"); // select all pdf files
-		for (int i = 0; i < _fileList.length; i++) {
-			if (_fileList[i].isFile()) {  // handle all files
-				if (prefix.startsWith("tedtalks")) {
-					SimpleDateFormat _dateFormat = new SimpleDateFormat("yyyyMMdd");
-					_dateStr = _dateFormat.format(_fileList[i].lastModified()); 
-					_destF = new File(_podcastDestDir, destName + "/" + _dateStr + destName + _fileList[i].getName().substring(0, _fileList[i].getName().length()-10) + ".mp4");
-					_tags = "tTech";
-				} else {
-					_dateStr = _fileList[i].getName().substring(prefix.length(), prefix.length()+8);
-					_destF = new File(_podcastDestDir, destName.toLowerCase() + "/" + _dateStr + "sfdrs" + destName + ".mp4");
-				}				
-				if (testMode) {  // just print out what would be done
-					System.out.print("mv " + _fileList[i].getName() + " " + _destF.getCanonicalPath());
-					if (_tags != null && _tags.length() > 0) {
-						System.out.println(", adding tags: " + _tags);
-						if (debugMode) {
-							System.out.println("/usr/local/bin/tag -a " + _tags + " " + _destF.getCanonicalPath());
+	/**
+	 * Completes an interrupted run and starts a new run in the move log (in transactionalMode).
+	 * @throws IOException
+	 */
+	private void beginRun() throws IOException {
+		if (moveLog != null) {
+			moveLog.recover(tagWriter);
+			System.out.println("****** run " + moveLog.begin() + ", see " + moveLogFileName + " **********");
+		}
+	}
+
+	/**
+	 * Finds the files in the archive whose finder tags are missing, see {@link TagAudit}.
+	 * @param repair	true to add the missing tags with the tagWriter (not in testMode)
+	 * @return			the number of untagged files
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private int auditTags(boolean repair) throws IOException, InterruptedException {
+		TagAudit _audit = new TagAudit(ruleTable, new File(destDirName).toPath(), new ForkJoinScanner(auditParallelism), 
+				repair && testMode == false ? tagWriter : null);
+		long _start = System.currentTimeMillis();
+		int _untagged = _audit.run();
+		tagWriter.flush();
+		AsyncLog.println("audit: " + _audit.getSummary() + ", millis=" + (System.currentTimeMillis() - _start));
+		if (repair) {
+			AsyncLog.println("tags: " + tagWriter.getSummary());
+		}
+		AsyncLog.flush();
+		return _untagged;
+	}
+
+	/**
+	 * Loads (or builds) the index of the archived epapers.
+	 * @return	the index
+	 * @throws IOException
+	 */
+	private EpaperIndex createEpaperIndex() throws IOException {
+		return new EpaperIndex(new File(epaperIndexFileName), EpaperIndex.createPublications(ruleTable.getRules(), destDirName, epaperSchedules));
+	}
+
+	/**
+	 * Prints the missing epapers of a period, see {@link EpaperIndex}.
+	 * @param from	the first day, yyyyMMdd
+	 * @param to	the last day, yyyyMMdd
+	 * @return		the number of missing epapers
+	 * @throws IOException
+	 */
+	private int printGaps(int from, int to) throws IOException {
+		EpaperIndex _index = epaperIndex != null ? epaperIndex : createEpaperIndex();
+		long _start = System.nanoTime();
+		int _missing = _index.printGaps(from, to, System.out);
+		if (debugMode) {
+			System.out.println("gaps: " + _index.getSummary() + ", report in " + (System.nanoTime() - _start) / 1000 + " us");
+		}
+		_index.save();
+		return _missing;
+	}
+
+	/**
+	 * Loads (or builds) the search index of the archived documents.
+	 * @return	the index
+	 * @throws IOException
+	 */
+	private SearchIndex createSearchIndex() throws IOException {
+		List<File> _roots = new ArrayList<File>(Arrays.asList(new File(destDirName), new File(podcastDestDirName)));
+		if (syncDestDirName.isEmpty() == false) {  // the documents of the staging tree are moved there by --sync
+			_roots.add(new File(syncDestDirName));
+		}
+		return new SearchIndex(new File(searchIndexFileName), _roots, ruleTable, searchTextCommand);
+	}
+
+	/**
+	 * Prints the archived documents that match a query, the latest first, see {@link SearchIndex}.
+	 * @param query		the query, e.g. "zkb bills 2013"
+	 * @return			the number of documents found
+	 * @throws IOException
+	 */
+	private int search(String query) throws IOException {
+		long _start = System.nanoTime();
+		SearchIndex _index = searchIndex != null ? searchIndex : createSearchIndex();
+		long _loaded = System.nanoTime();
+		List<SearchIndex.Document> _hits = _index.search(query, searchLimit);
+		long _searched = System.nanoTime();
+		for (SearchIndex.Document _d : _hits) {
+			System.out.println((_d.getDate() != 0 ? String.valueOf(_d.getDate()) : "--------") + "  " + _d.getPath() 
+					+ (_d.getTags().isEmpty() ? "" : "  [" + _d.getTags() + "]"));
+		}
+		if (debugMode) {
+			System.out.println("search: " + _index.getSummary() + ", loaded in " + (_loaded - _start) / 1000000 + " ms, query in " 
+					+ (_searched - _loaded) / 1000 + " us");
+		}
+		_index.save();
+		return _hits.size();
+	}
+
+	/**
+	 * Copies the staging tree (syncSrcDirName) to the archive volume (syncDestDirName), verifies the copies
+	 * and deletes the staging files and the empty staging directories, see {@link ArchiveSync}.
+	 * @return	the number of files that could not be synced
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private int syncArchive() throws IOException, InterruptedException {
+		if (syncDestDirName.isEmpty()) {
+			System.out.println("******** syncDestDirName is not configured, nothing synced *********");
+			return 1;
+		}
+		Path _staging = new File(syncSrcDirName).toPath();
+		if (testMode || Files.isDirectory(_staging) == false) {
+			System.out.println("****** nothing to sync in " + syncSrcDirName + " **********");
+			return 0;
+		}
+		ArchiveSync.Listener _listener = null;
+		if (searchIndex != null) {  // the documents of the staging files are on the archive volume now
+			_listener = new ArchiveSync.Listener() {
+				public void synced(Path staging, Path target) {
+					try {
+						searchIndex.move(staging.toFile(), target.toFile());
+					}
+					catch (IOException _ex) {
+						indexFailed(target.toFile(), _ex);
+					}
+				}
+			};
+		}
+		ArchiveSync _sync = new ArchiveSync(_staging, new File(syncDestDirName).toPath(), 
+				syncChunkMB << 20, syncFileWorkers, syncChunkWorkers, debugMode, _listener);
+		int _failed = _sync.sync();
+		flushIndexes();
+		treeScanner.removeEmptyDirectories(_staging);
+		AsyncLog.println("sync: " + _sync.getSummary());
+		AsyncLog.flush();
+		return _failed;
+	}
+
+	/**
+	 * Writes the pending updates of the epaper and search indexes to their files, e.g. after each batch of the
+	 * daemon, whose indexes are saved only when it is stopped: an index file is not rebuilt if it exists, so the
+	 * issues and documents of a daemon that is killed would be missing for good (and reported as gaps).
+	 */
+	private void flushIndexes() {
+		if (epaperIndex != null) {
+			try {
+				epaperIndex.save();
+			}
+			catch (IOException _ex) {
+				AsyncLog.println("******** failed to save the epaper index with " + _ex.toString() + "*********");
+			}
+		}
+		if (searchIndex != null) {
+			try {
+				searchIndex.flush();
+			}
+			catch (IOException _ex) {
+				AsyncLog.println("******** failed to save the search index with " + _ex.toString() + "*********");
+			}
+		}
+	}
+
+	/**
+	 * Moves all files of an earlier run back to their source.
+	 * @param runId		the id of the run
+	 * @return			the number of files that could not be moved back
+	 * @throws IOException
+	 */
+	private int undoRun(String runId) throws IOException {
+		return new MoveLog(new File(moveLogFileName)).undo(runId, moveEngine);
+	}
+
+	/**
+	 * Processes all jobs (pdf files, backups, software and podcasts). Jobs that scan the same directory
+	 * share one scan, and independent jobs run concurrently with up to scanWorkers threads.
+	 * In virtualThreadMode, each move runs in its own (virtual) thread, see {@link MountExecutor}; in moveSchedulerMode,
+	 * the renames and the transfers onto other volumes are executed from separate queues, see {@link MoveScheduler}.
+	 * @return	false if the source directory could not be read
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private boolean runSequential() throws IOException, InterruptedException {
+		if (getCurrentDirectory().isDirectory() == false) {
+			System.out.println("****** no pdf files found in directory " + getCurrentDirectory() + " **********");
+			return false;
+		}
+		final MoveScheduler _moveScheduler = moveSchedulerMode ? createMoveScheduler() : null;
+		final MountExecutor _mountExecutor = virtualThreadMode && _moveScheduler == null ? new MountExecutor(mountConcurrency, true) : null;
+		JobScheduler _scheduler = new JobScheduler(scanWorkers);
+		try {
+			_scheduler.run(createSources(), new JobScheduler.Sink() {
+				public void convert(final FileMove m) throws IOException {
+					if (_mountExecutor == null && _moveScheduler == null) {
+						RenameFiles.this.convert(m);
+						return;
+					}
+					Runnable _task = new Runnable() {
+						public void run() {
+							convertLogged(m);
+						}
+					};
+					try {
+						if (_moveScheduler != null) {
+							_moveScheduler.submit(m, _task);
+						}
+						else {
+							_mountExecutor.execute(new File(m.getDestDirName()).toPath(), _task);
 						}
 					}
-					else { 
-						System.out.println(", no tags added");
+					catch (InterruptedException _ex) {
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException("interrupted while waiting for " + m.getDestDirName());
 					}
 				}
-				else {  // execute the conversion
-					if (_fileList[i].renameTo(_destF) == true) {
-						if (_tags != null && _tags.length() > 0) {
-							Runtime.getRuntime().exec("/usr/local/bin/tag -a " + _tags + " " + _destF.getCanonicalPath());
+			});
+		}
+		finally {
+			if (_moveScheduler != null) {
+				_moveScheduler.shutdown();
+				AsyncLog.println("move scheduler: " + _moveScheduler.getSummary());
+			}
+			if (_mountExecutor != null) {
+				_mountExecutor.shutdown();
+				if (debugMode) {
+					AsyncLog.println("mount executor: " + _mountExecutor.getSummary());
+				}
+			}
+		}
+		failures.addAndGet(_scheduler.getFailed());
+		executeMoves();
+		removeEmptyBackupDirectories();
+		return true;
+	}
+
+	/**
+	 * @return	a new move scheduler with the workers and limits of the configuration
+	 */
+	private MoveScheduler createMoveScheduler() {
+		return new MoveScheduler(renameWorkers, transferWorkers, transfersPerDevice, (long) largeFileMB << 20, schedulerCapacity);
+	}
+
+	/**
+	 * Classifies the files of all jobs like a run, but writes the planned moves into a plan file instead of executing them.
+	 * @param planFile	the plan file
+	 * @return			the number of planned moves
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private long writePlan(File planFile) throws IOException, InterruptedException {
+		final MovePlan.Writer _plan = new MovePlan.Writer(planFile);
+		try {
+			JobScheduler _scheduler = new JobScheduler(scanWorkers);
+			_scheduler.run(createSources(), new JobScheduler.Sink() {
+				public void convert(FileMove m) throws IOException {
+					_plan.add(m);
+				}
+			});
+			failures.addAndGet(_scheduler.getFailed());
+		}
+		finally {
+			_plan.close();
+		}
+		return _plan.getCount();
+	}
+
+	/**
+	 * Executes the moves of a plan file with applyWorkers threads; the files are not classified again.
+	 * The destination directories are resolved before the first move. A move whose source is gone
+	 * and whose destination exists was applied before and is skipped, so a plan can be applied again
+	 * after an interruption. In moveSchedulerMode, the moves are executed by a {@link MoveScheduler} instead.
+	 * @param planFile	the plan file
+	 * @return			the number of moves that failed, including the moves whose source and destination were not found
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private int applyPlan(File planFile) throws IOException, InterruptedException {
+		destinations.prepare(MovePlan.getDestDirNames(planFile));
+		final AtomicInteger _applied = new AtomicInteger();
+		final AtomicInteger _skipped = new AtomicInteger();
+		final MoveScheduler _moveScheduler = moveSchedulerMode ? createMoveScheduler() : null;
+		final MountExecutor _mountExecutor = virtualThreadMode && _moveScheduler == null ? new MountExecutor(mountConcurrency, true) : null;
+		final ThreadPoolExecutor _executor = virtualThreadMode || _moveScheduler != null ? null : new ThreadPoolExecutor(applyWorkers, applyWorkers, 0, 
+				TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)), new ThreadPoolExecutor.CallerRunsPolicy());
+		long _count;
+		try {
+			_count = MovePlan.read(planFile, new MovePlan.Visitor() {
+				public void visit(final FileMove m) throws InterruptedException {
+					Runnable _task = new Runnable() {
+						public void run() {
+							if (m.getSource().exists() == false) {
+								if (m.getDestination().exists()) {
+									_skipped.incrementAndGet();
+								}
+								else {
+									failures.incrementAndGet();
+									AsyncLog.println("conversion of " + m.getSource().getName() + " failed, file not found");
+								}
+								return;
+							}
+							try {
+								if (moveLogged(m) == true) {
+									tagFile(m);
+									_applied.incrementAndGet();
+								}
+							}
+							catch (IOException _ex) {
+								failures.incrementAndGet();
+								AsyncLog.println("conversion of " + m.getSource().getName() + " failed with " + _ex.toString());
+							}
 						}
+					};
+					if (_moveScheduler != null) {
+						_moveScheduler.submit(m, _task);
+					}
+					else if (_mountExecutor != null) {
+						_mountExecutor.execute(new File(m.getDestDirName()).toPath(), _task);
 					}
 					else {
-						System.out.println("conversion of " + _fileList[i].getName() + " failed.");
+						_executor.execute(_task);
 					}
 				}
+			});
+		}
+		finally {
+			if (_moveScheduler != null) {
+				_moveScheduler.shutdown();
+				AsyncLog.println("move scheduler: " + _moveScheduler.getSummary());
+			}
+			else if (_mountExecutor != null) {
+				_mountExecutor.shutdown();
+				if (debugMode) {
+					AsyncLog.println("mount executor: " + _mountExecutor.getSummary());
+				}
+			}
+			else {
+				_executor.shutdown();
+				_executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
 			}
-			// else it is a directory 
 		}
+		AsyncLog.println("****** plan " + planFile + ": " + _count + " moves, " + _applied.get() + " applied, " 
+				+ _skipped.get() + " applied before, " + (_count - _applied.get() - _skipped.get()) + " not applied **********");
+		return failures.get();
 	}
 
 	/**
-	 * Converts a pdf file in the source directory to a file with a different
-	 * name in the destination directory and adds some finder tags.
-	 * @param f		the pdf file to convert
-	 * @throws IOException
+	 * Processes all sources (pdf files, backups, software and podcasts) concurrently
+	 * in a {@link Pipeline} with the number of workers from the configuration.
+	 * @throws InterruptedException
 	 */
-	private void convertPdfFile(File f) throws IOException {
-		String _destFN = "";
-		String _tags = "dNews"; // comma-separated list of tags
-		String _destDirName = null; // base destination directory
-		String _dateStr = null;
-		// TODO: externalize newsDirName into config
-		String _newsDirName = destDirName + "/news";
-
-		// handle each file type
-		// TODO: externalize this into the configuration and make it generic
-		// example:   search criteria, srcDateType, destfile extension, destpath extension
-		// NZZS, NZZ, 20min: prefix,  yyyyMMdd, postfix,  subdir
-		// ZSZ: postfix, yyyyMMdd, postfix, subdir
-		// Tagi, Soze:  prefix, yyyy-MM-dd, postfix, subdir
-		// ic, mmb, awuz etc.: prefixDate, yyyyMMdd, subDir | subDiryyyy | subDiryyyyMM
-
-		// overall:
-		// search criteria:  prefixString, postfixString, prefixDate:prefixString
-		// srcDateType:     yyyyMMdd, yyyy-MM-dd
-		// destFile extension:  postfixStr, srcString
-		// destPath extension:  subDir, SubDiryyyy, subDiryyyyMM
-
-		if (f.getName().startsWith("NZZS_")) { // NZZ am Sonntag epaper
-			_destFN = f.getName().substring(5, 13) + "nzzs.pdf";
-			_destDirName = _newsDirName + "/nzzs";
-		}
-		else if (f.getName().startsWith("NZZ_")) {  // NZZ epaper
-			_destFN = f.getName().substring(4,12) + "nzz.pdf";	
-			_destDirName = _newsDirName + "/nzz";
-		}
-		else if (f.getName().endsWith("_zsr.pdf")) {  // Zürichsee Zeitung epaper
-			_destFN = f.getName().substring(0, 8) + "zsz.pdf";	
-			_destDirName = _newsDirName + "/zsz";
-		}
-		else if (f.getName().startsWith("ZH_")) {  // 20 Minuten epaper
-			_destFN = f.getName().substring(3,11) + "_20min.pdf";	
-			_destDirName = _newsDirName + "/20min";
-		}
-		else if (f.getName().startsWith("taz-ges-")) {  // Tages-Anzeiger epaper
-			_destFN = f.getName().substring(8,12) + 
-					f.getName().substring(13, 15) +
-					f.getName().substring(16, 18) + "tagesanzeiger.pdf";	
-			_destDirName = _newsDirName + "/tagesanzeiger";
-		}
-		else if (f.getName().startsWith("sonze-")) {  // Sonntagszeitung epaper
-			_destFN = f.getName().substring(6,10) + 
-					f.getName().substring(11, 13) +
-					f.getName().substring(14, 16) + "sonntagszeitung.pdf";	
-			_destDirName = _newsDirName + "/sonntagszeitung";
-		}
-		else if (f.getName().startsWith("EQUITY_")) {  // NZZ Equity
-			_destFN = f.getName().substring(7,15) + "nzzEquity.pdf";	
-			_destDirName = _newsDirName + "/nzzEquity";
-		}
-		else if (f.getName().startsWith("FOLIO_")) {  // NZZ Folio
-			_destFN = f.getName().substring(6,14) + "nzzFolio.pdf";	
-			_destDirName = _newsDirName + "/nzzFolio";
-		}
-		else if (f.getName().startsWith("GESE_")) {  // NZZ Gesellschaft
-			_destFN = f.getName().substring(5,13) + "nzzGesellschaft.pdf";	
-			_destDirName = _newsDirName + "/nzzGesellschaft";
-		}
-		else if (f.getName().startsWith("communications")) {	// ACM Communications
-			_destFN = f.getName().substring(14,20) + "00acmCommunications.pdf";
-			_destDirName = _newsDirName + "/acmCommunications"; 
-			_tags = "oAcm,dMagazine,tTech";
-		}
-		else if (f.getName().startsWith("compw-")) {
-			_destFN = f.getName().substring(6, 10) + 
-					f.getName().substring(11, 13) +
-					f.getName().substring(14, 16) + "computerworld.pdf";
-			_destDirName = _newsDirName + "/computerworld";
-			_tags = "dNews,tTech";
-		}
-		else if ((_dateStr = getLeadingDateFromString(f.getName())) != null) { // file name starts with date
-			_destFN = f.getName();
-			if (f.getName().substring(8).startsWith("ic") && _dateStr.length()>=6) {		// Inside Channels
-				_destDirName = _newsDirName + "/ic";
-				_tags = "dNews,tTech";
-			}
-			else if (f.getName().substring(8).startsWith("rg") && _dateStr.length()>=6) {		// Rechnung / Bill
-				_destDirName = destDirName + "/finance/rgs";
-				_tags = "tFinance,dBill";
-			}
-			else if (f.getName().substring(8).startsWith("zkb") && _dateStr.length()>=6) {		// ZKB
-				_destDirName = destDirName + "/finance/bank";
-				_tags = "tFinance,dBill,oZkb";
-			}
-			else if (f.getName().substring(8).startsWith("pf") && _dateStr.length()>=6) {		// PostFinance
-				_destDirName = destDirName + "/finance/bank";				
-				_tags = "tFinance,dBill,oPost";
-			}
-			else if (f.getName().substring(8).startsWith("lohn") && _dateStr.length()>=6) {		// Lohn / Salary
-				_destDirName = destDirName + "/finance";
-				_tags = "tFinance,dStatement";
-			}
-			else if (f.getName().substring(8).startsWith("slkk") && _dateStr.length()>=6) {		// SLKK
-				_destDirName = destDirName + "/finance/versicherungen";
-				_tags = "tFinance,tInsurance,oSlkk";
-			}
-			else if (f.getName().substring(8).startsWith("diary") && _dateStr.length()>=6) {	// diary
-				_destDirName = destDirName + "/diary";
-				_tags = "oBruno,dDiary";
-			}
-			else if (f.getName().substring(8).startsWith("abstract_") && _dateStr.length()>=4) {	// abstracts
-				_destDirName = _newsDirName + "/abstract";	
-				_tags = "dAbstract";
-			}
-			else if (f.getName().substring(8).startsWith("kof") && _dateStr.length()>=6) {	// KOF reports
-				_destDirName = _newsDirName + "/kof";	
-				_tags = "dReport,tEco";
-			}
-			else if (f.getName().substring(8).startsWith("book") && _dateStr.length()>=6) {	// ebook
-				_destDirName = destDirName + "/books";	
-				_tags = "dBook";
-			}
-			else if (f.getName().substring(8).startsWith("sise") && _dateStr.length()>=6) {		// SI-SE
-				_destDirName = destDirName + "/orgunits/sise";
-				_tags = "oSise";
-			}
-			else if (f.getName().substring(8).startsWith("awuz") && _dateStr.length()>=6) {		// AWUZ
-				_destDirName = destDirName + "/orgunits/awuz";	
-				_tags = "oAwuzUzha";
-			}
-			else if (f.getName().substring(8).startsWith("informatikSpektrum") && _dateStr.length()>=6) {		// Informatik Spektruml
-				_destDirName = _newsDirName + "/informatikSpektrum";	
-				_tags = "tTech,dArticle";
-			}
-			else if (f.getName().toLowerCase().endsWith("pres.pdf")) {						// presentation
-				_destDirName = destDirName + "/done/business";
-				_tags = "dPres";
-			}
-			else if (f.getName().substring(8).startsWith("itc") && _dateStr.length()>=6) {		// IT consulting contract
-				_destDirName = destDirName + "/business";
-				_tags = "dContract,dItc";
-			}
-			else if (f.getName().substring(8).startsWith("swd") && _dateStr.length()>=6) {		// SW development contract
-				_destDirName = destDirName + "/business";
-				_tags = "dContract,dSwd";
-			}
-			else if (f.getName().substring(8).startsWith("sla") && _dateStr.length()>=6) {		// maintenance contract
-				_destDirName = destDirName + "/business";
-				_tags = "dContract,dSla";
+	private void runPipeline() throws InterruptedException {
+		Pipeline _pipeline = new Pipeline(scanWorkers, classifyWorkers, moveWorkers, tagWorkers, queueSize,
+				new Pipeline.MoveHandler() {
+					public boolean move(FileMove m) throws IOException {
+						return moveLogged(m);
+					}
+					public void tag(FileMove m) {
+						tagFile(m);
+					}
+				});
+		_pipeline.run(new ArrayList<Pipeline.FileSource>(createSources()));
+		failures.addAndGet(_pipeline.getFailed());
+		removeEmptyBackupDirectories();
+		if (debugMode) {
+			AsyncLog.println("pipeline: " + _pipeline.getSummary());
+		}
+	}
+
+	/**
+	 * Returns the built-in jobs; these are used if no jobs are configured.
+	 * @return	a new list of the built-in jobs
+	 */
+	private List<Job> createDefaultJobs() {
+		List<Job> _jobs = new ArrayList<Job>();
+		_jobs.add(new Job("pdf", Job.Classifier.PDF, getCurrentDirectory(), ".pdf", DirectoryScanner.Type.FILES, 1,
+				destDirName, null, null));
+		_jobs.add(new Job("bento", Job.Classifier.BENTO, new File(bentoSrcDirName), ".bentodb", DirectoryScanner.Type.DIRECTORIES, 1,
+				destDirName + "/toPegasus/backup/bento", null, null));
+		_jobs.add(new Job("shakehands", Job.Classifier.SHAKEHANDS, new File(shakehandsSrcDirName), ".sdb", DirectoryScanner.Type.FILES, 2,
+				destDirName + "/toPegasus/backup/shakehands", null, null));
+		_jobs.add(new Job("software", Job.Classifier.SOFTWARE, getCurrentDirectory(), ".dmg", DirectoryScanner.Type.FILES, 1,
+				destDirName + "/toPegasus/software", null, null));
+		for (int i = 0; i < PODCASTS.length; i++) {
+			_jobs.add(new Job(PODCASTS[i][0], Job.Classifier.PODCAST, new File(podcastSrcDirName, PODCASTS[i][0]), ".mp4",
+					DirectoryScanner.Type.FILES, 1, podcastDestDirName, PODCASTS[i][1], PODCASTS[i][2], PODCASTS[i][3], PODCASTS[i][4]));
+		}
+		return _jobs;
+	}
+
+	/**
+	 * Returns the destination directories that are known before the run: those of the jobs, of the
+	 * rules of the pdf jobs and of the podcasts.
+	 * @return	the destination directories
+	 */
+	private Set<String> getKnownDestinations() {
+		Set<String> _dirs = new LinkedHashSet<String>();
+		for (Job _j : jobs) {
+			switch (_j.getClassifier()) {
+			case PDF:
+				_dirs.add(_j.getDestDir());
+				for (RenameRule _r : ruleTable.getRules()) {
+					_dirs.add(_r.buildDestDirName(_j.getDestDir()));
+				}
+				break;
+			case PODCAST:
+				_dirs.add(_j.getPodcastDestDir());
+				break;
+			default:
+				_dirs.add(_j.getDestDir());
+				break;
+			}
+		}
+		return _dirs;
+	}
+
+	/**
+	 * Creates the sources of a run: one for each group of jobs that scan the same directory, see
+	 * {@link JobScheduler#merge(List)}. The sources are independent of each other.
+	 * Podcasts are only converted if their destination directory exists. The feeds in the subdirectories of
+	 * podcastSrcDirName are converted by a single source that scans podcastSrcDirName at depth 2 and finds
+	 * the feed of an episode by the name of its directory.
+	 * @return	all sources to process
+	 */
+	private List<DirectorySource> createSources() {
+		List<Job> _active = new ArrayList<Job>();
+		Map<String, Job> _feeds = new LinkedHashMap<String, Job>();
+		File _podcastRoot = new File(podcastSrcDirName).getAbsoluteFile();
+		for (Job _j : jobs) {
+			if (_j.getClassifier() == Job.Classifier.PODCAST && new File(_j.getDestDir()).exists() == false) {
+				continue;
 			}
-			else if (f.getName().substring(8).startsWith("nda") && _dateStr.length()>=6) {		// non disclosure agreement
-				_destDirName = destDirName + "/business";
-				_tags = "dContract,dNda";
+			if (_j.getClassifier() == Job.Classifier.PODCAST && _j.getDepth() == 1
+					&& _podcastRoot.equals(_j.getDir().getAbsoluteFile().getParentFile())
+					&& _feeds.containsKey(_j.getDir().getName()) == false) {
+				_feeds.put(_j.getDir().getName(), _j);
 			}
-			else if (f.getName().substring(8).startsWith("offer") && _dateStr.length()>=6) {		// proposal
-				_destDirName = destDirName + "/business";
-				_tags = "dContract,dOffer";
+			else {
+				_active.add(_j);
 			}
+		}
+		List<DirectorySource> _sources = new ArrayList<DirectorySource>();
+		for (List<Job> _group : JobScheduler.merge(_active)) {
+			_sources.add(new DirectorySource(_group));
+		}
+		if (_feeds.isEmpty() == false) {
+			_sources.add(new DirectorySource(_podcastRoot, _feeds));
+		}
+		return _sources;
+	}
+
+	/**
+	 * Determines what to do with an entry of a job. The destination name is reserved in the collisionIndex,
+	 * which may change it (collisionPolicy=suffix) or skip the entry.
+	 * @param job	the job that selected the entry
+	 * @param f		the entry
+	 * @return		the planned move or null if the entry is not recognized or skipped
+	 */
+	private FileMove classify(Job job, File f) {
+		FileMove _m = resolveCollision(job, f);
+		if (_m != null && journal != null) {  // the directory is done only when the file is moved
+			journal.recordRecognized(f);
+		}
+		return _m;
+	}
 
-			else {  // there is a leading date, but no special meaning
+	/**
+	 * Classifies an entry and reserves its destination name, see {@link #classify(Job, File)}.
+	 */
+	private FileMove resolveCollision(Job job, File f) {
+		FileMove _m = classifyEntry(job, f);
+		if (_m == null || collisionIndex == null) {
+			return _m;
+		}
+		try {
+			FileMove _resolved = collisionIndex.resolve(_m);
+			if (_resolved == null) {
+				AsyncLog.println(_m.getDestination() + " exists, " + f.getName() + " not moved");
+				metrics.count("collisions.skipped");
+				if (journal != null) {  // skip this file in later runs as long as it is not changed
+					journal.recordRejected(f);
+				}
+			}
+			else if (_resolved != _m) {
+				metrics.count("collisions.resolved");
 				if (debugMode) {
-					System.out.println(f.getName() + " has leading date, but no meaning");
+					AsyncLog.println(_m.getDestination() + " exists, " + f.getName() + " -> " + (_resolved.getVersionName() != null 
+							? _resolved.getDestination().getName() + ", keeping " + _resolved.getVersionName() 
+							: _resolved.getDestination().getName()));
 				}
-				_destDirName = destDirName;  // move file as is, do not add tags
-				_tags = null;
 			}
+			return _resolved;
+		}
+		catch (IOException _ex) {
+			AsyncLog.println("******** failed in classify() with " + _ex.toString() + "*********");
+			failures.incrementAndGet();
+			return null;
+		}
+	}
 
+	/**
+	 * Determines the planned move of an entry with the classifier of its job, see {@link #classify(Job, File)}.
+	 */
+	private FileMove classifyEntry(Job job, File f) {
+		switch (job.getClassifier()) {
+		case PDF:
+			return classifyPdfFile(f);
+		case BENTO:
+			return classifyBentoBackup(f, job.getDestDir());
+		case SHAKEHANDS:  // the empty backup directory is removed at the end, see removeEmptyBackupDirectories()
+			return classifyShakehandsBackup(f, job.getDestDir());
+		case SOFTWARE:
+			return classifySoftwareFile(f, job.getDestDir());
+		case PODCAST:
+			return classifyPodcast(f, job);
+		default:
+			return null;
 		}
-		else {		// _dateStr = null, i.e. no leading date found; such a file is not moved, needs to be renamed first
-			if (debugMode) {
-				System.out.println("not recognized: " + f.getName());
+	}
+
+	/**
+	 * A source that lists the entries of one directory (depth 1) or of all subdirectories of one
+	 * directory (depth 2) for one or more jobs. Each entry is passed to the first job that accepts it;
+	 * in a source of podcast feeds, to the job of the subdirectory that contains it.
+	 */
+	private class DirectorySource implements WatchDaemon.Target {
+		private final String name;
+		private final List<Job> jobs;
+		/** name of a subdirectory -> its podcast job, or null if the entries are not dispatched by their directory */
+		private final Map<String, Job> feeds;
+		private final File dir;
+		private final int depth;
+		/** the extensions of all jobs; identifies the scan in the journal */
+		private final String key;
+		private final RenameFileFilter filter;
+		private final DirectoryScanner.Type type;
+		/** true if the name of an entry is not enough to find its job, i.e. two jobs have a similar extension */
+		private final boolean ambiguous;
+
+		/**
+		 * Creates a source for a group of jobs that scan the same directory, see {@link JobScheduler#merge(List)}.
+		 */
+		DirectorySource(List<Job> jobs) {
+			this(null, jobs.get(0).getDir(), jobs.get(0).getDepth(), jobs, null);
+		}
+
+		/**
+		 * Creates a source for the podcast feeds in the subdirectories of one directory.
+		 * @param root		the directory of the feeds, i.e. podcastSrcDirName
+		 * @param feeds		name of a subdirectory -> its podcast job
+		 */
+		DirectorySource(File root, Map<String, Job> feeds) {
+			this("podcasts", root, 2, new ArrayList<Job>(feeds.values()), feeds);
+		}
+
+		private DirectorySource(String name, File dir, int depth, List<Job> jobs, Map<String, Job> feeds) {
+			this.jobs = jobs;
+			this.feeds = feeds;
+			this.dir = dir;
+			this.depth = depth;
+			StringBuilder _name = new StringBuilder();
+			List<String> _extensions = new ArrayList<String>();
+			DirectoryScanner.Type _type = jobs.get(0).getType();
+			boolean _ambiguous = false;
+			for (Job _j : jobs) {
+				_name.append(_name.length() > 0 ? "+" : "").append(_j.getName());
+				for (String _ext : _extensions) {
+					_ambiguous |= _j.acceptName(_ext) || new RenameFileFilter(_ext).accept(null, _j.getExtension());
+				}
+				if (_extensions.contains(_j.getExtension()) == false) {  // the feeds share their extension
+					_extensions.add(_j.getExtension());
+				}
+				if (_j.getType() != _type) {
+					_type = DirectoryScanner.Type.ALL;
+				}
 			}
-			_destFN = "";
+			this.name = name != null ? name : _name.toString();
+			this.key = _extensions.toString().replace(" ", "").replace("[", "").replace("]", "");
+			this.filter = new RenameFileFilter(_extensions);
+			this.type = _type;
+			this.ambiguous = _ambiguous;
 		}
 
-		if (_destFN.isEmpty() == false) { // convert only known files
-			// create all parent directories if they do not already exist
-			if (debugMode) { // just print out what would be done
-				System.out.println("mkdir " + new File(_destDirName).getCanonicalPath());
+		public String getName() {
+			return name;
+		}
+
+		public Path getDir() {
+			return dir.toPath();
+		}
+
+		public int getDepth() {
+			return depth;
+		}
+
+		public void scan(final DirectoryScanner.Visitor visitor) throws IOException, InterruptedException {
+			DirectoryScanner.Visitor _dispatch = visitor;
+			if (jobs.size() > 1 || feeds != null) {  // the filter and the type of the shared scan select the entries of all jobs
+				_dispatch = new DirectoryScanner.Visitor() {
+					public void visit(Path p, BasicFileAttributes attrs) throws IOException, InterruptedException {
+						if (findJob(p, attrs) != null) {
+							visitor.visit(p, attrs);
+						}
+					}
+				};
 			}
-			if (testMode == false) {
-				new File(_destDirName).mkdirs(); 			
+			if (depth == 1) {
+				scanFiles(name, dir, key, filter, type, _dispatch);
+			}
+			else {
+				scanSubdirectories(name, dir, depth, key, filter, type, _dispatch);
+			}
+		}
+
+		public boolean accept(Path p, BasicFileAttributes attrs) {
+			return findJob(p, attrs) != null;
+		}
+
+		public FileMove classify(File f) {
+			Job _job = findJob(f.toPath(), null);
+			return _job != null ? RenameFiles.this.classify(_job, f) : null;
+		}
+
+		/**
+		 * Finds the first job that accepts an entry.
+		 * @param p			the entry
+		 * @param attrs		the attributes of the entry, or null if they were not read yet
+		 * @return			the job or null
+		 */
+		private Job findJob(Path p, BasicFileAttributes attrs) {
+			String _name = p.getFileName().toString();
+			if (feeds != null) {
+				Path _parent = p.getParent();
+				Job _j = _parent != null ? feeds.get(_parent.getFileName().toString()) : null;
+				return _j != null && _j.acceptName(_name) && (attrs == null || DirectoryScanner.matches(_j.getType(), attrs)) ? _j : null;
 			}
-			File _destF = new File(_destDirName + "/" + _destFN);
-			if (testMode) {  // just print out what would be done
-				System.out.print("mv " + f.getName() + " " + _destF.getCanonicalPath());
-				if (_tags != null && _tags.length() > 0) {
-					System.out.println(", adding tags: " + _tags);
-					if (debugMode) {
-						System.out.println("/usr/local/bin/tag -a " + _tags + " " + _destF.getCanonicalPath());
+			for (Job _j : jobs) {
+				if (_j.acceptName(_name)) {
+					if (attrs != null) {
+						if (DirectoryScanner.matches(_j.getType(), attrs)) {
+							return _j;
+						}
+					}
+					else if (ambiguous == false || _j.getType() == DirectoryScanner.Type.ALL
+							|| (_j.getType() == DirectoryScanner.Type.DIRECTORIES) == Files.isDirectory(p)) {
+						return _j;
 					}
-				}
-				else { 
-					System.out.println(", no tags added");
 				}
 			}
-			else {  // execute the conversion
-				if (f.renameTo(_destF) == true) {
-					if (_tags != null && _tags.length() > 0) {
-						Runtime.getRuntime().exec("/usr/local/bin/tag -a " + _tags + " " + _destF.getCanonicalPath());
+			return null;
+		}
+	}
+
+	/**
+	 * Runs as a daemon that converts new files as soon as they arrive in one of the source directories.
+	 * Returns only if the thread is interrupted.
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private void runDaemon() throws IOException, InterruptedException {
+		final WatchDaemon _daemon = new WatchDaemon(new ArrayList<WatchDaemon.Target>(createSources()),
+				new Pipeline.MoveHandler() {
+					public boolean move(FileMove m) throws IOException {
+						return moveLogged(m);
+					}
+					public void tag(FileMove m) {
+						tagFile(m);
+					}
+				},
+				new Runnable() {
+					public void run() {
+						if (collisionIndex != null) {  // files may have been archived or removed since the last batch
+							collisionIndex.refresh();
+						}
+					}
+				},
+				new Runnable() {
+					public void run() {
+						tagWriter.flush();
+						flushIndexes();
+					}
+				}, settleMillis);
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				_daemon.stop();
+				try {  // let the daemon complete the move in progress before the logs are closed
+					if (_daemon.awaitStopped(DAEMON_STOP_MILLIS) == false) {
+						AsyncLog.println("******** daemon did not stop within " + DAEMON_STOP_MILLIS + " ms *********");
 					}
 				}
-				else {
-					System.out.println("conversion of " + f.getName() + " failed.");
+				catch (InterruptedException _ex) {
+					Thread.currentThread().interrupt();
 				}
+				finishRun(false);
 			}
+		});
+		_daemon.run();
+	}
+
+	/**
+	 * Determines the destination name and finder tags of a podcast episode with the template of its feed.
+	 * @param f		the mp4 file of the episode
+	 * @param job	the podcast job of the feed
+	 * @return		the planned move or null if the name does not fit the template
+	 */
+	private FileMove classifyPodcast(File f, Job job) {
+		String _destFN = job.getPodcastTemplate().render(f);
+		if (_destFN == null) {
+			return null;
 		}
+		return new FileMove(f, job.getPodcastDestDir(), _destFN, job.getTags(), job.getDestName());
 	}
 
 	/**
-	 * Checks whether a String (typically a file name) starts with a
-	 * Date in the form of yyyyMMdd and returns this date as a String.
-	 * The parsing is very simply based on wether year, month and day are integers.
-	 * Days = 00 and / or Months = 00 are allowed and will be ignored.
-	 * Based on the length of the returned String, the format of the date can be easily 
-	 * determines. The method guarantees to return only the following formats:
-	 * ≤ul>
-	 * <li>""    no leading date
-	 * <li>yyyy  only a year
-	 * <li>yyyyMM  year and month
-	 * <li>yyyyMMdd  year, month and day
-	 * </ul> 
-	 * @param s			the String to parse
-	 * @return 			the parsed Date or null if there is no leading date
+	 * Determines the destination name, directory and finder tags of a pdf file.
+	 * @param f		the pdf file to classify
+	 * @return		the planned move or null if the file is not recognized
 	 */
-	private String getLeadingDateFromString(String s)  {
-		String _dateStr = null;
-		int i = 0;
-		// TODO: handle before christ (ad) dates
+	private FileMove classifyPdfFile(File f) {
+		long _start = System.nanoTime();
 		try {
-			if (s != null && s.length()>= 4) {  // check for yyyy 
-				i = new Integer(s.substring(0,4));
-				if (i > 0 && i < 3000) {
-					_dateStr = s.substring(0,4);
-					if (s.length() >= 6) {			// check for MM in yyyyMM
-						i = new Integer(s.substring(4,6));
-						if (i > 0 && i < 13) {   // month is correct: 01 .. 12
-							_dateStr = s.substring(0,6);
-							if (s.length() >= 8) {  // check for dd in yyyyMMdd
-								i = new Integer(s.substring(6,8));
-								if (i > 0 && i < 32) {   // day is correct: 01 .. 31 (special cases are ignored)
-									_dateStr = s.substring(0, 8);
-								}
-							}
-						}
-					}
+			return classifyPdfFileName(f);
+		}
+		finally {
+			metrics.stop("classify.pdf", _start);
+		}
+	}
+
+	/**
+	 * Applies the rules of the ruleTable to the name of a pdf file, see {@link #classifyPdfFile(File)}.
+	 */
+	private FileMove classifyPdfFileName(File f) {
+		String _destFN = null;
+		String _tags = null; // comma-separated list of tags
+		String _destDirName = null; // base destination directory
+		int _date = LeadingDate.NONE;
+
+		// the routing rules are compiled once into ruleTable, see RuleTable.getDefaultRules()
+		// search criteria:  prefixString, postfixString, prefixDate:prefixString
+		// srcDateType:     yyyyMMdd, yyyy-MM-dd
+		// destFile extension:  postfixStr, srcString
+		// destPath extension:  subDir
+		String _name = f.getName();
+		String _ruleId = null;
+		RenameRule _rule = ruleTable.matchFixed(_name);
+		if (_rule == null && (_date = LeadingDate.parse(_name, 0)) != LeadingDate.NONE) { // file name starts with date
+			if (debugMode) {
+				AsyncLog.println("leading date in <" + _name + "> -> " + LeadingDate.toString(_date));
+			}
+			_rule = ruleTable.matchDated(_name, LeadingDate.getPrecision(_date));
+			if (_rule == null) {  // there is a leading date, but no special meaning
+				if (debugMode) {
+					AsyncLog.println(_name + " has leading date, but no meaning");
 				}
+				_destFN = _name;
+				_destDirName = destDirName;  // move file as is, do not add tags
+				_ruleId = "leadingDate";
 			}
 		}
-		catch (NumberFormatException _ex) {
+		if (_rule != null) {
+			_destFN = _rule.buildDestFileName(_name);
+			_destDirName = _rule.buildDestDirName(destDirName);
+			_tags = _rule.getTags();
+			_ruleId = _rule.getId();
+		}
+		else if (_date == LeadingDate.NONE) {		// no leading date found; such a file is not moved, needs to be renamed first
 			if (debugMode) {
-				System.out.println(s + " leads to parse error in getLeadingDateFromString()");
+				AsyncLog.println("not recognized: " + _name);
 			}
+			if (journal != null) {  // skip this file in later runs as long as it is not changed
+				journal.recordRejected(f);
+			}
+			metrics.count("rejected.pdf");
+			return null;
 		}
-		if (debugMode) {
-			System.out.println("leading date in <" + s + "> -> <" + _dateStr + ">");
-		}
-
-		return _dateStr;
+		return new FileMove(f, _destDirName, _destFN, _tags, _ruleId);
 	}
 
 	/**
-	 * Filters all files within directory dir according to a file extension.
+	 * Streams all files (or directories) within directory dir according to the file extensions of a filter.
+	 * Each matching entry is passed to the visitor as soon as it is read. The time of the scan
+	 * (in sequential mode including the processing of the entries) is recorded in the timer scan.<i>source</i>.
+	 * @param   source      the name of the source, e.g. pdf
 	 * @param   dir         the current directory to look for the files
-	 * @param   extension   the file name extension is the selection criteria
-	 * @return	an array of pdf files
+	 * @param   key         the file name extensions, identifies the scan in the journal
+	 * @param   filter      selects the entries by their file name extension
+	 * @param   type        whether to select files or directories
+	 * @param   visitor     receives the selected entries
+	 * @throws IOException  if the directory can not be read; a directory that does not exist is ignored
+	 * @throws InterruptedException
 	 */
-	private File[] selectFiles(File dir, String extension) {
-		try {
+	private void scanFiles(final String source, File dir, String key, RenameFileFilter filter, DirectoryScanner.Type type, final DirectoryScanner.Visitor visitor) throws IOException, InterruptedException {
+		if (debugMode == true) {
+			AsyncLog.println("scanFiles("+ dir.toString() + ", " + key + ")");
+		}
+		if (dir.isDirectory() == false) {  // nothing to do, e.g. a podcast that is not subscribed
 			if (debugMode == true) {
-				System.out.println("selectFiles("+ dir.toString() + ", " + extension + ")");
+				AsyncLog.println(dir.toString() + " does not exist");
 			}
-			FilenameFilter _filter = new RenameFileFilter(extension);
-			return (dir.listFiles(_filter));
+			return;
 		}
-		catch (Exception _ex) {
-			System.out.println("******** failed in selectFiles() with " + _ex.toString() + "*********");
-			return null;
+		DirectoryScanner.Visitor _counting = new DirectoryScanner.Visitor() {
+			public void visit(Path p, BasicFileAttributes attrs) throws IOException, InterruptedException {
+				metrics.count("entries." + source);
+				visitor.visit(p, attrs);
+			}
+		};
+		long _start = System.nanoTime();
+		try {
+			if (journal != null) {
+				journal.scan(dir.toPath(), key, filter, type, _counting);
+			}
+			else {
+				DirectoryScanner.scan(dir.toPath(), filter, type, _counting);
+			}
+		}
+		finally {
+			metrics.stop("scan." + source, _start);
 		}
 	}
 
 	/**
-	 * save Bento backups
-	 * 
+	 * Executes a planned move and adds the finder tags to the moved file.
+	 * In transactionalMode, the move is only added to the current batch, see {@link #executeMoves()}.
+	 * @param m		the planned move
+	 * @throws IOException
 	 */
-	private void saveBentoBackups()
-	{
+	private void convert(FileMove m) throws IOException {
+		if (moveLog == null) {
+			if (moveFile(m) == true) {
+				tagFile(m);
+			}
+			return;
+		}
+		synchronized (pendingMoves) {  // jobs may run concurrently, see JobScheduler
+			pendingMoves.add(m);
+			if (pendingMoves.size() >= moveBatchSize) {
+				executeMoves();
+			}
+		}
+	}
+
+	/**
+	 * Executes a planned move like {@link #convert(FileMove)}, but writes it to the move log on its own
+	 * (concurrent moves share the fsync); failures are counted, not thrown. Used by concurrent movers.
+	 * @param m		the planned move
+	 */
+	private void convertLogged(FileMove m) {
 		try {
-			FilenameFilter _filter = new RenameFileFilter(".bentodb");
-			File[] _backupFiles = new File("/Users/bruno/Documents").listFiles(_filter);
-			for (int i = 0; i < _backupFiles.length; i++) {
-				if (_backupFiles[i].isDirectory()) {  // handle all directories
-					// 	/Users/bruno/Documents/Bento Backup - 2013-12-14.bentodb  -> yyyyMMdd.bentodb
-					String _destFN = _backupFiles[i].getName().substring(15,19) + 
-							_backupFiles[i].getName().substring(20, 22) +
-							_backupFiles[i].getName().substring(23, 25) + ".bentodb";	
-					String _destDirName = destDirName + "/toPegasus/backup/bento";
-					if (debugMode) { // just print out what would be done
-						System.out.println("mkdir " + new File(_destDirName).getCanonicalPath());
-					}
-					if (testMode == false) {
-						new File(_destDirName).mkdirs(); 			
-					}
-					File _destF = new File(_destDirName + "/" + _destFN);
-					if (testMode) {  // just print out what would be done
-						System.out.println("mv " + _backupFiles[i].getName() + " " + _destF.getCanonicalPath());
-					}
-					else {  // execute the conversion
-						if (_backupFiles[i].renameTo(_destF) == false) {
-							System.out.println("conversion of " + _backupFiles[i].getName() + " failed.");
-						}
-					}
+			if (moveLogged(m) == true) {
+				tagFile(m);
+			}
+		}
+		catch (IOException _ex) {
+			failures.incrementAndGet();
+			AsyncLog.println("conversion of " + m.getSource().getName() + " failed with " + _ex.toString());
+		}
+	}
 
+	/**
+	 * Executes the moves of the current batch: all of them are written to the move log
+	 * and synced with a single fsync before the first one is executed. The batch is cleared
+	 * also if the move log fails, so that its moves are not planned again under new numbers.
+	 * @throws IOException	if the move log can not be written
+	 */
+	private void executeMoves() throws IOException {
+		synchronized (pendingMoves) {
+			if (pendingMoves.isEmpty()) {
+				return;
+			}
+			int _executed = 0;
+			try {
+				long[] _seqs = new long[pendingMoves.size()];
+				long[] _versionSeqs = new long[_seqs.length];
+				for (int i = 0; i < _seqs.length; i++) {
+					_versionSeqs[i] = planVersion(pendingMoves.get(i));
+					_seqs[i] = moveLog.plan(pendingMoves.get(i));
+				}
+				moveLog.sync(_seqs[_seqs.length - 1]);
+				for (; _executed < _seqs.length; _executed++) {
+					FileMove _m = pendingMoves.get(_executed);
+					if (moveFile(_m) == true) {
+						completeVersion(_m, _versionSeqs[_executed]);
+						moveLog.complete(_seqs[_executed]);
+						tagFile(_m);
+					}
 				}
-				// else it is a file
+			}
+			finally {
+				for (int i = _executed; i < pendingMoves.size(); i++) {  // not executed after a failure
+					releaseName(pendingMoves.get(i));
+				}
+				pendingMoves.clear();
 			}
 		}
-		catch (Exception _ex) {
-			System.out.println("******** failed in saveBentoBackups() with " + _ex.toString() + "*********");
+	}
+
+	/**
+	 * Executes a single planned move, which is written to the move log first (in transactionalMode).
+	 * Concurrent callers share the fsync of the log.
+	 * @param m		the planned move
+	 * @return		true if the file was moved
+	 * @throws IOException
+	 */
+	private boolean moveLogged(FileMove m) throws IOException {
+		if (moveLog == null) {
+			return moveFile(m);
 		}
+		long _versionSeq = planVersion(m);
+		long _seq = moveLog.plan(m);
+		moveLog.sync(_seq);
+		if (moveFile(m) == true) {
+			completeVersion(m, _versionSeq);
+			moveLog.complete(_seq);
+			return true;
+		}
+		return false;
+	}
 
+	/**
+	 * Writes the renaming of an archived destination file to its version name (see {@link #keepVersion(FileMove)})
+	 * to the move log as a move of its own. It must be planned before the move that replaces the file, so that
+	 * an undo, which runs in reverse order, first moves the new file back and then restores the archived one.
+	 * @param m		the planned move
+	 * @return		the sequence number of the record, or 0 if no version is kept
+	 * @throws IOException
+	 */
+	private long planVersion(FileMove m) throws IOException {
+		if (m.getVersionName() == null || Files.exists(m.getDestination().toPath(), LinkOption.NOFOLLOW_LINKS) == false) {
+			return 0;
+		}
+		return moveLog.plan(m.getVersionMove());
 	}
 
 	/**
-	 * save Shakehands backups
-	 * 
+	 * Completes the record of {@link #planVersion(FileMove)} if the version was kept; it is not if the
+	 * destination already was the duplicate of the file (see {@link #convertDuplicate(FileMove, Path)}).
+	 * @param m				the executed move
+	 * @param versionSeq	the sequence number returned by planVersion
+	 * @throws IOException
 	 */
-	private void saveShakehandsBackups() {
-		try {
-			File _proSaldoBackupDir = new File("/Users/bruno/Documents/dfs/sysadm/ProSaldoBackup");
-			FilenameFilter _filter = new RenameFileFilter(".sdb");
-			File[] _backupDirs = _proSaldoBackupDir.listFiles();
-			for (int j = 0; j < _backupDirs.length; j++) {
-				if (_backupDirs[j].isDirectory() == true) {
-					File[] _backupFiles = _backupDirs[j].listFiles(_filter);
-					String _dirName = _backupDirs[j].getName();
-					for (int i = 0; i < _backupFiles.length; i++) {
-						if (_backupFiles[i].isFile()) {  // handle all files
-							// 		yyyy-mm-dd hh-mm-ss / Business.sdb -> yyyyMMdd.sdb	
-							String _destFN = _dirName.substring(0,4) + 
-									_dirName.substring(5,7) + _dirName.substring(8,10) + ".sdb";
-							String _destDirName = destDirName + "/toPegasus/backup/shakehands";
-							if (debugMode == true) { // just print out what would be done
-								System.out.println("mkdir " + new File(_destDirName).getCanonicalPath());
-							}
-							if (testMode == false) {
-								new File(_destDirName).mkdirs(); 			
-							}
-							File _destF = new File(_destDirName + "/" + _destFN);
-							if (testMode) {  // just print out what would be done
-								System.out.println("mv " + _backupFiles[i].getName() + " " + _destF.getCanonicalPath());
-							}
-							else {  // execute the conversion
-								if (_backupFiles[i].renameTo(_destF) == false) {
-									System.out.println("conversion of " + _backupFiles[i].getName() + " failed.");
-								}
-							}
-							// TODO: remove the backup directory
+	private void completeVersion(FileMove m, long versionSeq) throws IOException {
+		if (versionSeq > 0 && CollisionIndex.getVersionFile(m).exists()) {
+			moveLog.complete(versionSeq);
+		}
+	}
 
+	/**
+	 * Creates the destination directory and moves the file; in testMode, it just prints out what would be done.
+	 * @param m		the planned move
+	 * @return		true if the file was moved
+	 * @throws IOException
+	 */
+	private boolean moveFile(FileMove m) throws IOException {
+		if (debugMode) { // just print out what would be done
+			AsyncLog.println("mkdir " + destinations.getCanonicalPath(m.getDestDirName()));
+		}
+		File _destF = m.getDestination();
+		if (testMode) {  // just print out what would be done
+			String _destPath = destinations.getCanonicalPath(m.getDestDirName()) + "/" + _destF.getName();
+			if (m.hasTags()) {
+				AsyncLog.println("mv " + m.getSource().getName() + " " + _destPath + ", adding tags: " + m.getTags());
+				if (debugMode) {
+					AsyncLog.println(tagCommand + " -a " + m.getTags() + " " + _destPath);
+				}
+			}
+			else { 
+				AsyncLog.println("mv " + m.getSource().getName() + " " + _destPath + ", no tags added");
+			}
+			return false;
+		}
+		else {  // execute the conversion, also onto a different volume
+			try {
+				// create all parent directories if they do not already exist
+				long _start = System.nanoTime();
+				destinations.ensure(m.getDestDirName());
+				metrics.stop("mkdirs", _start);
+				DedupIndex _dedupIndex = getDedupIndex();
+				if (_dedupIndex != null) {
+					_start = System.nanoTime();
+					Path _duplicate = _dedupIndex.findDuplicate(m.getSource().toPath());
+					metrics.stop("dedup", _start);
+					if (_duplicate != null) {
+						metrics.count("duplicates");
+						if (convertDuplicate(m, _duplicate) == true) {
+							return true;
 						}
-						// else it is a directory
+						releaseName(m);
+						return false;
+					}
+				}
+				if (m.getVersionName() != null && Files.exists(_destF.toPath(), LinkOption.NOFOLLOW_LINKS)) {
+					keepVersion(m);
+				}
+				_start = System.nanoTime();
+				MoveEngine.Result _result;
+				try {
+					_result = moveEngine.move(m.getSource().toPath(), _destF.toPath());
+				}
+				catch (NoSuchFileException _ex) {
+					if (m.getSource().exists() == false) {
+						throw _ex;
 					}
-				} 
+					// the destination directory was removed since it was cached
+					destinations.invalidate(m.getDestDirName());
+					destinations.ensure(m.getDestDirName());
+					_result = moveEngine.move(m.getSource().toPath(), _destF.toPath());
+				}
+				metrics.stop(_result == MoveEngine.Result.RENAMED ? "move.rename" : "move.copy", _start);
+				metrics.count("rule." + m.getRuleId());
+				indexMoved(_destF, m.getSource().toPath(), m.getTags());
+				if (journal != null) {
+					journal.recordMoved(m.getSource());
+				}
+				return true;
+			}
+			catch (IOException _ex) {
+				destinations.invalidate(m.getDestDirName());
+				AsyncLog.println("conversion of " + m.getSource().getName() + " failed with " + _ex.toString());
+				failures.incrementAndGet();
+				metrics.count("failures");
+				releaseName(m);
+				return false;
 			}
 		}
-		catch (Exception _ex) {
-			System.out.println("******** failed in saveShakehandsBackups() with " + _ex.toString() + "*********");
+	}
+
+	/**
+	 * Releases the destination name of a move that was not executed, so that the file is not
+	 * renamed (or skipped) because of its own reservation when it is converted again.
+	 * @param m		the planned move
+	 */
+	private void releaseName(FileMove m) {
+		if (collisionIndex != null) {
+			collisionIndex.release(m);
 		}
 	}
 
 	/**
-	 * save Software files
-	 * 
+	 * Returns the dedup index (dedupMode=skip or link). The index is loaded or built by the first move, so that
+	 * the modes that do not move files (e.g. --undo, --search or a testMode run) do not walk the archive.
+	 * @return	the dedup index or null if dedupMode is off
+	 * @throws IOException
 	 */
-	private void saveSoftwareFiles() {
-		try {
-			File[] _swFiles = selectFiles(getCurrentDirectory(), ".dmg");
-			for (int i = 0; i < _swFiles.length; i++) {
-				if (_swFiles[i].isFile()) {  // handle all files
-					String _destDirName = destDirName + "/toPegasus/software";
-					if (debugMode == true) { // just print out what would be done
-						System.out.println("mkdir " + new File(_destDirName).getCanonicalPath());
-					}
-					if (testMode == false) {
-						new File(_destDirName).mkdirs(); 			
-					}
-					File _destF = new File(_destDirName + "/" + _swFiles[i].getName());
-					if (testMode) {  // just print out what would be done
-						System.out.println("mv " + _swFiles[i].getName() + " " + _destF.getCanonicalPath());
-					}
-					else {  // execute the conversion
-						if (_swFiles[i].renameTo(_destF) == false) {
-							System.out.println("conversion of " + _swFiles[i].getName() + " failed.");
-						}
-					}
-				}
-				// else it is a directoy
+	private synchronized DedupIndex getDedupIndex() throws IOException {
+		if (dedupIndex == null && (dedupMode.equals("skip") || dedupMode.equals("link"))) {
+			dedupIndex = new DedupIndex(new File(dedupIndexFileName), 
+					Arrays.asList(new File(destDirName), new File(podcastDestDirName)));
+		}
+		return dedupIndex;
+	}
+
+	/**
+	 * Renames the archived destination file of a move to its version name (collisionPolicy=version),
+	 * so that it is not replaced by the new file.
+	 * @param m		the planned move
+	 * @throws IOException
+	 */
+	private void keepVersion(FileMove m) throws IOException {
+		Path _archived = m.getDestination().toPath();
+		Path _version = CollisionIndex.getVersionFile(m).toPath();
+		moveEngine.move(_archived, _version);
+		if (dedupIndex != null) {
+			try {
+				dedupIndex.add(_version, _archived);
+			}
+			catch (IOException _ex) {
+				indexFailed(_version.toFile(), _ex);
 			}
 		}
-		catch (Exception _ex) {
-			System.out.println("******** failed in saveSoftwareFiles() with " + _ex.toString() + "*********");
+		if (searchIndex != null) {
+			try {
+				searchIndex.move(_archived.toFile(), _version.toFile());
+			}
+			catch (IOException _ex) {
+				indexFailed(_version.toFile(), _ex);
+			}
+		}
+		if (debugMode) {
+			AsyncLog.println("mv " + _archived + " " + _version.getFileName());
+		}
+	}
+
+	/**
+	 * Adds a file that was moved into the archive to the indexes. The move is done at this point: an index
+	 * that can not be updated is reported on its own, the move still counts as executed (its move log record
+	 * is completed and the file is tagged).
+	 * @param archived	the file in the archive
+	 * @param source	the former path of the file, or null if it was linked to an archived duplicate
+	 * @param tags		its finder tags, comma-separated, or null
+	 */
+	private void indexMoved(File archived, Path source, String tags) {
+		if (dedupIndex != null && source != null) {
+			try {
+				dedupIndex.add(archived.toPath(), source);
+			}
+			catch (IOException _ex) {
+				indexFailed(archived, _ex);
+			}
+		}
+		if (epaperIndex != null) {
+			epaperIndex.add(archived);
+		}
+		if (searchIndex != null) {
+			try {
+				searchIndex.add(archived, tags);
+			}
+			catch (IOException _ex) {
+				indexFailed(archived, _ex);
+			}
+		}
+	}
+
+	private void indexFailed(File archived, IOException ex) {
+		AsyncLog.println("******** failed to index " + archived + " with " + ex.toString() + "*********");
+		metrics.count("index.failures");
+	}
+
+	/**
+	 * Handles a file whose content is already archived: with dedupMode=skip, the file is left in
+	 * the source directory; with dedupMode=link, the destination becomes a hard link to the archived
+	 * file and the source is deleted. An existing destination that is not the archived file itself is never
+	 * replaced: it is kept under its version name (collisionPolicy=version), otherwise the move fails.
+	 * @param m				the planned move
+	 * @param duplicate		the archived file with the same content
+	 * @return				true if the destination was linked
+	 * @throws IOException	e.g. FileAlreadyExistsException if the destination exists
+	 */
+	private boolean convertDuplicate(FileMove m, Path duplicate) throws IOException {
+		Path _src = m.getSource().toPath();
+		Path _dest = m.getDestination().toPath();
+		dedupIndex.forget(_src);
+		if (dedupMode.equals("link") == false) {
+			AsyncLog.println(m.getSource().getName() + " is a duplicate of " + duplicate + ", not moved");
+			if (journal != null) {  // skip this file in later runs as long as it is not changed
+				journal.recordRejected(m.getSource());
+			}
+			return false;
+		}
+		if (Files.exists(_dest, LinkOption.NOFOLLOW_LINKS) == false) {
+			Files.createLink(_dest, duplicate);
+		}
+		else if (Files.isSameFile(_dest, duplicate) == false) {
+			if (m.getVersionName() == null) {
+				throw new FileAlreadyExistsException(_dest.toString(), duplicate.toString(), "not a duplicate");
+			}
+			keepVersion(m);
+			Files.createLink(_dest, duplicate);
+		}
+		Files.delete(_src);
+		indexMoved(m.getDestination(), null, m.getTags());
+		if (journal != null) {
+			journal.recordMoved(m.getSource());
+		}
+		if (debugMode) {
+			AsyncLog.println(m.getSource().getName() + " is a duplicate of " + duplicate + ", linked");
+		}
+		return true;
+	}
+
+	/**
+	 * Adds the finder tags to a moved file. The tags are written in batches by the
+	 * tagWriter, see {@link #finishRun(boolean)}.
+	 * @param m		the executed move
+	 */
+	private void tagFile(FileMove m) {
+		if (m.hasTags()) {
+			tagWriter.add(m.getTags(), m.getDestination());
 		}
 	}
 
+	/**
+	 * Completes a run: writes all pending finder tags, ends the run in the move log, updates the journal
+	 * and writes the metrics.
+	 * @param completed		false if the run was aborted
+	 */
+	private void finishRun(boolean completed) {
+		tagWriter.flush();
+		if (moveLog != null) {
+			try {
+				moveLog.end();
+			}
+			catch (IOException _ex) {
+				AsyncLog.println("******** failed to end the run in the move log with " + _ex.toString() + "*********");
+			}
+		}
+		if (journal != null) {
+			try {
+				journal.commit(completed && failures.get() == 0);
+			}
+			catch (IOException _ex) {
+				AsyncLog.println("******** failed to update the journal with " + _ex.toString() + "*********");
+			}
+		}
+		if (dedupIndex != null) {
+			try {
+				dedupIndex.save();
+			}
+			catch (IOException _ex) {
+				AsyncLog.println("******** failed to save the dedup index with " + _ex.toString() + "*********");
+			}
+		}
+		if (epaperIndex != null) {
+			try {
+				epaperIndex.save();
+			}
+			catch (IOException _ex) {
+				AsyncLog.println("******** failed to save the epaper index with " + _ex.toString() + "*********");
+			}
+		}
+		if (searchIndex != null) {
+			try {
+				searchIndex.save();
+			}
+			catch (IOException _ex) {
+				AsyncLog.println("******** failed to save the search index with " + _ex.toString() + "*********");
+			}
+		}
+		if (collisionIndex != null && collisionIndex.getCollisions() > 0 && debugMode == false) {
+			AsyncLog.println("collisions: " + collisionIndex.getSummary());
+		}
+		if (debugMode) {
+			AsyncLog.println("moves: " + moveEngine.getSummary());
+			AsyncLog.println("destinations: " + destinations.getSummary());
+			AsyncLog.println("tree scans: " + treeScanner.getSummary());
+			AsyncLog.println("tags: " + tagWriter.getSummary());
+			if (moveLog != null) {
+				AsyncLog.println("move log: " + moveLog.getSummary());
+			}
+			if (dedupIndex != null) {
+				AsyncLog.println("dedup: " + dedupIndex.getSummary());
+			}
+			if (collisionIndex != null) {
+				AsyncLog.println("collisions: " + collisionIndex.getSummary());
+			}
+			if (epaperIndex != null) {
+				AsyncLog.println("epapers: " + epaperIndex.getSummary());
+			}
+			if (searchIndex != null) {
+				AsyncLog.println("search: " + searchIndex.getSummary());
+			}
+			if (journal != null) {
+				AsyncLog.println("journal: " + journal.getSummary());
+			}
+		}
+		if (metricsMode) {
+			try {
+				metrics.writeJson(new File(metricsFileName));
+			}
+			catch (IOException _ex) {
+				AsyncLog.println("******** failed to write the metrics with " + _ex.toString() + "*********");
+			}
+		}
+		AsyncLog.flush();
+	}
+
+	/**
+	 * Determines the destination of a Bento backup directory.
+	 * @param d			the backup directory
+	 * @param destDir	the destination directory
+	 * @return			the planned move
+	 */
+	private FileMove classifyBentoBackup(File d, String destDir) {
+		// 	/Users/bruno/Documents/Bento Backup - 2013-12-14.bentodb  -> yyyyMMdd.bentodb
+		String _destFN = d.getName().substring(15,19) + 
+				d.getName().substring(20, 22) +
+				d.getName().substring(23, 25) + ".bentodb";	
+		return new FileMove(d, destDir, _destFN, null, "bento");
+	}
+
+	/**
+	 * Streams all files (or directories) with certain extensions in the subdirectories of dir at a certain depth.
+	 * Each subdirectory is scanned on its own, so that unchanged subdirectories are skipped in incrementalMode;
+	 * sibling directories are scanned concurrently by the treeScanner, so the visitor must be thread-safe.
+	 * @param   source      the name of the source, e.g. shakehands
+	 * @param   dir         the root directory, e.g. ProSaldoBackup
+	 * @param   depth       2 to scan the subdirectories of dir, 3 to scan their subdirectories, ...
+	 * @param   key         the file name extensions, identifies the scan in the journal
+	 * @param   filter      selects the entries by their file name extension
+	 * @param   type        whether to select files or directories
+	 * @param   visitor     receives the selected entries
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	private void scanSubdirectories(final String source, File dir, int depth, final String key, final RenameFileFilter filter, final DirectoryScanner.Type type, final DirectoryScanner.Visitor visitor) throws IOException, InterruptedException {
+		if (dir.isDirectory() == false) {
+			return;
+		}
+		treeScanner.scan(dir.toPath(), depth, new ForkJoinScanner.DirectoryHandler() {
+			public void handle(Path d) throws IOException, InterruptedException {
+				scanFiles(source, d.toFile(), key, filter, type, visitor);
+			}
+		});
+	}
+
+	/**
+	 * Removes the backup directories that are empty after their backup was moved (not in testMode).
+	 * The directories are removed after all moves are executed, in parallel and in post-order.
+	 */
+	private void removeEmptyBackupDirectories() {
+		if (testMode || removeEmptyBackups == false) {
+			return;
+		}
+		for (Job _j : jobs) {
+			if (_j.getClassifier() == Job.Classifier.SHAKEHANDS && _j.getDir().isDirectory()) {
+				try {
+					int _removed = treeScanner.removeEmptyDirectories(_j.getDir().toPath());
+					metrics.add("removed." + _j.getName(), _removed);
+				}
+				catch (Exception _ex) {
+					failures.incrementAndGet();
+					AsyncLog.println("******** failed in removeEmptyBackupDirectories() with " + _ex.toString() + "*********");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Determines the destination of a Shakehands backup file.
+	 * @param f			the .sdb file within a timestamped backup directory
+	 * @param destDir	the destination directory
+	 * @return			the planned move
+	 */
+	private FileMove classifyShakehandsBackup(File f, String destDir) {
+		// 		yyyy-mm-dd hh-mm-ss / Business.sdb -> yyyyMMdd.sdb	
+		String _dirName = f.getParentFile().getName();
+		String _destFN = _dirName.substring(0,4) + 
+				_dirName.substring(5,7) + _dirName.substring(8,10) + ".sdb";
+		return new FileMove(f, destDir, _destFN, null, "shakehands");
+	}
+
+	/**
+	 * Determines the destination of a software file.
+	 * @param f			the .dmg file
+	 * @param destDir	the destination directory
+	 * @return			the planned move
+	 */
+	private FileMove classifySoftwareFile(File f, String destDir) {
+		return new FileMove(f, destDir, f.getName(), null, "software");
+	}
+
 }
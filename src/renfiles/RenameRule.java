@@ -0,0 +1,214 @@
+package renfiles;
+
+/**
+ * A single routing rule for pdf files in the source directory.<p>
+ * A rule describes how a file is recognized (by a prefix, a postfix or a
+ * keyword following a leading date), how the destination file name is built
+ * and where the file is moved to.<p>
+ * Rules are pure data; they are compiled into a {@link RuleTable} once
+ * at startup.
+ *
+ * @author Bruno Kaiser
+ * @version $Id$
+ */
+public class RenameRule {
+	/** how the rule recognizes a file name */
+	public enum Kind {
+		/** the file name starts with the pattern */
+		PREFIX,
+		/** the file name ends with the pattern */
+		POSTFIX,
+		/** the file name starts with a date, followed by the pattern */
+		DATED,
+		/** the file name starts with a date and ends with the pattern, ignoring case */
+		DATED_POSTFIX
+	}
+
+	/** layout of the date that is copied from the source into the destination file name */
+	public enum DateLayout {
+		/** the file name is kept as is */
+		KEEP,
+		/** yyyyMM, copied as is */
+		YYYYMM,
+		/** yyyyMMdd, copied as is */
+		YYYYMMDD,
+		/** yyyy-MM-dd, converted into yyyyMMdd */
+		YYYY_MM_DD
+	}
+
+	/** position in the file name where a DATED keyword is expected (after yyyyMMdd) */
+	public static final int DATED_KEYWORD_OFFSET = 8;
+
+	private final String id;
+	private final Kind kind;
+	private final String pattern;
+	private final int minDateLength;
+	private final DateLayout dateLayout;
+	private final int dateOffset;
+	private final String postfix;
+	private final String destSubDir;
+	private final String tags;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param id			a short, unique name of the rule (used in debug output and statistics)
+	 * @param kind			how the pattern is matched against the file name
+	 * @param pattern		the prefix, postfix or keyword to look for
+	 * @param minDateLength	DATED rules only: minimal length of the leading date (4, 6 or 8)
+	 * @param dateLayout	layout of the date in the source file name
+	 * @param dateOffset	position of the date in the source file name
+	 * @param postfix		String appended to the date to build the destination file name
+	 * @param destSubDir	destination directory, relative to destDirName ("" for destDirName itself)
+	 * @param tags			comma-separated list of finder tags, or null for no tags
+	 */
+	public RenameRule(String id, Kind kind, String pattern, int minDateLength,
+			DateLayout dateLayout, int dateOffset, String postfix, String destSubDir, String tags) {
+		this.id = id;
+		this.kind = kind;
+		this.pattern = pattern;
+		this.minDateLength = minDateLength;
+		this.dateLayout = dateLayout;
+		this.dateOffset = dateOffset;
+		this.postfix = postfix;
+		this.destSubDir = destSubDir;
+		this.tags = tags;
+	}
+
+	/**
+	 * Creates a rule that recognizes a file by its prefix and copies the date at dateOffset.
+	 */
+	public static RenameRule prefix(String pattern, DateLayout layout, int dateOffset, String postfix, String destSubDir, String tags) {
+		return new RenameRule(pattern, Kind.PREFIX, pattern, 0, layout, dateOffset, postfix, destSubDir, tags);
+	}
+
+	/**
+	 * Creates a rule that recognizes a file by its postfix and copies the date at dateOffset.
+	 */
+	public static RenameRule postfix(String pattern, DateLayout layout, int dateOffset, String postfix, String destSubDir, String tags) {
+		return new RenameRule(pattern, Kind.POSTFIX, pattern, 0, layout, dateOffset, postfix, destSubDir, tags);
+	}
+
+	/**
+	 * Creates a rule for a file that starts with a date followed by a keyword; the file name is kept.
+	 */
+	public static RenameRule dated(String keyword, int minDateLength, String destSubDir, String tags) {
+		return new RenameRule(keyword, Kind.DATED, keyword, minDateLength, DateLayout.KEEP, 0, "", destSubDir, tags);
+	}
+
+	/**
+	 * Creates a rule for a file that starts with a date and ends with a postfix (case is ignored); the file name is kept.
+	 */
+	public static RenameRule datedPostfix(String pattern, String destSubDir, String tags) {
+		return new RenameRule(pattern, Kind.DATED_POSTFIX, pattern, 0, DateLayout.KEEP, 0, "", destSubDir, tags);
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public Kind getKind() {
+		return kind;
+	}
+
+	public String getPattern() {
+		return pattern;
+	}
+
+	public int getMinDateLength() {
+		return minDateLength;
+	}
+
+	public DateLayout getDateLayout() {
+		return dateLayout;
+	}
+
+	public String getPostfix() {
+		return postfix;
+	}
+
+	public String getDestSubDir() {
+		return destSubDir;
+	}
+
+	public String getTags() {
+		return tags;
+	}
+
+	/**
+	 * Builds the destination file name out of a source file name.
+	 * The date is parsed with {@link LeadingDate}; if it is not a valid date, its characters are copied as they are.
+	 * Throws an IndexOutOfBoundsException if the source name is too short to contain the date.
+	 *
+	 * @param name		the name of the source file
+	 * @return			the name of the destination file
+	 */
+	public String buildDestFileName(String name) {
+		if (dateLayout == DateLayout.KEEP) {
+			return name;
+		}
+		StringBuilder _buf = new StringBuilder(16 + postfix.length());
+		int _digits = dateLayout == DateLayout.YYYYMM ? 6 : 8;
+		int _date = dateLayout == DateLayout.YYYY_MM_DD ? LeadingDate.parseIso(name, dateOffset) : LeadingDate.parse(name, dateOffset);
+		if (LeadingDate.getPrecision(_date) >= _digits) {
+			return LeadingDate.append(_buf, _date, _digits).append(postfix).toString();
+		}
+		switch (dateLayout) {
+		case YYYYMM:
+			_buf.append(name, dateOffset, dateOffset + 6);
+			break;
+		case YYYYMMDD:
+			_buf.append(name, dateOffset, dateOffset + 8);
+			break;
+		case YYYY_MM_DD:
+			_buf.append(name, dateOffset, dateOffset + 4)
+				.append(name, dateOffset + 5, dateOffset + 7)
+				.append(name, dateOffset + 8, dateOffset + 10);
+			break;
+		default:
+			break;
+		}
+		return _buf.append(postfix).toString();
+	}
+
+	/**
+	 * Tests if a file name could have been built by {@link #buildDestFileName(String)} of this PREFIX or
+	 * POSTFIX rule, i.e. is the date followed by the postfix, e.g. to recognize an archived file.
+	 *
+	 * @param name		the name of a file in the destination directory
+	 * @return			true if the name has the layout of the destination names of this rule
+	 */
+	public boolean isDestFileName(String name) {
+		if (dateLayout == DateLayout.KEEP) {
+			return false;
+		}
+		int _digits = dateLayout == DateLayout.YYYYMM ? 6 : 8;
+		if (name.length() != _digits + postfix.length() || name.endsWith(postfix) == false) {
+			return false;
+		}
+		for (int i = 0; i < _digits; i++) {
+			if (name.charAt(i) < '0' || name.charAt(i) > '9') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Builds the destination directory name.
+	 *
+	 * @param destDirName	the root of the destination tree
+	 * @return				the destination directory of this rule
+	 */
+	public String buildDestDirName(String destDirName) {
+		if (destSubDir.isEmpty()) {
+			return destDirName;
+		}
+		return destDirName + "/" + destSubDir;
+	}
+
+	@Override
+	public String toString() {
+		return id;
+	}
+}
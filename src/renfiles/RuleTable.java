@@ -0,0 +1,266 @@
+package renfiles;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compiled set of {@link RenameRule}s.<p>
+ * The rules are compiled once into character tries (one for prefixes, one for postfixes
+ * and two for the rules that apply to file names with a leading date). A file name is then
+ * classified by walking its characters once, without creating any intermediate Strings.
+ * If several rules match, the one that was defined first wins; this is the same
+ * semantics as the former if/else chain in {@link RenameFiles}.
+ *
+ * @author Bruno Kaiser
+ * @version $Id$
+ */
+public class RuleTable {
+	private final RenameRule[] rules;
+	private final Trie prefixTrie = new Trie();
+	private final Trie postfixTrie = new Trie();
+	private final Trie datedTrie = new Trie();
+	private final Trie datedPostfixTrie = new Trie();
+
+	/**
+	 * Constructor; compiles the rules.
+	 *
+	 * @param ruleList	the rules in order of precedence
+	 */
+	public RuleTable(List<RenameRule> ruleList) {
+		rules = ruleList.toArray(new RenameRule[ruleList.size()]);
+		for (int i = 0; i < rules.length; i++) {
+			String _p = rules[i].getPattern();
+			switch (rules[i].getKind()) {
+			case PREFIX:
+				prefixTrie.add(_p, false, false, i);
+				break;
+			case POSTFIX:
+				postfixTrie.add(_p, true, false, i);
+				break;
+			case DATED:
+				datedTrie.add(_p, false, false, i);
+				break;
+			case DATED_POSTFIX:
+				datedPostfixTrie.add(_p, true, true, i);
+				break;
+			default:
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Returns the rules of this table in order of precedence.
+	 * @return 	the rules
+	 */
+	public List<RenameRule> getRules() {
+		return Arrays.asList(rules);
+	}
+
+	/**
+	 * Finds the first PREFIX or POSTFIX rule that matches a file name.
+	 *
+	 * @param name		the file name
+	 * @return			the matching rule or null if no rule matches
+	 */
+	public RenameRule matchFixed(String name) {
+		int _best = prefixTrie.matchForward(name, 0, Integer.MAX_VALUE, Integer.MAX_VALUE);
+		_best = postfixTrie.matchBackward(name, false, _best);
+		return _best == Integer.MAX_VALUE ? null : rules[_best];
+	}
+
+	/**
+	 * Finds the first DATED or DATED_POSTFIX rule that matches a file name with a leading date.
+	 *
+	 * @param name			the file name
+	 * @param dateLength	the length of the leading date (4, 6 or 8)
+	 * @return				the matching rule or null if the leading date has no special meaning
+	 */
+	public RenameRule matchDated(String name, int dateLength) {
+		int _best = datedTrie.matchForward(name, RenameRule.DATED_KEYWORD_OFFSET, Integer.MAX_VALUE, dateLength);
+		_best = datedPostfixTrie.matchBackward(name, true, _best);
+		return _best == Integer.MAX_VALUE ? null : rules[_best];
+	}
+
+	/**
+	 * Finds the rule that moved a file into the archive, e.g. to determine the tags an archived file should have.
+	 * A DATED rule keeps the file name, so it is matched like an incoming file; a PREFIX or POSTFIX rule
+	 * matches if the name has the layout of its destination names, see {@link RenameRule#isDestFileName(String)}.
+	 *
+	 * @param subDir	the directory of the file, relative to the root of the archive ("" for the root itself)
+	 * @param name		the file name
+	 * @return			the rule with this destination directory that matches the name, or null
+	 */
+	public RenameRule matchArchived(String subDir, String name) {
+		int _precision = LeadingDate.getPrecision(LeadingDate.parse(name, 0));
+		if (_precision > 0) {
+			RenameRule _rule = matchDated(name, _precision);
+			if (_rule != null && _rule.getDestSubDir().equals(subDir)) {
+				return _rule;
+			}
+		}
+		for (RenameRule _r : rules) {
+			if ((_r.getKind() == RenameRule.Kind.PREFIX || _r.getKind() == RenameRule.Kind.POSTFIX)
+					&& _r.getDestSubDir().equals(subDir) && _r.isDestFileName(name)) {
+				return _r;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the compiled default rules.
+	 * These are the rules that were formerly hard-coded in RenameFiles.convertPdfFile().
+	 * @return 	the default rule table
+	 */
+	public static RuleTable getDefault() {
+		return new RuleTable(getDefaultRules());
+	}
+
+	/**
+	 * Returns the default rules in order of precedence.
+	 * @return	a new list of the default rules
+	 */
+	public static List<RenameRule> getDefaultRules() {
+		List<RenameRule> _r = new ArrayList<RenameRule>();
+		// NZZS, NZZ, 20min: prefix,  yyyyMMdd, postfix,  subdir
+		// ZSZ: postfix, yyyyMMdd, postfix, subdir
+		// Tagi, Soze:  prefix, yyyy-MM-dd, postfix, subdir
+		_r.add(RenameRule.prefix("NZZS_", RenameRule.DateLayout.YYYYMMDD, 5, "nzzs.pdf", "news/nzzs", "dNews"));
+		_r.add(RenameRule.prefix("NZZ_", RenameRule.DateLayout.YYYYMMDD, 4, "nzz.pdf", "news/nzz", "dNews"));
+		_r.add(RenameRule.postfix("_zsr.pdf", RenameRule.DateLayout.YYYYMMDD, 0, "zsz.pdf", "news/zsz", "dNews"));
+		_r.add(RenameRule.prefix("ZH_", RenameRule.DateLayout.YYYYMMDD, 3, "_20min.pdf", "news/20min", "dNews"));
+		_r.add(RenameRule.prefix("taz-ges-", RenameRule.DateLayout.YYYY_MM_DD, 8, "tagesanzeiger.pdf", "news/tagesanzeiger", "dNews"));
+		_r.add(RenameRule.prefix("sonze-", RenameRule.DateLayout.YYYY_MM_DD, 6, "sonntagszeitung.pdf", "news/sonntagszeitung", "dNews"));
+		_r.add(RenameRule.prefix("EQUITY_", RenameRule.DateLayout.YYYYMMDD, 7, "nzzEquity.pdf", "news/nzzEquity", "dNews"));
+		_r.add(RenameRule.prefix("FOLIO_", RenameRule.DateLayout.YYYYMMDD, 6, "nzzFolio.pdf", "news/nzzFolio", "dNews"));
+		_r.add(RenameRule.prefix("GESE_", RenameRule.DateLayout.YYYYMMDD, 5, "nzzGesellschaft.pdf", "news/nzzGesellschaft", "dNews"));
+		_r.add(RenameRule.prefix("communications", RenameRule.DateLayout.YYYYMM, 14, "00acmCommunications.pdf", "news/acmCommunications", "oAcm,dMagazine,tTech"));
+		_r.add(RenameRule.prefix("compw-", RenameRule.DateLayout.YYYY_MM_DD, 6, "computerworld.pdf", "news/computerworld", "dNews,tTech"));
+
+		// ic, mmb, awuz etc.: prefixDate, yyyyMMdd, subDir
+		_r.add(RenameRule.dated("ic", 6, "news/ic", "dNews,tTech"));							// Inside Channels
+		_r.add(RenameRule.dated("rg", 6, "finance/rgs", "tFinance,dBill"));						// Rechnung / Bill
+		_r.add(RenameRule.dated("zkb", 6, "finance/bank", "tFinance,dBill,oZkb"));				// ZKB
+		_r.add(RenameRule.dated("pf", 6, "finance/bank", "tFinance,dBill,oPost"));				// PostFinance
+		_r.add(RenameRule.dated("lohn", 6, "finance", "tFinance,dStatement"));					// Lohn / Salary
+		_r.add(RenameRule.dated("slkk", 6, "finance/versicherungen", "tFinance,tInsurance,oSlkk"));	// SLKK
+		_r.add(RenameRule.dated("diary", 6, "diary", "oBruno,dDiary"));							// diary
+		_r.add(RenameRule.dated("abstract_", 4, "news/abstract", "dAbstract"));					// abstracts
+		_r.add(RenameRule.dated("kof", 6, "news/kof", "dReport,tEco"));							// KOF reports
+		_r.add(RenameRule.dated("book", 6, "books", "dBook"));									// ebook
+		_r.add(RenameRule.dated("sise", 6, "orgunits/sise", "oSise"));							// SI-SE
+		_r.add(RenameRule.dated("awuz", 6, "orgunits/awuz", "oAwuzUzha"));						// AWUZ
+		_r.add(RenameRule.dated("informatikSpektrum", 6, "news/informatikSpektrum", "tTech,dArticle"));	// Informatik Spektrum
+		_r.add(RenameRule.datedPostfix("pres.pdf", "done/business", "dPres"));					// presentation
+		_r.add(RenameRule.dated("itc", 6, "business", "dContract,dItc"));						// IT consulting contract
+		_r.add(RenameRule.dated("swd", 6, "business", "dContract,dSwd"));						// SW development contract
+		_r.add(RenameRule.dated("sla", 6, "business", "dContract,dSla"));						// maintenance contract
+		_r.add(RenameRule.dated("nda", 6, "business", "dContract,dNda"));						// non disclosure agreement
+		_r.add(RenameRule.dated("offer", 6, "business", "dContract,dOffer"));					// proposal
+		return _r;
+	}
+
+	/**
+	 * A simple character trie. Each node keeps its children in a small array that is
+	 * searched linearly; with the few rules we have, this is faster than any map.
+	 * A terminal node holds the index of the rule (the lowest index if a pattern is defined twice).
+	 */
+	private class Trie {
+		private final Node root = new Node();
+
+		/**
+		 * Adds a pattern to the trie.
+		 *
+		 * @param pattern		the pattern
+		 * @param reverse		store the pattern backwards (to match postfixes)
+		 * @param ignoreCase	store the pattern in lower case
+		 * @param ruleIndex		the index of the rule
+		 */
+		void add(String pattern, boolean reverse, boolean ignoreCase, int ruleIndex) {
+			Node _n = root;
+			int _len = pattern.length();
+			for (int i = 0; i < _len; i++) {
+				char _c = pattern.charAt(reverse ? _len - 1 - i : i);
+				_n = _n.getOrAddChild(ignoreCase ? Character.toLowerCase(_c) : _c);
+			}
+			if (_n.ruleIndex < 0 || ruleIndex < _n.ruleIndex) {
+				_n.ruleIndex = ruleIndex;
+			}
+		}
+
+		/**
+		 * Walks the file name forward, starting at offset.
+		 *
+		 * @param s				the file name
+		 * @param offset		the position where the pattern must start
+		 * @param best			the best rule index found so far
+		 * @param dateLength	only rules with a minDateLength <= dateLength are accepted
+		 * @return				the lowest matching rule index, or best
+		 */
+		int matchForward(String s, int offset, int best, int dateLength) {
+			Node _n = root;
+			int _len = s.length();
+			for (int i = offset; i < _len && _n != null; i++) {
+				_n = _n.getChild(s.charAt(i));
+				if (_n != null && _n.ruleIndex >= 0 && _n.ruleIndex < best) {
+					if (rules[_n.ruleIndex].getMinDateLength() <= dateLength) {
+						best = _n.ruleIndex;
+					}
+				}
+			}
+			return best;
+		}
+
+		/**
+		 * Walks the file name backward, starting at the last character.
+		 *
+		 * @param s				the file name
+		 * @param ignoreCase	compare lower case characters
+		 * @param best			the best rule index found so far
+		 * @return				the lowest matching rule index, or best
+		 */
+		int matchBackward(String s, boolean ignoreCase, int best) {
+			Node _n = root;
+			for (int i = s.length() - 1; i >= 0 && _n != null; i--) {
+				char _c = s.charAt(i);
+				_n = _n.getChild(ignoreCase ? Character.toLowerCase(_c) : _c);
+				if (_n != null && _n.ruleIndex >= 0 && _n.ruleIndex < best) {
+					best = _n.ruleIndex;
+				}
+			}
+			return best;
+		}
+	}
+
+	/**
+	 * A node of the Trie.
+	 */
+	private static class Node {
+		private char[] keys = new char[0];
+		private Node[] children = new Node[0];
+		private int ruleIndex = -1;
+
+		Node getChild(char c) {
+			for (int i = 0; i < keys.length; i++) {
+				if (keys[i] == c) {
+					return children[i];
+				}
+			}
+			return null;
+		}
+
+		Node getOrAddChild(char c) {
+			Node _n = getChild(c);
+			if (_n == null) {
+				_n = new Node();
+				keys = Arrays.copyOf(keys, keys.length + 1);
+				children = Arrays.copyOf(children, children.length + 1);
+				keys[keys.length - 1] = c;
+				children[children.length - 1] = _n;
+			}
+			return _n;
+		}
+	}
+}
@@ -0,0 +1,577 @@
+package renfiles;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Inverted index of the archived documents, to find them by their path, date, publication, finder tags
+ * and (optionally) the text of the pdf files, e.g. <code>RenameFiles --search all ZKB bills from 2013</code>.<p>
+ * Each archived file is a document with a number; each term maps to the sorted list of the numbers of the
+ * documents that contain it. The terms of a document are the words of its path below the archive root
+ * (letters only, lower case; the date and other numbers are kept in the date of the document), the name of its
+ * directory as <code>pub:name</code>, and its tags, each as <code>tag:dbill</code>, as <code>dbill</code> and
+ * without its type letter as <code>bill</code>. The date is the leading date of the file name
+ * ({@link LeadingDate}). A query is a list of words that must all match, optionally with a year, month or day
+ * (<code>2013</code>, <code>201305</code> or <code>20130514</code>; several of them make a range) and
+ * <code>tag:</code> or <code>pub:</code> terms; a word without postings is also tried without a plural s.
+ * The posting lists are intersected, the shortest first, so a query is answered in memory within
+ * milliseconds; only the files of the hits that are returned are checked to still exist.<p>
+ * The index is kept in memory and stored in an append-only file: a moved file appends a record, a
+ * replaced or removed file a deletion record, so the index is updated incrementally with the moves of a run.
+ * When more than half of the records are obsolete, the file is rewritten. The index is built by walking the
+ * archive if the file does not exist (delete it to rebuild the index); the tags of the files found are
+ * those of the rules that moved them ({@link RuleTable#matchArchived(String, String)}).
+ * Record format: <code>+ path date tags text</code> or <code>- path</code>, separated by tabs.<p>
+ * If a text command is configured (e.g. <code>pdftotext -q -l 2</code>, which is called with the file and
+ * <code>-</code>), the words of the first {@link #MAX_TEXT_CHARS} characters of its output are indexed too;
+ * the text is extracted by the calling thread, i.e. by the move workers, outside of the lock of the index.
+ *
+ * @author Bruno Kaiser
+ * @version $Id$
+ */
+public class SearchIndex {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	/** the number of characters of the extracted text that are indexed */
+	private static final int MAX_TEXT_CHARS = 64 * 1024;
+	/** words of a query that do not restrict it */
+	private static final Set<String> STOP_WORDS = new HashSet<String>(Arrays.asList(
+			"a", "all", "and", "by", "for", "from", "in", "of", "the", "to", "with",
+			"alle", "aus", "der", "die", "das", "und", "von"));
+
+	private final File file;
+	private final List<File> roots;
+	private final RuleTable ruleTable;
+	/** the command that extracts the text of a pdf file, or null */
+	private final List<String> textCommand;
+
+	private final List<Document> documents = new ArrayList<Document>();
+	private final Map<String, Integer> byPath = new HashMap<String, Integer>();
+	private final Map<String, Postings> postings = new HashMap<String, Postings>();
+	private Writer log = null;
+	/** the number of records in the file */
+	private int records = 0;
+	private int live = 0;
+
+	private final AtomicInteger added = new AtomicInteger();
+	private final AtomicInteger removed = new AtomicInteger();
+	private final AtomicInteger extracted = new AtomicInteger();
+	private final AtomicInteger queries = new AtomicInteger();
+
+	/**
+	 * An archived file.
+	 */
+	public static class Document {
+		private final String path;
+		private final int date;
+		private final String tags;
+		private final String text;
+		private boolean deleted = false;
+
+		Document(String path, int date, String tags, String text) {
+			this.path = path;
+			this.date = date;
+			this.tags = tags;
+			this.text = text;
+		}
+
+		public String getPath() {
+			return path;
+		}
+
+		/**
+		 * @return	the leading date of the file name as yyyyMMdd (missing parts are 0), or 0
+		 */
+		public int getDate() {
+			return date;
+		}
+
+		/**
+		 * @return	the finder tags, comma-separated, or ""
+		 */
+		public String getTags() {
+			return tags;
+		}
+	}
+
+	/**
+	 * The sorted numbers of the documents of a term.
+	 */
+	private static class Postings {
+		private int[] ids = new int[2];
+		private int size = 0;
+
+		void add(int id) {
+			if (size > 0 && ids[size - 1] == id) {
+				return;  // the term occurs twice in the document
+			}
+			if (size == ids.length) {
+				ids = Arrays.copyOf(ids, size * 2);
+			}
+			ids[size++] = id;
+		}
+	}
+
+	/**
+	 * Constructor; loads the index file, or builds the index by walking the archive directories.
+	 *
+	 * @param file			the index file
+	 * @param roots			the root directories of the archive, e.g. destDirName and podcastDestDirName
+	 * @param ruleTable		determines the tags of the files found while the index is built
+	 * @param textCommand	the command that extracts the text of a pdf file (without the file and "-"), or null
+	 * @throws IOException
+	 */
+	public SearchIndex(File file, List<File> roots, RuleTable ruleTable, String textCommand) throws IOException {
+		this.file = file;
+		this.roots = roots;
+		this.ruleTable = ruleTable;
+		this.textCommand = textCommand == null || textCommand.trim().isEmpty() ? null : Arrays.asList(textCommand.trim().split("\\s+"));
+		if (file.exists()) {
+			load();
+		}
+		else {
+			for (File _root : roots) {
+				if (_root.isDirectory()) {
+					walk(_root);
+				}
+			}
+			compact();
+		}
+	}
+
+	private void load() throws IOException {
+		try (BufferedReader _in = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8))) {
+			String _line;
+			while ((_line = _in.readLine()) != null) {
+				records++;
+				String[] _f = _line.split("\t", 5);
+				if (_f.length == 5 && _f[0].equals("+")) {
+					try {
+						put(new Document(_f[1], Integer.parseInt(_f[2]), _f[3], _f[4]));
+					}
+					catch (NumberFormatException _ex) {
+						// ignore a damaged record
+					}
+				}
+				else if (_f.length == 2 && _f[0].equals("-")) {
+					delete(_f[1]);
+				}
+			}
+		}
+	}
+
+	private void walk(final File root) throws IOException {
+		final Path _root = root.toPath().toAbsolutePath();
+		Files.walkFileTree(_root, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path p, BasicFileAttributes attrs) {
+				String _name = p.getFileName().toString();
+				if (attrs.isRegularFile() && _name.startsWith(".") == false) {
+					String _subDir = _root.relativize(p.getParent()).toString().replace(File.separatorChar, '/');
+					RenameRule _rule = ruleTable.matchArchived(_subDir, _name);
+					put(newDocument(p.toFile(), _rule != null ? _rule.getTags() : null));
+				}
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult visitFileFailed(Path p, IOException exc) {
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/**
+	 * Adds a file that was moved into the archive; a document with the same path is replaced.
+	 *
+	 * @param archived	the file in the archive
+	 * @param tags		its finder tags, comma-separated, or null
+	 * @throws IOException	if the index file can not be written
+	 */
+	public void add(File archived, String tags) throws IOException {
+		Document _d = newDocument(archived.getAbsoluteFile(), tags);
+		synchronized (this) {
+			put(_d);
+			append("+\t" + _d.path + "\t" + _d.date + "\t" + _d.tags + "\t" + _d.text);
+		}
+		added.incrementAndGet();
+	}
+
+	/**
+	 * Moves a document within the archive, e.g. an archived file that is kept under its version name.
+	 * The text is not extracted again.
+	 *
+	 * @param from	the former path
+	 * @param to	the new path
+	 * @throws IOException	if the index file can not be written
+	 */
+	public synchronized void move(File from, File to) throws IOException {
+		Integer _id = byPath.get(from.getAbsolutePath());
+		if (_id == null) {
+			return;
+		}
+		Document _old = documents.get(_id);
+		remove(from);
+		String _path = to.getAbsolutePath();
+		Document _d = new Document(_path, getDate(to.getName()), _old.tags, _old.text);
+		put(_d);
+		append("+\t" + _d.path + "\t" + _d.date + "\t" + _d.tags + "\t" + _d.text);
+	}
+
+	/**
+	 * Removes the document of a file that is no longer in the archive.
+	 *
+	 * @param archived	the former path of the file
+	 * @throws IOException	if the index file can not be written
+	 */
+	public synchronized void remove(File archived) throws IOException {
+		String _path = archived.getAbsolutePath();
+		if (delete(_path)) {
+			append("-\t" + _path);
+			removed.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Creates the document of an archived file; the text is extracted if a text command is configured.
+	 */
+	private Document newDocument(File f, String tags) {
+		String _text = "";
+		if (textCommand != null && f.getName().toLowerCase().endsWith(".pdf")) {
+			_text = extractText(f);
+		}
+		return new Document(f.getAbsolutePath(), getDate(f.getName()), tags != null ? tags : "", _text);
+	}
+
+	private static int getDate(String name) {
+		return LeadingDate.getDate(LeadingDate.parse(name, 0));
+	}
+
+	/**
+	 * Runs the text command and collects the words of its output.
+	 * @return	the distinct words, separated by blanks, or "" if the command failed
+	 */
+	private String extractText(File f) {
+		List<String> _cmd = new ArrayList<String>(textCommand);
+		_cmd.add(f.getAbsolutePath());
+		_cmd.add("-");
+		StringBuilder _text = new StringBuilder();
+		try {
+			Process _p = new ProcessBuilder(_cmd).redirectErrorStream(true).start();
+			_p.getOutputStream().close();
+			try (Reader _in = new InputStreamReader(_p.getInputStream(), UTF8)) {
+				char[] _buf = new char[8192];
+				int _n;
+				while ((_n = _in.read(_buf)) > 0) {
+					if (_text.length() < MAX_TEXT_CHARS) {
+						_text.append(_buf, 0, Math.min(_n, MAX_TEXT_CHARS - _text.length()));
+					}
+				}
+			}
+			if (_p.waitFor() != 0) {
+				return "";
+			}
+		}
+		catch (IOException _ex) {
+			AsyncLog.println("******** failed in extractText() of " + f + " with " + _ex.toString() + "*********");
+			return "";
+		}
+		catch (InterruptedException _ex) {
+			Thread.currentThread().interrupt();
+			return "";
+		}
+		extracted.incrementAndGet();
+		StringBuilder _words = new StringBuilder();
+		for (String _w : tokenize(_text, new LinkedHashSet<String>())) {
+			_words.append(_words.length() > 0 ? " " : "").append(_w);
+		}
+		return _words.toString();
+	}
+
+	/**
+	 * Adds a document to the index; a document with the same path is replaced.
+	 */
+	private void put(Document d) {
+		delete(d.path);
+		int _id = documents.size();
+		documents.add(d);
+		byPath.put(d.path, _id);
+		live++;
+		for (String _term : getTerms(d)) {
+			Postings _p = postings.get(_term);
+			if (_p == null) {
+				_p = new Postings();
+				postings.put(_term, _p);
+			}
+			_p.add(_id);
+		}
+	}
+
+	/**
+	 * Marks the document of a path as deleted; its numbers stay in the postings until the index is compacted.
+	 * @return	true if there was a document
+	 */
+	private boolean delete(String path) {
+		Integer _id = byPath.remove(path);
+		if (_id == null) {
+			return false;
+		}
+		documents.get(_id).deleted = true;
+		live--;
+		return true;
+	}
+
+	/**
+	 * @return	the terms of a document, see class comment
+	 */
+	private Set<String> getTerms(Document d) {
+		Set<String> _terms = new LinkedHashSet<String>();
+		String _relative = d.path;
+		for (File _root : roots) {
+			String _prefix = _root.getAbsolutePath() + File.separator;
+			if (d.path.startsWith(_prefix)) {
+				_relative = d.path.substring(_prefix.length());
+				break;
+			}
+		}
+		tokenize(_relative, _terms);
+		String _parent = new File(d.path).getParentFile().getName().toLowerCase();
+		_terms.add("pub:" + _parent);
+		for (String _tag : FinderTags.parse(d.tags)) {
+			String _t = FinderTags.stripColor(_tag);
+			_terms.add("tag:" + _t.toLowerCase());
+			tokenize(_t, _terms);
+			if (_t.length() > 2 && Character.isLowerCase(_t.charAt(0)) && Character.isUpperCase(_t.charAt(1))) {
+				_terms.add(_t.substring(1).toLowerCase());  // oZkb -> zkb
+			}
+		}
+		if (d.text.isEmpty() == false) {
+			_terms.addAll(Arrays.asList(d.text.split(" ")));
+		}
+		return _terms;
+	}
+
+	/**
+	 * Splits a text into words: runs of at least two letters, in lower case; a word also ends before
+	 * an upper case letter that follows a lower case letter (zkbRechnung -> zkb, rechnung).
+	 * @return	terms
+	 */
+	private static Set<String> tokenize(CharSequence s, Set<String> terms) {
+		int _start = -1;
+		for (int i = 0; i <= s.length(); i++) {
+			boolean _letter = i < s.length() && Character.isLetter(s.charAt(i));
+			boolean _camel = _letter && _start >= 0 && Character.isUpperCase(s.charAt(i)) && Character.isLowerCase(s.charAt(i - 1));
+			if (_start >= 0 && (_letter == false || _camel)) {
+				if (i - _start >= 2) {
+					terms.add(s.subSequence(_start, i).toString().toLowerCase());
+				}
+				_start = -1;
+			}
+			if (_letter && _start < 0) {
+				_start = i;
+			}
+		}
+		return terms;
+	}
+
+	/**
+	 * Finds the documents that match a query, see class comment. Documents whose file no longer exists
+	 * are removed from the index.
+	 *
+	 * @param query		the query, e.g. "zkb bills 2013"
+	 * @param limit		the maximum number of hits
+	 * @return			the matching documents, the latest first
+	 * @throws IOException	if the index file can not be written
+	 */
+	public synchronized List<Document> search(String query, int limit) throws IOException {
+		queries.incrementAndGet();
+		int _from = Integer.MAX_VALUE;
+		int _to = Integer.MIN_VALUE;
+		List<Postings> _lists = new ArrayList<Postings>();
+		for (String _word : query.trim().split("\\s+")) {
+			String _w = _word.toLowerCase();
+			if (_w.isEmpty() || STOP_WORDS.contains(_w)) {
+				continue;
+			}
+			if (_w.matches("\\d{4}|\\d{6}|\\d{8}")) {
+				int _date = Integer.parseInt(_w);
+				int _scale = _w.length() == 4 ? 10000 : _w.length() == 6 ? 100 : 1;
+				_from = Math.min(_from, _date * _scale);
+				_to = Math.max(_to, _date * _scale + _scale - 1);
+				continue;
+			}
+			Set<String> _terms = _w.startsWith("tag:") || _w.startsWith("pub:") ? Collections.singleton(_w)
+					: tokenize(_w, new LinkedHashSet<String>());
+			for (String _t : _terms) {
+				Postings _p = postings.get(_t);
+				if (_p == null && _t.length() > 3 && _t.endsWith("s")) {
+					_p = postings.get(_t.substring(0, _t.length() - 1));  // bills -> bill
+				}
+				if (_p == null) {
+					return new ArrayList<Document>();
+				}
+				_lists.add(_p);
+			}
+		}
+		List<Document> _hits = new ArrayList<Document>();
+		if (_lists.isEmpty()) {
+			if (_from == Integer.MAX_VALUE) {
+				return _hits;  // an empty query
+			}
+			for (Document _d : documents) {
+				if (_d.deleted == false && _d.date >= _from && _d.date <= _to) {
+					_hits.add(_d);
+				}
+			}
+		}
+		else {
+			Collections.sort(_lists, new Comparator<Postings>() {
+				public int compare(Postings p1, Postings p2) {
+					return p1.size - p2.size;
+				}
+			});
+			int[] _ids = Arrays.copyOf(_lists.get(0).ids, _lists.get(0).size);
+			int _count = _ids.length;
+			for (int i = 1; i < _lists.size() && _count > 0; i++) {
+				_count = intersect(_ids, _count, _lists.get(i));
+			}
+			for (int i = 0; i < _count; i++) {
+				Document _d = documents.get(_ids[i]);
+				if (_d.deleted == false && (_from == Integer.MAX_VALUE || (_d.date >= _from && _d.date <= _to))) {
+					_hits.add(_d);
+				}
+			}
+		}
+		Collections.sort(_hits, new Comparator<Document>() {
+			public int compare(Document d1, Document d2) {
+				return d1.date != d2.date ? (d1.date > d2.date ? -1 : 1) : d1.path.compareTo(d2.path);
+			}
+		});
+		List<Document> _result = new ArrayList<Document>();
+		for (Document _d : _hits) {
+			if (_result.size() >= limit) {
+				break;
+			}
+			if (new File(_d.path).exists()) {
+				_result.add(_d);
+			}
+			else {
+				remove(new File(_d.path));
+			}
+		}
+		return _result;
+	}
+
+	/**
+	 * Keeps the numbers of ids that are also in a posting list; both are sorted.
+	 * @return	the number of ids kept
+	 */
+	private static int intersect(int[] ids, int count, Postings p) {
+		int _kept = 0;
+		int j = 0;
+		for (int i = 0; i < count && j < p.size; i++) {
+			while (j < p.size && p.ids[j] < ids[i]) {
+				j++;
+			}
+			if (j < p.size && p.ids[j] == ids[i]) {
+				ids[_kept++] = ids[i];
+			}
+		}
+		return _kept;
+	}
+
+	private void append(String record) throws IOException {
+		if (log == null) {
+			log = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), UTF8));
+		}
+		log.write(record.replace('\n', ' ') + "\n");
+		records++;
+	}
+
+	/**
+	 * Writes the new records to the index file without rewriting it, e.g. after each batch of a daemon,
+	 * so that the records are not lost if the process is killed.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void flush() throws IOException {
+		if (log != null) {
+			log.flush();
+		}
+	}
+
+	/**
+	 * Writes the new records to the index file; the file is rewritten if more than half of its records are obsolete.
+	 *
+	 * @throws IOException
+	 */
+	public synchronized void save() throws IOException {
+		if (log != null) {
+			log.close();
+			log = null;
+		}
+		if (records > 2 * live) {
+			compact();
+		}
+	}
+
+	/**
+	 * Rewrites the index file with the current documents and renumbers them.
+	 */
+	private void compact() throws IOException {
+		List<Document> _live = new ArrayList<Document>(live);
+		for (Document _d : documents) {
+			if (_d.deleted == false) {
+				_live.add(_d);
+			}
+		}
+		File _tmp = new File(file.getPath() + ".tmp");
+		try (Writer _out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(_tmp), UTF8))) {
+			for (Document _d : _live) {
+				_out.write("+\t" + _d.path + "\t" + _d.date + "\t" + _d.tags + "\t" + _d.text + "\n");
+			}
+		}
+		Files.move(_tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		documents.clear();
+		byPath.clear();
+		postings.clear();
+		live = 0;
+		for (Document _d : _live) {
+			put(_d);
+		}
+		records = live;
+	}
+
+	/**
+	 * @return	a one-line summary of the index and the updates so far
+	 */
+	public synchronized String getSummary() {
+		return "documents=" + live + ", terms=" + postings.size() + ", records=" + records + ", added=" + added.get()
+				+ ", removed=" + removed.get() + ", extracted=" + extracted.get() + ", queries=" + queries.get();
+	}
+}
@@ -0,0 +1,122 @@
+package renfiles;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Finds archived files whose finder tags are missing, and optionally adds them.<p>
+ * The tags are written after the move, in batches; if that fails (or the tag command is not installed),
+ * nothing notices. The audit walks the archive with a {@link ForkJoinScanner}, so the extended attributes of
+ * many files are read at the same time, and determines for each file the rule that moved it into the archive
+ * ({@link RuleTable#matchArchived(String, String)}). Files that have no rule or a rule without tags are
+ * not read at all. A file is untagged if one of the tags of its rule is missing; tags added by the user
+ * are kept and not reported. The missing tags are added by a {@link TagWriter} (in batches per tag set),
+ * which adds tags like <code>tag -a</code>.<p>
+ * The attributes are read with a {@link UserDefinedFileAttributeView}, see {@link XattrTagBackend}; on Linux,
+ * the archive must be on a filesystem with user extended attributes.
+ *
+ * @author Bruno Kaiser
+ * @version $Id$
+ */
+public class TagAudit {
+	private final RuleTable ruleTable;
+	private final Path archive;
+	private final ForkJoinScanner scanner;
+	/** adds the missing tags, or null to just report them */
+	private final TagWriter repairWriter;
+
+	private final AtomicInteger files = new AtomicInteger();
+	private final AtomicInteger audited = new AtomicInteger();
+	private final AtomicInteger untagged = new AtomicInteger();
+	private final AtomicInteger undecodable = new AtomicInteger();
+	private final AtomicInteger unsupported = new AtomicInteger();
+
+	/**
+	 * Constructor.
+	 * @param ruleTable		the rules that determine the tags of the archived files
+	 * @param archive		the root of the archive, i.e. destDirName
+	 * @param scanner		walks the archive
+	 * @param repairWriter	adds the missing tags, or null to just report them
+	 */
+	public TagAudit(RuleTable ruleTable, Path archive, ForkJoinScanner scanner, TagWriter repairWriter) {
+		this.ruleTable = ruleTable;
+		this.archive = archive;
+		this.scanner = scanner;
+		this.repairWriter = repairWriter;
+	}
+
+	/**
+	 * Audits all files of the archive; each untagged file is printed with its missing tags.
+	 * The repairs are queued in the repairWriter, the caller has to flush it.
+	 *
+	 * @return	the number of untagged files
+	 * @throws IOException	the first failure of the traversal
+	 * @throws InterruptedException
+	 */
+	public int run() throws IOException, InterruptedException {
+		scanner.walkFiles(archive, new ForkJoinScanner.FileHandler() {
+			public void handle(Path file) throws IOException {
+				audit(file);
+			}
+		});
+		return untagged.get();
+	}
+
+	/**
+	 * Compares the tags of a file with the tags of its rule.
+	 */
+	private void audit(Path file) throws IOException {
+		files.incrementAndGet();
+		String _subDir = archive.relativize(file.getParent()).toString().replace(File.separatorChar, '/');
+		RenameRule _rule = ruleTable.matchArchived(_subDir, file.getFileName().toString());
+		if (_rule == null || _rule.getTags() == null) {
+			return;
+		}
+		audited.incrementAndGet();
+		UserDefinedFileAttributeView _view = Files.getFileAttributeView(file, UserDefinedFileAttributeView.class);
+		if (_view == null) {
+			unsupported.incrementAndGet();
+			return;
+		}
+		List<String> _existing = XattrTagBackend.readTags(_view);
+		if (_existing == null) {
+			undecodable.incrementAndGet();
+			AsyncLog.println("tags of " + file + " can not be decoded");
+			return;
+		}
+		Set<String> _names = new HashSet<String>();
+		for (String _t : _existing) {
+			_names.add(FinderTags.stripColor(_t));
+		}
+		List<String> _missing = new ArrayList<String>();
+		for (String _t : FinderTags.parse(_rule.getTags())) {
+			if (_names.contains(_t) == false) {
+				_missing.add(_t);
+			}
+		}
+		if (_missing.isEmpty()) {
+			return;
+		}
+		untagged.incrementAndGet();
+		AsyncLog.println("untagged: " + file + ", missing " + FinderTags.join(_missing) + " (rule " + _rule.getId() + ")");
+		if (repairWriter != null) {
+			repairWriter.add(FinderTags.join(_missing), file.toFile());
+		}
+	}
+
+	/**
+	 * @return	a one-line summary of the audit
+	 */
+	public String getSummary() {
+		return "files=" + files.get() + ", audited=" + audited.get() + ", untagged=" + untagged.get()
+				+ ", undecodable=" + undecodable.get() + ", unsupported=" + unsupported.get();
+	}
+}
@@ -0,0 +1,105 @@
+package renfiles;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes finder tags by calling jdberry / tag (<code>tag -a tags path1 path2 ...</code>).<p>
+ * Many files are passed to one invocation; the command line is split into several
+ * invocations if it would exceed maxArgLength characters. Each child process is waited for
+ * and its exit code is collected.
+ *
+ * @author Bruno Kaiser
+ * @version $Id$
+ */
+public class TagCommandBackend implements TagWriter.Backend {
+	private final String tagCommand;
+	private final int maxArgLength;
+	private final AtomicInteger invocations = new AtomicInteger();
+	private final Map<Integer, Integer> exitCodes = new TreeMap<Integer, Integer>();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param tagCommand		path of the tag command, e.g. /usr/local/bin/tag
+	 * @param maxArgLength		maximal total length of the arguments of one invocation
+	 */
+	public TagCommandBackend(String tagCommand, int maxArgLength) {
+		this.tagCommand = tagCommand;
+		this.maxArgLength = maxArgLength;
+	}
+
+	public int write(List<String> tags, List<File> files) throws IOException {
+		String _tags = FinderTags.join(tags);
+		int _fixedLength = tagCommand.length() + _tags.length() + 6; // " -a " and separators
+		int _failures = 0;
+		List<String> _cmd = newCommand(_tags);
+		int _length = _fixedLength;
+		int _count = 0;
+		for (File _f : files) {
+			String _path = _f.getAbsolutePath();
+			if (_count > 0 && _length + _path.length() + 1 > maxArgLength) {
+				_failures += execute(_cmd, _count);
+				_cmd = newCommand(_tags);
+				_length = _fixedLength;
+				_count = 0;
+			}
+			_cmd.add(_path);
+			_length += _path.length() + 1;
+			_count++;
+		}
+		if (_count > 0) {
+			_failures += execute(_cmd, _count);
+		}
+		return _failures;
+	}
+
+	private List<String> newCommand(String tags) {
+		List<String> _cmd = new ArrayList<String>();
+		_cmd.add(tagCommand);
+		_cmd.add("-a");
+		_cmd.add(tags);
+		return _cmd;
+	}
+
+	/**
+	 * Runs the tag command and waits for it.
+	 * @return	the number of files that could not be tagged (all of them if the exit code is not 0)
+	 */
+	private int execute(List<String> cmd, int count) throws IOException {
+		invocations.incrementAndGet();
+		Process _p = new ProcessBuilder(cmd)
+				.redirectOutput(ProcessBuilder.Redirect.INHERIT)
+				.redirectError(ProcessBuilder.Redirect.INHERIT)
+				.start();
+		int _exitCode;
+		try {
+			_exitCode = _p.waitFor();
+		}
+		catch (InterruptedException _ex) {
+			_p.destroy();
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted while waiting for " + tagCommand);
+		}
+		synchronized (exitCodes) {
+			Integer _n = exitCodes.get(_exitCode);
+			exitCodes.put(_exitCode, _n == null ? 1 : _n + 1);
+		}
+		if (_exitCode != 0) {
+			System.out.println(tagCommand + " -a " + cmd.get(2) + " exited with " + _exitCode + " for " + count + " files");
+			return count;
+		}
+		return 0;
+	}
+
+	public String getSummary() {
+		synchronized (exitCodes) {
+			return "invocations=" + invocations.get() + ", exitCodes=" + exitCodes;
+		}
+	}
+}
@@ -0,0 +1,158 @@
+package renfiles;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Collects the finder tags to add to moved files and writes them in batches.<p>
+ * Files are grouped by their (normalized) tag set; each group is written with a single
+ * call of the {@link Backend}, e.g. one invocation of the tag command with many paths.
+ * A group is written as soon as it contains batchSize files, all remaining groups are
+ * written by {@link #flush()}. The class is thread-safe; batches are written by the
+ * thread that adds the last file of a batch (or calls flush), outside of the lock.
+ *
+ * @author Bruno Kaiser
+ * @version $Id$
+ */
+public class TagWriter {
+	/**
+	 * Writes a tag set to a list of files.
+	 */
+	public interface Backend {
+		/**
+		 * Adds the tags to each of the files.
+		 * @param tags		the tags to add
+		 * @param files		the files to tag
+		 * @return			the number of files that could not be tagged
+		 * @throws IOException
+		 */
+		int write(List<String> tags, List<File> files) throws IOException;
+
+		/**
+		 * @return	a one-line summary of the work done by the backend
+		 */
+		String getSummary();
+	}
+
+	private final Backend backend;
+	private final int batchSize;
+	private final Map<String, List<File>> groups = new HashMap<String, List<File>>();
+	private final AtomicInteger batches = new AtomicInteger();
+	private final AtomicInteger files = new AtomicInteger();
+	private final AtomicInteger failures = new AtomicInteger();
+	private Metrics metrics = null;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param backend		writes the tags
+	 * @param batchSize		maximal number of files per batch
+	 */
+	public TagWriter(Backend backend, int batchSize) {
+		this.backend = backend;
+		this.batchSize = Math.max(1, batchSize);
+	}
+
+	/**
+	 * Creates a TagWriter with the backend of the given name.
+	 *
+	 * @param backendName	"xattr" to write the extended attributes directly, anything else to call the tag command
+	 * @param tagCommand	path of the tag command
+	 * @param maxArgLength	maximal length of the command line of one invocation of the tag command
+	 * @param batchSize		maximal number of files per batch
+	 * @return				a new TagWriter
+	 */
+	public static TagWriter create(String backendName, String tagCommand, int maxArgLength, int batchSize) {
+		if ("xattr".equals(backendName)) {
+			return new TagWriter(new XattrTagBackend(), batchSize);
+		}
+		return new TagWriter(new TagCommandBackend(tagCommand, maxArgLength), batchSize);
+	}
+
+	/**
+	 * Sets the metrics that record the time of each batch (timer tag).
+	 *
+	 * @param metrics	the metrics of the run
+	 */
+	public void setMetrics(Metrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Adds the tags to a file, i.e. queues the file until its batch is written.
+	 *
+	 * @param tags	comma-separated list of tags
+	 * @param f		the file to tag
+	 */
+	public void add(String tags, File f) {
+		String _key = FinderTags.join(FinderTags.parse(tags));
+		if (_key.isEmpty()) {
+			return;
+		}
+		List<File> _full = null;
+		synchronized (groups) {
+			List<File> _group = groups.get(_key);
+			if (_group == null) {
+				_group = new ArrayList<File>();
+				groups.put(_key, _group);
+			}
+			_group.add(f);
+			if (_group.size() >= batchSize) {
+				_full = groups.remove(_key);
+			}
+		}
+		if (_full != null) {
+			write(_key, _full);
+		}
+	}
+
+	/**
+	 * Writes all queued batches.
+	 */
+	public void flush() {
+		Map<String, List<File>> _pending;
+		synchronized (groups) {
+			_pending = new HashMap<String, List<File>>(groups);
+			groups.clear();
+		}
+		for (Map.Entry<String, List<File>> _e : _pending.entrySet()) {
+			write(_e.getKey(), _e.getValue());
+		}
+	}
+
+	private void write(String key, List<File> group) {
+		batches.incrementAndGet();
+		files.addAndGet(group.size());
+		long _start = System.nanoTime();
+		try {
+			failures.addAndGet(backend.write(FinderTags.parse(key), group));
+		}
+		catch (IOException _ex) {
+			failures.addAndGet(group.size());
+			AsyncLog.println("******** failed to add tags " + key + " to " + group.size() + " files with " + _ex.toString() + "*********");
+		}
+		if (metrics != null) {
+			metrics.stop("tag", _start);
+			metrics.add("tag.files", group.size());
+		}
+	}
+
+	/**
+	 * @return	the number of files that could not be tagged
+	 */
+	public int getFailures() {
+		return failures.get();
+	}
+
+	/**
+	 * @return	a one-line summary of the tags written so far
+	 */
+	public String getSummary() {
+		return "batches=" + batches.get() + ", files=" + files.get() + ", failures=" + failures.get() + ", " + backend.getSummary();
+	}
+}
@@ -0,0 +1,366 @@
+package renfiles;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Long-running daemon that watches the source directories and converts new files as soon as they arrive.<p>
+ * Each new or modified entry is kept as pending until its size and modification time did not change
+ * for settleMillis (i.e. until the download or copy is finished); then it is classified, moved and tagged
+ * with the same logic as in a batch run. If the operating system reports an overflow (too many events),
+ * only the affected directory is scanned again, at most once per settle interval.<p>
+ * Note: on Mac OS/X, the JDK implements the WatchService by polling, so events are delayed by a few seconds.
+ *
+ * @author Bruno Kaiser
+ * @version $Id$
+ */
+public class WatchDaemon {
+	/**
+	 * A directory to watch, together with the source that classifies its entries.
+	 */
+	public interface Target extends Pipeline.FileSource {
+		/**
+		 * @return	the watched directory
+		 */
+		Path getDir();
+
+		/**
+		 * @return	1 if the entries of the directory are candidates, 2 if the entries of its subdirectories are candidates
+		 */
+		int getDepth();
+
+		/**
+		 * Tests if an entry of the (sub)directory is a candidate of this target.
+		 * @param p			the entry
+		 * @param attrs		the attributes of the entry
+		 * @return			true if the entry is to be classified by this target
+		 */
+		boolean accept(Path p, BasicFileAttributes attrs);
+	}
+
+	private final List<Target> targets;
+	private final Pipeline.MoveHandler handler;
+	private final Runnable beforeBatch;
+	private final Runnable onBatch;
+	private final long settleMillis;
+	private final long tickMillis;
+
+	private WatchService watcher = null;
+	/** watched directory -> targets whose candidates are in this directory */
+	private final Map<WatchKey, List<Target>> fileKeys = new HashMap<WatchKey, List<Target>>();
+	/** watched directory -> targets with depth 2 whose subdirectories are in this directory */
+	private final Map<WatchKey, List<Target>> parentKeys = new HashMap<WatchKey, List<Target>>();
+	private final Map<Path, WatchKey> registered = new HashMap<Path, WatchKey>();
+	private final Map<Path, Pending> pending = new LinkedHashMap<Path, Pending>();
+	private final Set<WatchKey> overflowed = new LinkedHashSet<WatchKey>();
+	private long lastRescan = 0;
+	private volatile boolean running = true;
+	/** counted down when {@link #run()} returns */
+	private final CountDownLatch finished = new CountDownLatch(1);
+
+	private final AtomicInteger events = new AtomicInteger();
+	private final AtomicInteger processed = new AtomicInteger();
+	private final AtomicInteger rescans = new AtomicInteger();
+
+	/**
+	 * Constructor.
+	 *
+	 * @param targets		the directories to watch
+	 * @param handler		moves and tags the classified files
+	 * @param beforeBatch	called before the first entry of each batch is classified, e.g. to list the destinations again
+	 * @param onBatch		called after each batch of converted files, e.g. to write the pending finder tags
+	 * @param settleMillis	an entry must not change for this time before it is converted
+	 */
+	public WatchDaemon(List<Target> targets, Pipeline.MoveHandler handler, Runnable beforeBatch, Runnable onBatch, long settleMillis) {
+		this.targets = targets;
+		this.handler = handler;
+		this.beforeBatch = beforeBatch;
+		this.onBatch = onBatch;
+		this.settleMillis = Math.max(0, settleMillis);
+		this.tickMillis = Math.max(10, Math.min(100, settleMillis / 4));
+	}
+
+	/**
+	 * Registers all directories, converts the files that are already there and then
+	 * waits for new files until {@link #stop()} is called or the thread is interrupted.
+	 *
+	 * @throws IOException
+	 * @throws InterruptedException
+	 */
+	public void run() throws IOException, InterruptedException {
+		watcher = FileSystems.getDefault().newWatchService();
+		try {
+			for (Target _t : targets) {
+				if (Files.isDirectory(_t.getDir()) == false) {
+					AsyncLog.println("not watching " + _t.getDir() + ", directory does not exist");
+					continue;
+				}
+				WatchKey _key = register(_t.getDir());
+				if (_t.getDepth() == 1) {
+					add(fileKeys, _key, _t);
+				}
+				else {
+					add(parentKeys, _key, _t);
+				}
+				rescan(_key);
+			}
+			while (running) {
+				WatchKey _key = watcher.poll(tickMillis, TimeUnit.MILLISECONDS);
+				while (_key != null) {
+					handleEvents(_key);
+					_key = watcher.poll();
+				}
+				rescanOverflowed();
+				processSettled();
+			}
+		}
+		catch (ClosedWatchServiceException _ex) {
+			// stopped
+		}
+		finally {
+			watcher.close();
+			finished.countDown();
+		}
+	}
+
+	/**
+	 * Stops the daemon; the entry that is being converted is completed, the others are left for the next start.
+	 */
+	public void stop() {
+		running = false;
+	}
+
+	/**
+	 * Waits until {@link #run()} has returned, e.g. after {@link #stop()}.
+	 *
+	 * @param millis	the maximum time to wait
+	 * @return			true if the daemon has stopped, false if the time elapsed
+	 * @throws InterruptedException
+	 */
+	public boolean awaitStopped(long millis) throws InterruptedException {
+		return finished.await(millis, TimeUnit.MILLISECONDS);
+	}
+
+	private WatchKey register(Path dir) throws IOException {
+		WatchKey _key = registered.get(dir);
+		if (_key == null) {
+			_key = dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+			registered.put(dir, _key);
+		}
+		return _key;
+	}
+
+	private static void add(Map<WatchKey, List<Target>> map, WatchKey key, Target target) {
+		List<Target> _l = map.get(key);
+		if (_l == null) {
+			_l = new ArrayList<Target>();
+			map.put(key, _l);
+		}
+		_l.add(target);
+	}
+
+	private void handleEvents(WatchKey key) {
+		Path _dir = (Path) key.watchable();
+		for (WatchEvent<?> _event : key.pollEvents()) {
+			events.incrementAndGet();
+			if (_event.kind() == StandardWatchEventKinds.OVERFLOW) {
+				overflowed.add(key);
+				continue;
+			}
+			Path _p = _dir.resolve((Path) _event.context());
+			List<Target> _parents = parentKeys.get(key);
+			if (_parents != null && Files.isDirectory(_p)) {  // e.g. a new ProSaldoBackup directory
+				watchSubdirectory(_p, _parents);
+			}
+			if (fileKeys.containsKey(key)) {
+				touch(_p);
+			}
+		}
+		if (key.reset() == false) {  // directory was removed
+			registered.remove(_dir);
+			fileKeys.remove(key);
+			parentKeys.remove(key);
+		}
+	}
+
+	private void watchSubdirectory(Path dir, List<Target> parents) {
+		try {
+			WatchKey _key = register(dir);
+			for (Target _t : parents) {
+				List<Target> _l = fileKeys.get(_key);
+				if (_l == null || _l.contains(_t) == false) {
+					add(fileKeys, _key, _t);
+				}
+			}
+			overflowed.add(_key);  // files may have been created before the directory was registered
+		}
+		catch (IOException _ex) {
+			AsyncLog.println("******** failed to watch " + dir + " with " + _ex.toString() + "*********");
+		}
+	}
+
+	/**
+	 * Marks an entry as pending (again).
+	 */
+	private void touch(Path p) {
+		Pending _pd = pending.get(p);
+		if (_pd == null) {
+			pending.put(p, new Pending());
+		}
+		else {
+			_pd.stableSince = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Scans the overflowed directories again, but not more often than once per settle interval.
+	 */
+	private void rescanOverflowed() {
+		long _now = System.currentTimeMillis();
+		if (overflowed.isEmpty() || _now - lastRescan < settleMillis) {
+			return;
+		}
+		lastRescan = _now;
+		List<WatchKey> _keys = new ArrayList<WatchKey>(overflowed);
+		overflowed.clear();  // rescan() may add new subdirectories
+		for (WatchKey _key : _keys) {
+			rescan(_key);
+		}
+	}
+
+	/**
+	 * Adds all entries of a watched directory to the pending entries.
+	 */
+	private void rescan(WatchKey key) {
+		rescans.incrementAndGet();
+		Path _dir = (Path) key.watchable();
+		try {
+			DirectoryScanner.scan(_dir, new RenameFileFilter(""), DirectoryScanner.Type.ALL, new DirectoryScanner.Visitor() {
+				public void visit(Path p, BasicFileAttributes attrs) {
+					List<Target> _parents = parentKeys.get(registered.get(p.getParent()));
+					if (_parents != null && attrs.isDirectory()) {
+						watchSubdirectory(p, _parents);
+					}
+					if (fileKeys.containsKey(registered.get(p.getParent()))) {
+						touch(p);
+					}
+				}
+			});
+		}
+		catch (IOException _ex) {
+			AsyncLog.println("******** failed to scan " + _dir + " with " + _ex.toString() + "*********");
+		}
+		catch (InterruptedException _ex) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Converts all pending entries that did not change for settleMillis.
+	 */
+	private void processSettled() {
+		long _now = System.currentTimeMillis();
+		boolean _started = false;
+		int _count = 0;
+		Iterator<Map.Entry<Path, Pending>> _it = pending.entrySet().iterator();
+		while (_it.hasNext() && running) {
+			Map.Entry<Path, Pending> _e = _it.next();
+			Path _p = _e.getKey();
+			Pending _pd = _e.getValue();
+			BasicFileAttributes _attrs;
+			try {
+				_attrs = Files.readAttributes(_p, BasicFileAttributes.class);
+			}
+			catch (IOException _ex) {  // gone, e.g. moved away by somebody else
+				_it.remove();
+				continue;
+			}
+			long _mtime = _attrs.lastModifiedTime().toMillis();
+			if (_attrs.size() != _pd.size || _mtime != _pd.mtime) {  // still growing
+				_pd.size = _attrs.size();
+				_pd.mtime = _mtime;
+				_pd.stableSince = _now;
+			}
+			else if (_now - _pd.stableSince >= settleMillis) {
+				_it.remove();
+				if (_started == false) {
+					beforeBatch.run();
+					_started = true;
+				}
+				if (convert(_p, _attrs)) {
+					_count++;
+				}
+			}
+		}
+		if (_count > 0) {
+			onBatch.run();
+		}
+	}
+
+	/**
+	 * Converts a settled entry with the first target that accepts it.
+	 */
+	private boolean convert(Path p, BasicFileAttributes attrs) {
+		List<Target> _targets = fileKeys.get(registered.get(p.getParent()));
+		if (_targets == null) {
+			return false;
+		}
+		for (Target _t : _targets) {
+			if (_t.accept(p, attrs)) {
+				try {
+					File _f = p.toFile();
+					FileMove _m = _t.classify(_f);
+					if (_m != null && handler.move(_m)) {
+						handler.tag(_m);
+						processed.incrementAndGet();
+						return true;
+					}
+				}
+				catch (IOException _ex) {
+					AsyncLog.println("******** failed with " + p.getFileName() + ": " + _ex.toString() + "*********");
+				}
+				catch (RuntimeException _ex) {
+					AsyncLog.println("******** failed with " + p.getFileName() + ": " + _ex.toString() + "*********");
+				}
+				return false;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return	a one-line summary of the work done so far
+	 */
+	public String getSummary() {
+		return "events=" + events.get() + ", processed=" + processed.get() + ", rescans=" + rescans.get() + ", pending=" + pending.size();
+	}
+
+	/**
+	 * An entry that is waiting to settle.
+	 */
+	private static class Pending {
+		private long size = -1;
+		private long mtime = -1;
+		private long stableSince = System.currentTimeMillis();
+	}
+}
@@ -0,0 +1,100 @@
+package renfiles;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.UserDefinedFileAttributeView;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes finder tags directly into the extended attribute
+ * <code>com.apple.metadata:_kMDItemUserTags</code> by means of a {@link UserDefinedFileAttributeView}.
+ * No process is forked. Existing tags of a file are kept, i.e. the behaviour is the same as <code>tag -a</code>.<p>
+ * On Linux, the attribute is stored as <code>user.com.apple.metadata:_kMDItemUserTags</code>;
+ * the filesystem must support user extended attributes (e.g. ext4, tmpfs).
+ *
+ * @author Bruno Kaiser
+ * @version $Id$
+ */
+public class XattrTagBackend implements TagWriter.Backend {
+	private final AtomicInteger written = new AtomicInteger();
+	private final AtomicInteger unsupported = new AtomicInteger();
+
+	public int write(List<String> tags, List<File> files) throws IOException {
+		int _failures = 0;
+		for (File _f : files) {
+			try {
+				if (!addTags(_f.toPath(), tags)) {
+					_failures++;
+				}
+			}
+			catch (IOException _ex) {
+				_failures++;
+				System.out.println("adding tags to " + _f.getName() + " failed with " + _ex.toString());
+			}
+		}
+		return _failures;
+	}
+
+	/**
+	 * Adds tags to a file.
+	 * @param p		the file
+	 * @param tags	the tags to add
+	 * @return		false if the filesystem does not support user-defined attributes or the existing tags can not be decoded
+	 * @throws IOException
+	 */
+	private boolean addTags(Path p, List<String> tags) throws IOException {
+		UserDefinedFileAttributeView _view = Files.getFileAttributeView(p, UserDefinedFileAttributeView.class);
+		if (_view == null) {
+			unsupported.incrementAndGet();
+			return false;
+		}
+		List<String> _existing = readTags(_view);
+		if (_existing == null) {  // do not overwrite tags we do not understand
+			System.out.println("existing tags of " + p.getFileName() + " can not be decoded");
+			return false;
+		}
+		Set<String> _all = new LinkedHashSet<String>(_existing);
+		List<String> _names = new ArrayList<String>();
+		for (String _t : _all) {
+			_names.add(FinderTags.stripColor(_t));
+		}
+		boolean _changed = false;
+		for (String _t : tags) {
+			if (!_names.contains(_t)) {
+				_all.add(_t);
+				_changed = true;
+			}
+		}
+		if (_changed) {
+			_view.write(FinderTags.XATTR_NAME, ByteBuffer.wrap(FinderTags.encode(new ArrayList<String>(_all))));
+			written.incrementAndGet();
+		}
+		return true;
+	}
+
+	/**
+	 * Reads the tags of a file.
+	 * @param view	the attribute view of the file
+	 * @return		the tags (with color suffix), an empty list if the file has no tags, or null if the attribute can not be decoded
+	 * @throws IOException
+	 */
+	static List<String> readTags(UserDefinedFileAttributeView view) throws IOException {
+		if (!view.list().contains(FinderTags.XATTR_NAME)) {
+			return new ArrayList<String>();
+		}
+		ByteBuffer _buf = ByteBuffer.allocate(view.size(FinderTags.XATTR_NAME));
+		view.read(FinderTags.XATTR_NAME, _buf);
+		return FinderTags.decode(_buf.array());
+	}
+
+	public String getSummary() {
+		return "xattrsWritten=" + written.get() + ", unsupported=" + unsupported.get();
+	}
+}